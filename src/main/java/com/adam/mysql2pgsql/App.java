@@ -1,18 +1,22 @@
 package com.adam.mysql2pgsql;
 
 import java.io.Console;
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 
+/**
+ * The command line tool: asks for the passwords and whether to recreate the schema, then runs a {@link Migration}
+ * printing its progress to the console
+ * @author adam
+ */
 public class App {
 
-	public static void main(String[] args) throws IOException, SQLException, ClassNotFoundException, InstantiationException, IllegalAccessException, ParseException {
+	public static void main(String[] args) throws IOException, SQLException, ParseException {
 		Console console = System.console();
 		if (console == null) {
 			System.err.println("Need a console for interactivity");
@@ -20,6 +24,16 @@ public class App {
 			return;
 		}
 		PrintWriter writer = console.writer();
+		if (args != null && args.length > 0 && "plan".equals(args[0])) {
+			plan(console, args);
+			return;
+		}
+		//Distributed mode, where chunks are handed out to any number of worker processes through a lease table
+		String mode = null;
+		if (args != null && args.length > 0 && ("coordinate".equals(args[0]) || "worker".equals(args[0]))) {
+			mode = args[0];
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
 		if (args == null || args.length < 9) {
 			writer.append("Missing arguments!\n");
 			writer.append("Required arguments missing!\n");
@@ -27,72 +41,86 @@ public class App {
 			writer.append("\n");
 			writer.append("\tmysqlhost mysqlport mysqluser mysqlschema pgsqlhost pgsqlport pgsqldb pgsqluser pgsqlschema [tablea, tableb]\n");
 			writer.append("\n");
+			writer.append("mysqlhost may be a comma separated list of replicas holding the same data, e.g. replica1,replica2,replica3.\n");
+			writer.append("The data is then read from all of them, the schema from the first one.\n");
+			writer.append("\n");
 			writer.append("If any table specified, only that/those specific tables will be migrated. Otherwise all tables in the entire schema \n");
 			writer.append("\n");
+			writer.append("To only print the migration plan and estimated duration, without migrating anything:\n");
+			writer.append("\n");
+			writer.append("\tplan mysqlhost mysqlport mysqluser mysqlschema [tablea, tableb]\n");
+			writer.append("\n");
+			writer.append("To spread the data transfer over several hosts, start one coordinator, which also does all schema work, and any\n");
+			writer.append("number of workers on other hosts, at any time. The arguments are the same as above:\n");
+			writer.append("\n");
+			writer.append("\tcoordinate mysqlhost ... pgsqlschema [tablea, tableb]\n");
+			writer.append("\tworker mysqlhost ... pgsqlschema\n");
+			writer.append("\n");
+			writer.append("Mysql zero dates (0000-00-00) are migrated as 1970-01-01 unless -Dmysql2pgsql.zeroDates=NULL|EPOCH|REJECT is given\n");
+			writer.append("\n");
+			writer.append("To limit the load on mysql, use -Dmysql2pgsql.maxRowsPerSecond=n and/or -Dmysql2pgsql.maxBytesPerSecond=n.\n");
+			writer.append("On a replica, -Dmysql2pgsql.maxReplicaLag=seconds reduces the number of parallel reads while the replica lags behind\n");
+			writer.append("\n");
+			writer.append("Data is transferred over 8 connections per mysql host, or -Dmysql2pgsql.connections=n in total\n");
+			writer.append("\n");
+			writer.append("Rows in flight are kept within half the max heap, or -Dmysql2pgsql.memoryBudgetMB=n\n");
+			writer.append("\n");
+			writer.append("A failed chunk is retried 5 times, with increasing delays, or -Dmysql2pgsql.chunkRetries=n times\n");
+			writer.append("\n");
+			writer.append("Column statistics are gathered during the transfer, to set sequences and report which tables need ANALYZE most.\n");
+			writer.append("-Dmysql2pgsql.profile=false turns that off\n");
+			writer.append("\n");
+			writer.append("-Dmysql2pgsql.tableFilters=file gives a properties file with row filters and column selections per table:\n");
+			writer.append("\ttable.where=mysql condition, table.columns=col1,col2 and/or table.excludeColumns=col3,col4\n");
+			writer.append("\n");
+			writer.append("With -Dmysql2pgsql.consistentSnapshot=true all data is read from one consistent snapshot of the first mysql host\n");
+			writer.append("\n");
+			writer.append("With -Dmysql2pgsql.incremental=true only tables that changed in mysql since the last run are recreated and migrated\n");
+			writer.append("\n");
+			writer.append("-Dmysql2pgsql.shards=host[:port]/schema,... consolidates shards with the tables of the mysql schema into the pgsql schema.\n");
+			writer.append("-Dmysql2pgsql.shardColumn=name keeps the shard id (1, 2, ... in list order) of each row in a column of every table and key\n");
+			writer.append("\n");
 			writer.flush();
 			System.exit(1);
 		}
-		String mysqlHost = args[0];
-		Integer mysqlPort = Integer.parseInt(args[1]);
-		String mysqlUser = args[2];
-		writer.println("Please provide password for the mysql instance " + mysqlUser + "@" + mysqlHost + ":" + mysqlPort + ":");
-		String mysqlSchema = args[3];
-		String mysqlPassword = new String(console.readPassword());
-
-		String pgsqlHost = args[4];
-		Integer pgsqlPort = Integer.parseInt(args[5]);
-		String pgsqlDb = args[6];
-		String pgsqlUser = args[7];
-		writer.println("Please provide password for the pgsql instance " + pgsqlUser + "@" + pgsqlHost + ":" + pgsqlPort + ":");
-		String pgsqlSchema = args[8];
-		String pgsqlPassword = new String(console.readPassword());
-
-		String mysqlUrl = "jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/";
-		DriverManager.registerDriver((java.sql.Driver) Class.forName("com.mysql.jdbc.Driver").newInstance());
-
-		String pgsqlUrl = "jdbc:postgresql://" + pgsqlHost + ":" + pgsqlPort + "/" + pgsqlDb;
-		DriverManager.registerDriver((java.sql.Driver) Class.forName("org.postgresql.Driver").newInstance());
-
-		Set<String> onlyMigrateTables = null;
-		if (args != null && args.length > 9) {
-			onlyMigrateTables = new TreeSet<>();
+		MigrationConfig config = MigrationConfig.fromSystemProperties();
+		//Several replicas holding the same data can be given as host1,host2,host3
+		config.setMysqlHosts(args[0].split(","));
+		config.setMysqlPort(Integer.parseInt(args[1]));
+		config.setMysqlUser(args[2]);
+		writer.println("Please provide password for the mysql instance " + config.getMysqlUser() + "@" + config.getMysqlHosts().get(0) + ":" + config.getMysqlPort() + ":");
+		config.setMysqlSchema(args[3]);
+		config.setMysqlPassword(new String(console.readPassword()));
+
+		config.setPgsqlHost(args[4]);
+		config.setPgsqlPort(Integer.parseInt(args[5]));
+		config.setPgsqlDb(args[6]);
+		config.setPgsqlUser(args[7]);
+		writer.println("Please provide password for the pgsql instance " + config.getPgsqlUser() + "@" + config.getPgsqlHost() + ":" + config.getPgsqlPort() + ":");
+		config.setPgsqlSchema(args[8]);
+		config.setPgsqlPassword(new String(console.readPassword()));
+
+		if (args.length > 9) {
+			Set<String> onlyMigrateTables = new TreeSet<>();
 			for (int i = 9; i < args.length; i++) {
 				onlyMigrateTables.add(args[i].toLowerCase());
 			}
-			writer.println("Will only migrate tables: " + onlyMigrateTables);
-		} else {
-			writer.println("Will migrate all tables in the schema");
-		}
-
-		SchemaConverter schemaConverter = new SchemaConverter(mysqlSchema, mysqlHost, mysqlPort, mysqlUser, mysqlPassword, pgsqlSchema, onlyMigrateTables);
-		PSQLExecutor psqle = new PSQLExecutor(pgsqlHost, pgsqlDb, pgsqlPort, pgsqlUser, pgsqlPassword);
-
-		//Parse mysql schema
-		writer.println("Dumping and parsing mysql schema...");
-		schemaConverter.generateMysqlDumpData();
-		schemaConverter.parseSchemaDump();
-		writer.println("Done\n");
-
-		boolean recreateSchema = promptIfSchemaRecreation(pgsqlSchema);
-		if (recreateSchema) {
-			writer.println("Deleting and creating schema in postgres...");
-			File postgresSchemaDefFile = schemaConverter.generatePostgresSchemaDefinitionFile(pgsqlUser);
-			psqle.executeFile(postgresSchemaDefFile);
-			writer.println("Done\n");
+			config.setOnlyMigrateTables(onlyMigrateTables);
 		}
 
-		writer.println("Deleting and creating tables in the postgres schema...");
-		//Apply converted schema definition in postgres
-		File postgresTableDefFile = schemaConverter.generatePostgresTableDefinitionFile(pgsqlUser);
-		writer.println(postgresTableDefFile.getAbsolutePath());
-		psqle.executeFile(postgresTableDefFile);
-		writer.println("Done\n");
-
-		//Migrate all data to the new schema
-		writer.println("Migrating actual data from mysql to posgres...");
-		DataMigrator dataMigrator = new DataMigrator(mysqlUrl, mysqlUser, mysqlPassword, mysqlSchema, pgsqlUrl, pgsqlUser, pgsqlPassword, pgsqlSchema, onlyMigrateTables);
+		Migration migration = new Migration(config, new PrintWriterListener(writer));
 		try {
-			dataMigrator.transferTables();
+			if ("worker".equals(mode)) {
+				migration.runWorker();
+				return;
+			}
+			//Asked up front, so the migration itself runs without any interaction
+			config.setRecreateSchema(promptIfSchemaRecreation(config.getPgsqlSchema()));
+			if ("coordinate".equals(mode)) {
+				migration.coordinate();
+			} else {
+				migration.run();
+			}
 		} catch (SQLException sqle) {
 			sqle.printStackTrace(System.out);
 			SQLException nextException = sqle.getNextException();
@@ -101,29 +129,35 @@ public class App {
 			}
 			throw sqle;
 		}
-		writer.println("Done\n");
-
-		//Apply all constraints and indices
-		writer.println("Applying pk constraints...");
-		File postgresPkDefFile = schemaConverter.generatePostgresPkDefFile();
-		psqle.executeFile(postgresPkDefFile);
-		writer.println("Done.\n");
-
-		writer.println("Applying fk constraints and creating indices...");
-		File postgresIdxAndConstraintsFile = schemaConverter.generatePostgresIndexAndConstraintsFile();
-		writer.println(postgresIdxAndConstraintsFile.getAbsolutePath());
-		psqle.executeFile(postgresIdxAndConstraintsFile);
-		writer.println("Done\n");
-
-		writer.println("Running post SQLs: Updaing sequences to current increment value...");
-		File postSqlFile = schemaConverter.generatePostSqlFile();
-		writer.println(postSqlFile.getAbsolutePath());
-		psqle.executeFile(postSqlFile);
-		writer.println("Done\n");
-
-		//All done
-		writer.println("All done");
+	}
 
+	/**
+	 * Prints the migration plan and the estimated duration of each phase, without touching any data
+	 */
+	private static void plan(Console console, String[] args) throws IOException, SQLException {
+		PrintWriter writer = console.writer();
+		if (args.length < 5) {
+			writer.append("Required arguments missing!\n");
+			writer.append("\tplan mysqlhost mysqlport mysqluser mysqlschema [tablea, tableb]\n");
+			writer.flush();
+			System.exit(1);
+		}
+		MigrationConfig config = MigrationConfig.fromSystemProperties();
+		config.setMysqlHosts(args[1]);
+		config.setMysqlPort(Integer.parseInt(args[2]));
+		config.setMysqlUser(args[3]);
+		config.setMysqlSchema(args[4]);
+		writer.println("Please provide password for the mysql instance " + config.getMysqlUser() + "@" + args[1] + ":" + config.getMysqlPort() + ":");
+		config.setMysqlPassword(new String(console.readPassword()));
+
+		if (args.length > 5) {
+			Set<String> onlyMigrateTables = new TreeSet<>();
+			for (int i = 5; i < args.length; i++) {
+				onlyMigrateTables.add(args[i].toLowerCase());
+			}
+			config.setOnlyMigrateTables(onlyMigrateTables);
+		}
+		new Migration(config, new PrintWriterListener(writer)).plan().print(writer);
 	}
 
 	private static boolean promptIfSchemaRecreation(String pgsqlSchema) {
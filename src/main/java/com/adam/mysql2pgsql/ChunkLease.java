@@ -0,0 +1,54 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * A chunk claimed from the {@link ChunkLeaseTable}
+ * @author adam
+ */
+public class ChunkLease {
+
+	private final long id;
+	private final String tableName;
+	private final TableChunk chunk;
+	private final long avgRowLength;
+	private final int attempts;
+
+	ChunkLease(long id, String tableName, TableChunk chunk, long avgRowLength, int attempts) {
+		this.id = id;
+		this.tableName = tableName;
+		this.chunk = chunk;
+		this.avgRowLength = avgRowLength;
+		this.attempts = attempts;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return the partition and pk range of the chunk
+	 */
+	public TableChunk getChunk() {
+		return chunk;
+	}
+
+	public long getAvgRowLength() {
+		return avgRowLength;
+	}
+
+	/**
+	 * @return how many times the chunk has been claimed, including this time. Above 1 means an earlier worker may have
+	 * left rows of the chunk behind
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@Override
+	public String toString() {
+		return tableName + " " + chunk;
+	}
+}
@@ -0,0 +1,315 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A control table in the target pgsql database, holding every chunk of a migration. Any number of worker processes,
+ * on any number of hosts, claim chunks from it with leases. A worker keeps its leases alive with heartbeats, and a
+ * chunk whose lease has expired (its worker died) is handed out again.
+ * Requires pgsql 9.5 or later for SKIP LOCKED.
+ * @author adam
+ */
+public class ChunkLeaseTable {
+
+	private static final String CONTROL_SCHEMA = "mysql2pgsql";
+	/**
+	 * A chunk that has failed this many times is marked as failed instead of being handed out again
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+	private final String pgsqlUrl;
+	private final String pgsqlUser;
+	private final String pgsqlPassword;
+	private final String table;
+	private final int leaseSeconds;
+	private final Map<Integer, Shard> shards = new HashMap<>();
+
+	/**
+	 * @param pgsqlUrl
+	 * @param pgsqlUser
+	 * @param pgsqlPassword
+	 * @param pgsqlSchema the schema being migrated to, each schema gets its own control table
+	 * @param leaseSeconds how long a lease is valid without a heartbeat
+	 */
+	public ChunkLeaseTable(String pgsqlUrl, String pgsqlUser, String pgsqlPassword, String pgsqlSchema, int leaseSeconds) {
+		this.pgsqlUrl = pgsqlUrl;
+		this.pgsqlUser = pgsqlUser;
+		this.pgsqlPassword = pgsqlPassword;
+		this.table = String.format("\"%s\".\"%s_chunks\"", CONTROL_SCHEMA, pgsqlSchema);
+		this.leaseSeconds = leaseSeconds;
+	}
+
+	public int getLeaseSeconds() {
+		return leaseSeconds;
+	}
+
+	/**
+	 * @param shards the shards being consolidated, by which the claimed chunks are told where to be read from. The
+	 * coordinator and all workers must be given the same list
+	 */
+	public void setShards(List<Shard> shards) {
+		this.shards.clear();
+		for (Shard shard : shards) {
+			this.shards.put(shard.getId(), shard);
+		}
+	}
+
+	private Connection createConnection() throws SQLException {
+		return DriverManager.getConnection(pgsqlUrl, pgsqlUser, pgsqlPassword);
+	}
+
+	/**
+	 * (Re)creates the control table and fills it with all chunks of the plan, in scheduling order
+	 * @param plan
+	 * @throws SQLException
+	 */
+	public void publish(MigrationPlan plan) throws SQLException {
+		Connection con = null;
+		Statement stmt = null;
+		PreparedStatement ps = null;
+		try {
+			con = createConnection();
+			con.setAutoCommit(false);
+			stmt = con.createStatement();
+			stmt.execute("CREATE SCHEMA IF NOT EXISTS \"" + CONTROL_SCHEMA + "\"");
+			stmt.execute("DROP TABLE IF EXISTS " + table);
+			stmt.execute("CREATE TABLE " + table + " (\n"
+					+ "\tid bigserial PRIMARY KEY,\n"
+					+ "\ttable_name text NOT NULL,\n"
+					+ "\tshard_id integer,\n"
+					+ "\tpartition_name text,\n"
+					+ "\tcol_name text,\n"
+					+ "\trange_min bigint,\n"
+					+ "\trange_max bigint,\n"
+					+ "\trange_unique boolean,\n"
+					+ "\tavg_row_length bigint NOT NULL,\n"
+					+ "\tstatus text NOT NULL DEFAULT 'pending',\n"
+					+ "\tlease_owner text,\n"
+					+ "\tlease_expires timestamp with time zone,\n"
+					+ "\tattempts integer NOT NULL DEFAULT 0,\n"
+					+ "\trows bigint,\n"
+					+ "\terror text\n"
+					+ ")");
+			ps = con.prepareStatement("INSERT INTO " + table + " (table_name, partition_name, col_name, range_min, range_max, avg_row_length, shard_id, range_unique) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+			for (TablePlan tablePlan : plan.getTables()) {
+				for (TableChunk chunk : tablePlan.getChunks()) {
+					NumericColumnRange range = chunk.getRange();
+					ps.setString(1, tablePlan.getTableName());
+					ps.setString(2, chunk.getPartition());
+					if (range != null) {
+						ps.setString(3, range.getColName());
+						ps.setLong(4, range.getMin());
+						ps.setLong(5, range.getMax());
+						ps.setBoolean(8, range.isUnique());
+					} else {
+						ps.setNull(3, Types.VARCHAR);
+						ps.setNull(4, Types.BIGINT);
+						ps.setNull(5, Types.BIGINT);
+						ps.setNull(8, Types.BOOLEAN);
+					}
+					ps.setLong(6, tablePlan.getStats().getAvgRowLength());
+					if (chunk.getShard() != null) {
+						ps.setInt(7, chunk.getShard().getId());
+					} else {
+						ps.setNull(7, Types.INTEGER);
+					}
+					ps.addBatch();
+				}
+			}
+			ps.executeBatch();
+			con.commit();
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(con);
+		}
+	}
+
+	/**
+	 * Claims the first chunk that is pending or whose lease has expired
+	 * @param owner identifies the worker process
+	 * @return the claimed chunk, or null if there currently is none to claim
+	 * @throws SQLException
+	 */
+	public ChunkLease claim(String owner) throws SQLException {
+		Connection con = null;
+		PreparedStatement ps = null;
+		try {
+			con = createConnection();
+			ps = con.prepareStatement(""
+					+ "UPDATE " + table + " SET status = 'leased', lease_owner = ?, lease_expires = now() + ? * interval '1 second', attempts = attempts + 1\n"
+					+ "WHERE id = (\n"
+					+ "\tSELECT id FROM " + table + "\n"
+					+ "\tWHERE status = 'pending' OR (status = 'leased' AND lease_expires < now())\n"
+					+ "\tORDER BY id LIMIT 1 FOR UPDATE SKIP LOCKED)\n"
+					+ "RETURNING id, table_name, shard_id, partition_name, col_name, range_min, range_max, range_unique, avg_row_length, attempts");
+			ps.setString(1, owner);
+			ps.setInt(2, leaseSeconds);
+			ResultSet rs = ps.executeQuery();
+			if (!rs.next()) {
+				return null;
+			}
+			String colName = rs.getString("col_name");
+			NumericColumnRange range = colName == null ? null : new NumericColumnRange(colName, rs.getLong("range_min"), rs.getLong("range_max"), rs.getBoolean("range_unique"));
+			int shardId = rs.getInt("shard_id");
+			Shard shard = null;
+			if (!rs.wasNull()) {
+				shard = shards.get(shardId);
+				if (shard == null) {
+					throw new SQLException("Chunk " + rs.getLong("id") + " is of shard " + shardId + ", which this worker wasn't given");
+				}
+			}
+			TableChunk chunk = new TableChunk(rs.getString("partition_name"), range, 0, shard);
+			return new ChunkLease(rs.getLong("id"), rs.getString("table_name"), chunk, rs.getLong("avg_row_length"), rs.getInt("attempts"));
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(con);
+		}
+	}
+
+	/**
+	 * Extends all leases held by a worker process
+	 * @param owner
+	 * @return the number of extended leases
+	 * @throws SQLException
+	 */
+	public int heartbeat(String owner) throws SQLException {
+		Connection con = null;
+		PreparedStatement ps = null;
+		try {
+			con = createConnection();
+			ps = con.prepareStatement("UPDATE " + table + " SET lease_expires = now() + ? * interval '1 second' WHERE status = 'leased' AND lease_owner = ?");
+			ps.setInt(1, leaseSeconds);
+			ps.setString(2, owner);
+			return ps.executeUpdate();
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(con);
+		}
+	}
+
+	/**
+	 * The fence of the transactions loading a leased chunk, which the control table has to be in the same database as.
+	 * It only holds while the worker still holds the lease, so a worker whose lease expired and was claimed by another
+	 * worker can't commit rows that the other worker loads as well. The transaction of the whole chunk marks the chunk
+	 * as done along with its rows, so a chunk is never loaded but still pending. The transactions of the parts of a
+	 * chunk split up by dead lettering renew the lease instead, the chunk is marked as done by
+	 * {@link #complete(ChunkLease, String, long)} once all of them are in
+	 * @param lease
+	 * @param owner
+	 * @return the fence to give the sink session loading the chunk
+	 */
+	public CommitFence fence(final ChunkLease lease, final String owner) {
+		return new CommitFence() {
+			@Override
+			public boolean holds(Connection con, TableChunk chunk) throws SQLException {
+				PreparedStatement ps = null;
+				try {
+					if (chunk == lease.getChunk()) {
+						ps = con.prepareStatement("UPDATE " + table + " SET status = 'done', lease_expires = NULL WHERE id = ? AND lease_owner = ? AND status = 'leased'");
+						ps.setLong(1, lease.getId());
+						ps.setString(2, owner);
+					} else {
+						ps = con.prepareStatement("UPDATE " + table + " SET lease_expires = now() + ? * interval '1 second' WHERE id = ? AND lease_owner = ? AND status = 'leased'");
+						ps.setInt(1, leaseSeconds);
+						ps.setLong(2, lease.getId());
+						ps.setString(3, owner);
+					}
+					return ps.executeUpdate() == 1;
+				} finally {
+					JdbcUtils.cleanup(ps);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Marks a chunk as done and records its rows. A chunk loaded in one transaction was marked as done by its
+	 * {@link #fence(ChunkLease, String)} already
+	 * @param lease
+	 * @param owner
+	 * @param rows the number of transferred rows
+	 * @return false if the lease had expired and the chunk was claimed by someone else
+	 * @throws SQLException
+	 */
+	public boolean complete(ChunkLease lease, String owner, long rows) throws SQLException {
+		Connection con = null;
+		PreparedStatement ps = null;
+		try {
+			con = createConnection();
+			ps = con.prepareStatement("UPDATE " + table + " SET status = 'done', rows = ?, lease_expires = NULL WHERE id = ? AND lease_owner = ? AND status IN ('leased', 'done')");
+			ps.setLong(1, rows);
+			ps.setLong(2, lease.getId());
+			ps.setString(3, owner);
+			return ps.executeUpdate() == 1;
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(con);
+		}
+	}
+
+	/**
+	 * Gives a chunk back right away when this worker failed to transfer it, instead of letting the lease expire. After
+	 * {@link #MAX_ATTEMPTS} attempts the chunk is marked as failed
+	 * @param lease
+	 * @param owner
+	 * @param error why the transfer failed
+	 * @throws SQLException
+	 */
+	public void abandon(ChunkLease lease, String owner, String error) throws SQLException {
+		Connection con = null;
+		PreparedStatement ps = null;
+		try {
+			con = createConnection();
+			ps = con.prepareStatement("UPDATE " + table + " SET status = CASE WHEN attempts >= ? THEN 'failed' ELSE 'pending' END, lease_owner = NULL, lease_expires = NULL, error = ?\n"
+					+ "WHERE id = ? AND lease_owner = ? AND status = 'leased'");
+			ps.setInt(1, MAX_ATTEMPTS);
+			ps.setString(2, error);
+			ps.setLong(3, lease.getId());
+			ps.setString(4, owner);
+			ps.executeUpdate();
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(con);
+		}
+	}
+
+	/**
+	 * @return the number of chunks still pending or leased
+	 * @throws SQLException
+	 */
+	public long remaining() throws SQLException {
+		return count("status IN ('pending', 'leased')");
+	}
+
+	/**
+	 * @return the number of chunks that failed too many times
+	 * @throws SQLException
+	 */
+	public long failed() throws SQLException {
+		return count("status = 'failed'");
+	}
+
+	private long count(String where) throws SQLException {
+		Connection con = null;
+		Statement stmt = null;
+		try {
+			con = createConnection();
+			stmt = con.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + table + " WHERE " + where);
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(con);
+		}
+	}
+}
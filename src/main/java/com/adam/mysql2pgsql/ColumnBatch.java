@@ -0,0 +1,421 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Gathers the rows set on it column by column: numbers and booleans in primitive arrays, text as UTF-8 and binary
+ * values as bytes in one array per column with the end offset of each value, and NULLs in a bitmap per column. A full
+ * batch is handed to a {@link CopyRowWriter}, which encodes it a column at a time in tight loops over the arrays,
+ * instead of dispatching on the type of every single value.
+ * <p>
+ * Streams and large values are kept by reference and their rows are encoded one at a time. The arrays are reused
+ * from batch to batch and from chunk to chunk, so a steady transfer allocates nothing for them.
+ * @author adam
+ */
+class ColumnBatch implements RowWriter {
+
+	static final byte NONE = 0;
+	static final byte LONG = 1;
+	static final byte DOUBLE = 2;
+	static final byte BOOLEAN = 3;
+	static final byte TEXT = 4;
+	static final byte BINARY = 5;
+	/**
+	 * Enough rows for the loops over a column to pay off, few enough for the arrays of each column to stay in the CPU
+	 * caches
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+	/**
+	 * Text and binary values larger than this are kept by reference instead of being copied into the batch
+	 */
+	static final int LARGE_VALUE = 8 * 1024;
+	/**
+	 * A batch is encoded once its text and binary values take this many bytes, even if it has room for more rows
+	 */
+	private static final int MAX_VALUE_BYTES = 256 * 1024;
+
+	private final int capacity;
+	private final long[] deferred;
+	private Column[] columns = new Column[0];
+	private CopyRowWriter encoder;
+	private int columnCount;
+	private int rows;
+	private int valuesSet;
+	private int valueBytes;
+
+	/**
+	 * @param capacity the number of rows encoded together
+	 */
+	ColumnBatch(int capacity) {
+		this.capacity = capacity;
+		this.deferred = new long[(capacity + 63) / 64];
+	}
+
+	/**
+	 * Starts gathering the rows of another chunk
+	 * @param encoder where the rows are encoded
+	 * @param columnCount the number of columns of each row
+	 */
+	void reset(CopyRowWriter encoder, int columnCount) {
+		this.encoder = encoder;
+		this.columnCount = columnCount;
+		if (columns.length < columnCount) {
+			Column[] grown = Arrays.copyOf(columns, columnCount);
+			for (int i = columns.length; i < columnCount; i++) {
+				grown[i] = new Column(capacity);
+			}
+			columns = grown;
+		}
+		for (int i = 0; i < columnCount; i++) {
+			columns[i].kind = NONE;
+			columns[i].nullType = 0;
+			columns[i].textType = 0;
+		}
+		clear();
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	int getColumnCount() {
+		return columnCount;
+	}
+
+	Column getColumn(int position) {
+		return columns[position - 1];
+	}
+
+	/**
+	 * @return true if the row has a stream or a large value, which is encoded on its own
+	 */
+	boolean isDeferred(int row) {
+		return (deferred[row >> 6] & (1L << row)) != 0;
+	}
+
+	@Override
+	public void setNull(int position, int sqlType) throws SQLException {
+		Column column = columns[position - 1];
+		column.nullType = sqlType;
+		column.nulls[rows >> 6] |= 1L << rows;
+		column.end(rows);
+		valuesSet++;
+	}
+
+	@Override
+	public void setString(int position, String value) throws SQLException {
+		Column column = begin(position, TEXT);
+		if (value.length() > LARGE_VALUE / 3) {
+			defer(column, value);
+			return;
+		}
+		int start = column.start(rows);
+		column.ensure(start + 3 * value.length());
+		byte[] bytes = column.bytes;
+		int end = start;
+		int len = value.length();
+		boolean special = false;
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				bytes[end++] = (byte) c;
+				//Control characters, tab, newline and carriage return among them, and the backslash
+				special |= c < 0x20 | c == '\\';
+			} else if (c < 0x800) {
+				bytes[end++] = (byte) (0xc0 | (c >> 6));
+				bytes[end++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				bytes[end++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[end++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[end++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[end++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				//A lone surrogate is replaced, as String.getBytes would do
+				bytes[end++] = '?';
+			} else {
+				bytes[end++] = (byte) (0xe0 | (c >> 12));
+				bytes[end++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[end++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		column.ends[rows] = end;
+		if (special) {
+			column.special[rows >> 6] |= 1L << rows;
+		}
+		valueBytes += end - start;
+	}
+
+	@Override
+	public void setText(int position, String value, int sqlType) throws SQLException {
+		setString(position, value);
+		columns[position - 1].textType = sqlType;
+	}
+
+	@Override
+	public void setLong(int position, long value) throws SQLException {
+		begin(position, LONG).longs[rows] = value;
+	}
+
+	@Override
+	public void setInt(int position, int value) throws SQLException {
+		setLong(position, value);
+	}
+
+	@Override
+	public void setDouble(int position, double value) throws SQLException {
+		begin(position, DOUBLE).doubles[rows] = value;
+	}
+
+	@Override
+	public void setBoolean(int position, boolean value) throws SQLException {
+		begin(position, BOOLEAN).longs[rows] = value ? 1 : 0;
+	}
+
+	@Override
+	public void setBytes(int position, byte[] value) throws SQLException {
+		Column column = begin(position, BINARY);
+		if (value.length > LARGE_VALUE) {
+			defer(column, value);
+			return;
+		}
+		int start = column.start(rows);
+		column.ensure(start + value.length);
+		System.arraycopy(value, 0, column.bytes, start, value.length);
+		column.ends[rows] = start + value.length;
+		valueBytes += value.length;
+	}
+
+	@Override
+	public void setBinaryStream(int position, InputStream value, int length) throws SQLException {
+		defer(begin(position, NONE), value);
+		columns[position - 1].streamLengths[rows] = length;
+	}
+
+	@Override
+	public void setCharacterStream(int position, Reader value, int length) throws SQLException {
+		defer(begin(position, NONE), value);
+		columns[position - 1].streamLengths[rows] = length;
+	}
+
+	@Override
+	public void addRow() throws SQLException {
+		if (valuesSet != columnCount) {
+			throw new SQLException("Row has " + valuesSet + " of " + columnCount + " values set");
+		}
+		valuesSet = 0;
+		rows++;
+		if (rows == capacity || valueBytes >= MAX_VALUE_BYTES) {
+			encode();
+		}
+	}
+
+	/**
+	 * Encodes the rows gathered so far and sends them
+	 */
+	@Override
+	public void flush() throws SQLException {
+		encode();
+		encoder.flush();
+	}
+
+	/**
+	 * Drops the rows not yet encoded and closes the encoder
+	 */
+	@Override
+	public void close() throws SQLException {
+		clear();
+		encoder.close();
+	}
+
+	/**
+	 * Sets the values of a row one by one on another writer, e.g. for a row that can't be encoded with the others
+	 */
+	void replayRow(int row, RowWriter target) throws SQLException {
+		for (int position = 1; position <= columnCount; position++) {
+			Column column = columns[position - 1];
+			Object reference = column.references != null ? column.references[row] : null;
+			if (column.isNull(row)) {
+				target.setNull(position, column.nullType);
+			} else if (reference instanceof InputStream) {
+				target.setBinaryStream(position, (InputStream) reference, column.streamLengths[row]);
+			} else if (reference instanceof Reader) {
+				target.setCharacterStream(position, (Reader) reference, column.streamLengths[row]);
+			} else if (reference instanceof byte[]) {
+				target.setBytes(position, (byte[]) reference);
+			} else if (reference instanceof String) {
+				setText(target, position, column, (String) reference);
+			} else {
+				switch (column.kind) {
+					case LONG:
+						target.setLong(position, column.longs[row]);
+						break;
+					case DOUBLE:
+						target.setDouble(position, column.doubles[row]);
+						break;
+					case BOOLEAN:
+						target.setBoolean(position, column.longs[row] != 0);
+						break;
+					case TEXT:
+						setText(target, position, column, new String(column.bytes, column.start(row), column.ends[row] - column.start(row), StandardCharsets.UTF_8));
+						break;
+					case BINARY:
+						target.setBytes(position, Arrays.copyOfRange(column.bytes, column.start(row), column.ends[row]));
+						break;
+					default:
+						throw new SQLException("No value set at position " + position);
+				}
+			}
+		}
+	}
+
+	private static void setText(RowWriter target, int position, Column column, String value) throws SQLException {
+		if (column.textType != 0) {
+			target.setText(position, value, column.textType);
+		} else {
+			target.setString(position, value);
+		}
+	}
+
+	private void encode() throws SQLException {
+		if (rows > 0) {
+			encoder.addRows(this);
+		}
+		clear();
+	}
+
+	private void clear() {
+		int words = (rows + 63) / 64 + 1;
+		for (int i = 0; i < columnCount; i++) {
+			Column column = columns[i];
+			Arrays.fill(column.nulls, 0, Math.min(words, column.nulls.length), 0);
+			Arrays.fill(column.special, 0, Math.min(words, column.special.length), 0);
+			if (column.references != null) {
+				Arrays.fill(column.references, 0, Math.min(rows + 1, capacity), null);
+			}
+		}
+		Arrays.fill(deferred, 0, Math.min(words, deferred.length), 0);
+		rows = 0;
+		valuesSet = 0;
+		valueBytes = 0;
+	}
+
+	/**
+	 * @return the column to set a value of the given kind in, which must be the kind of its earlier values
+	 */
+	private Column begin(int position, byte kind) throws SQLException {
+		Column column = columns[position - 1];
+		if (kind != NONE && column.kind != kind) {
+			if (column.kind != NONE) {
+				throw new SQLException("Column at position " + position + " has values of kind " + column.kind + ", not " + kind);
+			}
+			column.kind = kind;
+			column.allocate();
+			if (column.ends != null) {
+				//The earlier rows of the batch are NULL or deferred, without bytes
+				Arrays.fill(column.ends, 0, rows, 0);
+			}
+		}
+		column.end(rows);
+		valuesSet++;
+		return column;
+	}
+
+	private void defer(Column column, Object value) {
+		if (column.references == null) {
+			column.references = new Object[capacity];
+			column.streamLengths = new int[capacity];
+		}
+		column.references[rows] = value;
+		deferred[rows >> 6] |= 1L << rows;
+	}
+
+	/**
+	 * The values of one column, only the arrays of its kind are used
+	 */
+	static class Column {
+
+		final long[] nulls;
+		/**
+		 * The text values that may have characters to escape
+		 */
+		final long[] special;
+		final int capacity;
+		byte kind;
+		int nullType;
+		int textType;
+		long[] longs;
+		double[] doubles;
+		/**
+		 * The UTF-8 text or binary values, one after the other
+		 */
+		byte[] bytes;
+		/**
+		 * The end offset in {@link #bytes} of the value of each row
+		 */
+		int[] ends;
+		Object[] references;
+		int[] streamLengths;
+
+		Column(int capacity) {
+			this.capacity = capacity;
+			this.nulls = new long[(capacity + 63) / 64];
+			this.special = new long[(capacity + 63) / 64];
+		}
+
+		boolean isNull(int row) {
+			return (nulls[row >> 6] & (1L << row)) != 0;
+		}
+
+		boolean isSpecial(int row) {
+			return (special[row >> 6] & (1L << row)) != 0;
+		}
+
+		int start(int row) {
+			return row > 0 ? ends[row - 1] : 0;
+		}
+
+		private void allocate() {
+			switch (kind) {
+				case LONG:
+				case BOOLEAN:
+					if (longs == null) {
+						longs = new long[capacity];
+					}
+					break;
+				case DOUBLE:
+					if (doubles == null) {
+						doubles = new double[capacity];
+					}
+					break;
+				default:
+					if (ends == null) {
+						ends = new int[capacity];
+						bytes = new byte[1024];
+					}
+			}
+		}
+
+		/**
+		 * Makes the value of a row, so far, take no bytes
+		 * @return the end offset of the value of the row
+		 */
+		private int end(int row) {
+			if (ends == null || row < 0) {
+				return 0;
+			}
+			ends[row] = start(row);
+			return ends[row];
+		}
+
+		private void ensure(int length) {
+			if (bytes.length < length) {
+				bytes = Arrays.copyOf(bytes, Math.max(length, 2 * bytes.length));
+			}
+		}
+	}
+}
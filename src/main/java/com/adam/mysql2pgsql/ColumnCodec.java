@@ -0,0 +1,18 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+
+/**
+ * Moves a single column value of the current row from a row source to a row sink
+ * @author adam
+ */
+interface ColumnCodec {
+
+	/**
+	 * @param rows the rows read, positioned on the row to transfer
+	 * @param position the column position, which is the same in both the read and the written row
+	 * @param row the row written
+	 * @throws SQLException
+	 */
+	void transfer(RowReader rows, int position, RowWriter row) throws SQLException;
+}
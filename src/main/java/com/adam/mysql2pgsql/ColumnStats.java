@@ -0,0 +1,245 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Types;
+
+/**
+ * Statistics of a column, gathered from the rows as they are transferred: the null count, the min and max of numeric
+ * and temporal columns, and the approximate number of distinct values. The values are taken as they are written to
+ * the sink, see {@link ProfilingRowWriter}, so nothing is read from the source twice. BLOB/TEXT columns aren't
+ * profiled, most of their values are streamed.
+ * @author adam
+ */
+public class ColumnStats {
+
+	private enum Kind {
+
+		INTEGER, DECIMAL, TEMPORAL, OTHER, NONE
+	}
+	private final String name;
+	private final Kind kind;
+	private long nulls;
+	private long minLong = Long.MAX_VALUE;
+	private long maxLong = Long.MIN_VALUE;
+	private double minDouble = Double.POSITIVE_INFINITY;
+	private double maxDouble = Double.NEGATIVE_INFINITY;
+	private String minString;
+	private String maxString;
+	private final DistinctSketch distinct = new DistinctSketch();
+
+	ColumnStats(String name, int sqlType) {
+		this.name = name.toLowerCase();
+		this.kind = kindOf(sqlType);
+	}
+
+	private static Kind kindOf(int sqlType) {
+		switch (sqlType) {
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return Kind.INTEGER;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+				return Kind.DECIMAL;
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+				return Kind.TEMPORAL;
+			case Types.LONGVARCHAR:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+			case Types.CLOB:
+				return Kind.NONE;
+			default:
+				return Kind.OTHER;
+		}
+	}
+
+	/**
+	 * @return empty statistics for each column of the rows, by position - 1
+	 */
+	static ColumnStats[] forColumns(RowReader rows) {
+		ColumnStats[] stats = new ColumnStats[rows.getColumnCount()];
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new ColumnStats(rows.getColumnName(i + 1), rows.getColumnType(i + 1));
+		}
+		return stats;
+	}
+
+	void addNull() {
+		if (kind != Kind.NONE) {
+			nulls++;
+		}
+	}
+
+	void addLong(long value) {
+		switch (kind) {
+			case INTEGER:
+				minLong = Math.min(minLong, value);
+				maxLong = Math.max(maxLong, value);
+				distinct.add(DistinctSketch.hash(value));
+				return;
+			case DECIMAL:
+				addDouble(value);
+				return;
+			case NONE:
+				return;
+			default:
+				distinct.add(DistinctSketch.hash(value));
+		}
+	}
+
+	void addDouble(double value) {
+		if (kind == Kind.NONE) {
+			return;
+		}
+		if (kind == Kind.DECIMAL) {
+			minDouble = Math.min(minDouble, value);
+			maxDouble = Math.max(maxDouble, value);
+		}
+		distinct.add(DistinctSketch.hash(Double.doubleToLongBits(value)));
+	}
+
+	void addBoolean(boolean value) {
+		if (kind != Kind.NONE) {
+			distinct.add(DistinctSketch.hash(value ? 1 : 0));
+		}
+	}
+
+	/**
+	 * @param value the text of any value, e.g. of a decimal as sent by mysql or a date on the form yyyy-MM-dd HH:mm:ss
+	 */
+	void addText(String value) {
+		if (kind == Kind.NONE) {
+			return;
+		}
+		distinct.add(DistinctSketch.hash(value));
+		if (kind == Kind.DECIMAL) {
+			try {
+				double number = parseDecimal(value);
+				minDouble = Math.min(minDouble, number);
+				maxDouble = Math.max(maxDouble, number);
+			} catch (NumberFormatException e) {
+			}
+		} else if (kind == Kind.TEMPORAL) {
+			//Mysql sends dates as yyyy-MM-dd HH:mm:ss, which sorts as text
+			if (minString == null || value.compareTo(minString) < 0) {
+				minString = value;
+			}
+			if (maxString == null || value.compareTo(maxString) > 0) {
+				maxString = value;
+			}
+		}
+	}
+
+	/**
+	 * Parses a plain decimal as mysql sends it, e.g. -123.45, without the garbage {@link Double#parseDouble} leaves
+	 * behind for every value. Precise enough for a min and max, anything else is left to Double.parseDouble
+	 */
+	static double parseDecimal(String text) {
+		int length = text.length();
+		int i = length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+		long digits = 0;
+		int digitCount = 0;
+		int scale = -1;
+		for (; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '.' && scale < 0) {
+				scale = 0;
+				continue;
+			}
+			if (c < '0' || c > '9' || digitCount == 18) {
+				return Double.parseDouble(text);
+			}
+			digits = digits * 10 + (c - '0');
+			digitCount++;
+			if (scale >= 0) {
+				scale++;
+			}
+		}
+		if (digitCount == 0) {
+			return Double.parseDouble(text);
+		}
+		double value = scale > 0 ? digits / Math.pow(10, scale) : digits;
+		return text.charAt(0) == '-' ? -value : value;
+	}
+
+	void addBytes(byte[] value) {
+		if (kind != Kind.NONE) {
+			distinct.add(DistinctSketch.hash(value));
+		}
+	}
+
+	void merge(ColumnStats other) {
+		nulls += other.nulls;
+		minLong = Math.min(minLong, other.minLong);
+		maxLong = Math.max(maxLong, other.maxLong);
+		minDouble = Math.min(minDouble, other.minDouble);
+		maxDouble = Math.max(maxDouble, other.maxDouble);
+		if (other.minString != null && (minString == null || other.minString.compareTo(minString) < 0)) {
+			minString = other.minString;
+		}
+		if (other.maxString != null && (maxString == null || other.maxString.compareTo(maxString) > 0)) {
+			maxString = other.maxString;
+		}
+		distinct.merge(other.distinct);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isProfiled() {
+		return kind != Kind.NONE;
+	}
+
+	public long getNulls() {
+		return nulls;
+	}
+
+	/**
+	 * @return the max value of an integer column, or null if it has none or isn't an integer column
+	 */
+	public Long getMaxLong() {
+		return kind == Kind.INTEGER && maxLong >= minLong ? maxLong : null;
+	}
+
+	/**
+	 * @return the min value, null if there is none or it isn't tracked for the type of column
+	 */
+	public Object getMin() {
+		switch (kind) {
+			case INTEGER:
+				return maxLong >= minLong ? (Object) minLong : null;
+			case DECIMAL:
+				return maxDouble >= minDouble ? (Object) minDouble : null;
+			case TEMPORAL:
+				return minString;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @return the max value, null if there is none or it isn't tracked for the type of column
+	 */
+	public Object getMax() {
+		switch (kind) {
+			case INTEGER:
+				return getMaxLong();
+			case DECIMAL:
+				return maxDouble >= minDouble ? (Object) maxDouble : null;
+			case TEMPORAL:
+				return maxString;
+			default:
+				return null;
+		}
+	}
+
+	public long getDistinct() {
+		return distinct.estimate();
+	}
+}
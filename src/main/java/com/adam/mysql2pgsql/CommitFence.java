@@ -0,0 +1,26 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A condition checked in the transaction of a chunk right before it's committed, e.g. that the worker still holds the
+ * lease on the chunk. A worker that lost its claim while it was loading, say during a long GC pause, then can't commit
+ * rows that another worker is loading as well.
+ * @author adam
+ */
+public interface CommitFence {
+
+	/**
+	 * The SQL state of the failure of a chunk whose fence didn't hold. The chunk is rolled back and not retried
+	 */
+	String FENCED_STATE = "55M01";
+
+	/**
+	 * @param con the connection of the transaction of the chunk, anything done through it commits with the chunk
+	 * @param chunk the chunk being committed, the claimed chunk itself or a part of it
+	 * @return false if the chunk may not be committed
+	 * @throws SQLException
+	 */
+	boolean holds(Connection con, TableChunk chunk) throws SQLException;
+}
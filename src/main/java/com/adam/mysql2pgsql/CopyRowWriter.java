@@ -0,0 +1,606 @@
+package com.adam.mysql2pgsql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.Arrays;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Encodes rows in the text format of COPY ... FROM STDIN, straight into a reusable byte segment, and hands each full
+ * segment to the COPY stream of the driver, which writes it to the socket as it is. Numbers, strings and binary
+ * values are encoded without creating any objects, so a steady transfer allocates next to nothing per row. Large
+ * values bound as streams are encoded piece by piece and never held on the heap as a whole.
+ * <p>
+ * The values of a row must be set in column order, as COPY has no way to refer to a column by position. Rows
+ * gathered in a {@link ColumnBatch} are encoded a column at a time instead, see {@link #addRows(ColumnBatch)}.
+ * @author adam
+ */
+class CopyRowWriter implements RowWriter {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final int PIECE_SIZE = 8 * 1024;
+
+	private final CopyIn copyIn;
+	private final int columnCount;
+	private final byte[] segment;
+	private int length;
+	private int nextPosition = 1;
+	private byte[] bytePiece;
+	private char[] charPiece;
+	private int[] rowLengths = new int[0];
+	private int[] cursors = new int[0];
+	private byte[][] doubleTexts = new byte[0][];
+	private int[][] doubleEnds = new int[0][];
+
+	/**
+	 * @param copyIn the COPY stream to send the rows to
+	 * @param columnCount the number of columns of each row
+	 * @param segment the segment to encode the rows into
+	 */
+	CopyRowWriter(CopyIn copyIn, int columnCount, byte[] segment) {
+		this.copyIn = copyIn;
+		this.columnCount = columnCount;
+		this.segment = segment;
+	}
+
+	@Override
+	public void setNull(int position, int sqlType) throws SQLException {
+		beginValue(position);
+		put((byte) '\\');
+		put((byte) 'N');
+	}
+
+	@Override
+	public void setString(int position, String value) throws SQLException {
+		beginValue(position);
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				putCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+			} else {
+				putChar(c);
+			}
+		}
+	}
+
+	/**
+	 * The text is parsed by the type of the target column, just like a parameter of unspecified type
+	 */
+	@Override
+	public void setText(int position, String value, int sqlType) throws SQLException {
+		setString(position, value);
+	}
+
+	@Override
+	public void setLong(int position, long value) throws SQLException {
+		beginValue(position);
+		if (value == Long.MIN_VALUE) {
+			putAscii(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			put((byte) '-');
+			value = -value;
+		}
+		ensure(20);
+		int start = length;
+		do {
+			segment[length++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		//The digits were written least significant first
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte tmp = segment[i];
+			segment[i] = segment[j];
+			segment[j] = tmp;
+		}
+	}
+
+	@Override
+	public void setInt(int position, int value) throws SQLException {
+		setLong(position, value);
+	}
+
+	@Override
+	public void setDouble(int position, double value) throws SQLException {
+		beginValue(position);
+		putAscii(Double.toString(value));
+	}
+
+	@Override
+	public void setBoolean(int position, boolean value) throws SQLException {
+		beginValue(position);
+		put(value ? (byte) 't' : (byte) 'f');
+	}
+
+	/**
+	 * Encodes the value as a bytea hex literal, \\x followed by two hex digits per byte
+	 */
+	@Override
+	public void setBytes(int position, byte[] value) throws SQLException {
+		beginValue(position);
+		beginHex();
+		putHex(value, value.length);
+	}
+
+	@Override
+	public void setBinaryStream(int position, InputStream value, int length) throws SQLException {
+		beginValue(position);
+		beginHex();
+		if (bytePiece == null) {
+			bytePiece = new byte[PIECE_SIZE];
+		}
+		try {
+			int read;
+			while ((read = value.read(bytePiece)) != -1) {
+				putHex(bytePiece, read);
+			}
+		} catch (IOException ex) {
+			throw new SQLException("Could not read binary value at position " + position, ex);
+		}
+	}
+
+	@Override
+	public void setCharacterStream(int position, Reader value, int length) throws SQLException {
+		beginValue(position);
+		if (charPiece == null) {
+			charPiece = new char[PIECE_SIZE];
+		}
+		try {
+			char pendingHigh = 0;
+			int read;
+			while ((read = value.read(charPiece)) != -1) {
+				for (int i = 0; i < read; i++) {
+					char c = charPiece[i];
+					if (pendingHigh != 0) {
+						if (Character.isLowSurrogate(c)) {
+							putCodePoint(Character.toCodePoint(pendingHigh, c));
+							pendingHigh = 0;
+							continue;
+						}
+						putChar(pendingHigh);
+						pendingHigh = 0;
+					}
+					//A surrogate pair may be split over two pieces
+					if (Character.isHighSurrogate(c)) {
+						pendingHigh = c;
+					} else {
+						putChar(c);
+					}
+				}
+			}
+			if (pendingHigh != 0) {
+				putChar(pendingHigh);
+			}
+		} catch (IOException ex) {
+			throw new SQLException("Could not read text value at position " + position, ex);
+		}
+	}
+
+	@Override
+	public void addRow() throws SQLException {
+		if (nextPosition != columnCount + 1) {
+			throw new SQLException("Row has " + (nextPosition - 1) + " of " + columnCount + " values set");
+		}
+		put((byte) '\n');
+		nextPosition = 1;
+	}
+
+	/**
+	 * Encodes the rows of a batch a column at a time. The encoded length of each value is measured first, column by
+	 * column, which gives every row its place in the segment. Then the values of each column are written into their
+	 * places, in one loop per column over its array. Rows with a stream or a large value, and rows larger than the
+	 * segment, are encoded one at a time through the setters.
+	 */
+	void addRows(ColumnBatch batch) throws SQLException {
+		if (nextPosition != 1) {
+			throw new SQLException("Row has " + (nextPosition - 1) + " of " + columnCount + " values set");
+		}
+		int rows = batch.getRows();
+		if (rowLengths.length < rows) {
+			rowLengths = new int[rows];
+			cursors = new int[rows];
+		}
+		Arrays.fill(rowLengths, 0, rows, 0);
+		for (int position = 1; position <= columnCount; position++) {
+			measure(batch.getColumn(position), position, rows);
+		}
+		int first = 0;
+		int groupLength = 0;
+		for (int row = 0; row < rows; row++) {
+			if (batch.isDeferred(row) || rowLengths[row] > segment.length) {
+				encodeRows(batch, first, row);
+				batch.replayRow(row, this);
+				addRow();
+				first = row + 1;
+				groupLength = 0;
+			} else if (length + groupLength + rowLengths[row] > segment.length) {
+				encodeRows(batch, first, row);
+				flush();
+				first = row;
+				groupLength = rowLengths[row];
+			} else {
+				groupLength += rowLengths[row];
+			}
+		}
+		encodeRows(batch, first, rows);
+	}
+
+	/**
+	 * Adds the encoded length of the value of each row in a column, with its separator, to the length of the row
+	 */
+	private void measure(ColumnBatch.Column column, int position, int rows) {
+		int[] lengths = rowLengths;
+		switch (column.kind) {
+			case ColumnBatch.LONG: {
+				long[] longs = column.longs;
+				for (int row = 0; row < rows; row++) {
+					lengths[row] += 1 + (column.isNull(row) ? 2 : digits(longs[row]));
+				}
+				break;
+			}
+			case ColumnBatch.DOUBLE: {
+				//Rendered right away, the text of a double is as costly to measure as to produce
+				if (doubleTexts.length < position) {
+					doubleTexts = Arrays.copyOf(doubleTexts, columnCount);
+					doubleEnds = Arrays.copyOf(doubleEnds, columnCount);
+				}
+				if (doubleEnds[position - 1] == null || doubleEnds[position - 1].length < rows) {
+					doubleEnds[position - 1] = new int[rowLengths.length];
+					doubleTexts[position - 1] = new byte[24 * rowLengths.length];
+				}
+				byte[] texts = doubleTexts[position - 1];
+				int[] ends = doubleEnds[position - 1];
+				double[] doubles = column.doubles;
+				int end = 0;
+				for (int row = 0; row < rows; row++) {
+					if (column.isNull(row)) {
+						lengths[row] += 3;
+					} else {
+						String text = Double.toString(doubles[row]);
+						for (int i = 0; i < text.length(); i++) {
+							texts[end++] = (byte) text.charAt(i);
+						}
+						lengths[row] += 1 + text.length();
+					}
+					ends[row] = end;
+				}
+				break;
+			}
+			case ColumnBatch.TEXT: {
+				byte[] bytes = column.bytes;
+				int[] ends = column.ends;
+				int start = 0;
+				for (int row = 0; row < rows; row++) {
+					int end = ends[row];
+					int len = column.isNull(row) ? 2 : end - start;
+					if (column.isSpecial(row)) {
+						for (int i = start; i < end; i++) {
+							byte b = bytes[i];
+							if (b == '\\' || b == '\t' || b == '\n' || b == '\r') {
+								len++;
+							}
+						}
+					}
+					lengths[row] += 1 + len;
+					start = end;
+				}
+				break;
+			}
+			case ColumnBatch.BINARY: {
+				int[] ends = column.ends;
+				int start = 0;
+				for (int row = 0; row < rows; row++) {
+					lengths[row] += 1 + (column.isNull(row) ? 2 : 3 + 2 * (ends[row] - start));
+					start = ends[row];
+				}
+				break;
+			}
+			default:
+				//Booleans, and columns of only NULLs and deferred values
+				for (int row = 0; row < rows; row++) {
+					lengths[row] += column.isNull(row) ? 3 : 2;
+				}
+		}
+	}
+
+	/**
+	 * Writes the rows from first to last, exclusive, into the segment, which has room for them
+	 */
+	private void encodeRows(ColumnBatch batch, int first, int last) {
+		if (first == last) {
+			return;
+		}
+		int[] starts = cursors;
+		int pos = length;
+		for (int row = first; row < last; row++) {
+			starts[row] = pos;
+			pos += rowLengths[row];
+		}
+		byte[] out = segment;
+		for (int position = 1; position <= columnCount; position++) {
+			ColumnBatch.Column column = batch.getColumn(position);
+			byte separator = position < columnCount ? (byte) '\t' : (byte) '\n';
+			switch (column.kind) {
+				case ColumnBatch.LONG: {
+					long[] longs = column.longs;
+					for (int row = first; row < last; row++) {
+						int p = column.isNull(row) ? putNull(out, starts[row]) : putLong(out, starts[row], longs[row]);
+						out[p++] = separator;
+						starts[row] = p;
+					}
+					break;
+				}
+				case ColumnBatch.DOUBLE: {
+					byte[] texts = doubleTexts[position - 1];
+					int[] ends = doubleEnds[position - 1];
+					for (int row = first; row < last; row++) {
+						int p = starts[row];
+						if (column.isNull(row)) {
+							p = putNull(out, p);
+						} else {
+							int start = row > 0 ? ends[row - 1] : 0;
+							System.arraycopy(texts, start, out, p, ends[row] - start);
+							p += ends[row] - start;
+						}
+						out[p++] = separator;
+						starts[row] = p;
+					}
+					break;
+				}
+				case ColumnBatch.BOOLEAN: {
+					long[] longs = column.longs;
+					for (int row = first; row < last; row++) {
+						int p = starts[row];
+						if (column.isNull(row)) {
+							p = putNull(out, p);
+						} else {
+							out[p++] = longs[row] != 0 ? (byte) 't' : (byte) 'f';
+						}
+						out[p++] = separator;
+						starts[row] = p;
+					}
+					break;
+				}
+				case ColumnBatch.TEXT: {
+					byte[] bytes = column.bytes;
+					int[] ends = column.ends;
+					for (int row = first; row < last; row++) {
+						int p = starts[row];
+						if (column.isNull(row)) {
+							p = putNull(out, p);
+						} else if (!column.isSpecial(row)) {
+							int start = column.start(row);
+							System.arraycopy(bytes, start, out, p, ends[row] - start);
+							p += ends[row] - start;
+						} else {
+							for (int i = column.start(row), end = ends[row]; i < end; i++) {
+								byte b = bytes[i];
+								switch (b) {
+									case '\\':
+										out[p++] = '\\';
+										out[p++] = '\\';
+										break;
+									case '\t':
+										out[p++] = '\\';
+										out[p++] = 't';
+										break;
+									case '\n':
+										out[p++] = '\\';
+										out[p++] = 'n';
+										break;
+									case '\r':
+										out[p++] = '\\';
+										out[p++] = 'r';
+										break;
+									default:
+										out[p++] = b;
+								}
+							}
+						}
+						out[p++] = separator;
+						starts[row] = p;
+					}
+					break;
+				}
+				case ColumnBatch.BINARY: {
+					byte[] bytes = column.bytes;
+					int[] ends = column.ends;
+					for (int row = first; row < last; row++) {
+						int p = starts[row];
+						if (column.isNull(row)) {
+							p = putNull(out, p);
+						} else {
+							out[p++] = '\\';
+							out[p++] = '\\';
+							out[p++] = 'x';
+							for (int i = column.start(row), end = ends[row]; i < end; i++) {
+								out[p++] = HEX[(bytes[i] >> 4) & 0xf];
+								out[p++] = HEX[bytes[i] & 0xf];
+							}
+						}
+						out[p++] = separator;
+						starts[row] = p;
+					}
+					break;
+				}
+				default:
+					for (int row = first; row < last; row++) {
+						int p = putNull(out, starts[row]);
+						out[p++] = separator;
+						starts[row] = p;
+					}
+			}
+		}
+		length = pos;
+	}
+
+	private static int putNull(byte[] out, int p) {
+		out[p++] = '\\';
+		out[p++] = 'N';
+		return p;
+	}
+
+	/**
+	 * @return the number of characters of a long in decimal, with its sign
+	 */
+	private static int digits(long value) {
+		if (value == Long.MIN_VALUE) {
+			return 20;
+		}
+		long v = Math.abs(value);
+		int digits = 1;
+		for (long limit = 10; digits < 19 && v >= limit; limit *= 10) {
+			digits++;
+		}
+		return value < 0 ? digits + 1 : digits;
+	}
+
+	private static int putLong(byte[] out, int p, long value) {
+		int end = p + digits(value);
+		if (value == Long.MIN_VALUE) {
+			String text = Long.toString(value);
+			for (int i = 0; i < text.length(); i++) {
+				out[p + i] = (byte) text.charAt(i);
+			}
+			return end;
+		}
+		if (value < 0) {
+			out[p] = '-';
+			value = -value;
+		}
+		int i = end;
+		do {
+			out[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		return end;
+	}
+
+	/**
+	 * Sends the encoded rows that are still in the segment
+	 */
+	@Override
+	public void flush() throws SQLException {
+		if (length > 0) {
+			copyIn.writeToCopy(segment, 0, length);
+			length = 0;
+		}
+	}
+
+	/**
+	 * Sends the remaining rows and ends the COPY, so the transaction can be committed
+	 * @return the number of rows copied
+	 */
+	long end() throws SQLException {
+		flush();
+		return copyIn.endCopy();
+	}
+
+	/**
+	 * Cancels the COPY if it was never ended, e.g. after a failure, so the connection can be rolled back and reused
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (copyIn.isActive()) {
+			copyIn.cancelCopy();
+		}
+	}
+
+	private void beginValue(int position) throws SQLException {
+		if (position != nextPosition) {
+			throw new SQLException("Values must be set in column order, got column " + position + " instead of " + nextPosition);
+		}
+		if (position > 1) {
+			put((byte) '\t');
+		}
+		nextPosition++;
+	}
+
+	private void beginHex() throws SQLException {
+		//The backslash of \x is itself escaped in the text format
+		ensure(3);
+		segment[length++] = '\\';
+		segment[length++] = '\\';
+		segment[length++] = 'x';
+	}
+
+	private void putHex(byte[] bytes, int len) throws SQLException {
+		for (int i = 0; i < len; i++) {
+			ensure(2);
+			segment[length++] = HEX[(bytes[i] >> 4) & 0xf];
+			segment[length++] = HEX[bytes[i] & 0xf];
+		}
+	}
+
+	/**
+	 * Puts a char as UTF-8, escaping the characters that have a meaning in the text format of COPY. A lone surrogate
+	 * is replaced by '?', as String.getBytes would do
+	 */
+	private void putChar(char c) throws SQLException {
+		ensure(3);
+		if (c < 0x80) {
+			switch (c) {
+				case '\\':
+					segment[length++] = '\\';
+					segment[length++] = '\\';
+					break;
+				case '\t':
+					segment[length++] = '\\';
+					segment[length++] = 't';
+					break;
+				case '\n':
+					segment[length++] = '\\';
+					segment[length++] = 'n';
+					break;
+				case '\r':
+					segment[length++] = '\\';
+					segment[length++] = 'r';
+					break;
+				default:
+					segment[length++] = (byte) c;
+			}
+		} else if (c < 0x800) {
+			segment[length++] = (byte) (0xc0 | (c >> 6));
+			segment[length++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isSurrogate(c)) {
+			segment[length++] = '?';
+		} else {
+			segment[length++] = (byte) (0xe0 | (c >> 12));
+			segment[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			segment[length++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void putCodePoint(int codePoint) throws SQLException {
+		ensure(4);
+		segment[length++] = (byte) (0xf0 | (codePoint >> 18));
+		segment[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+		segment[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+		segment[length++] = (byte) (0x80 | (codePoint & 0x3f));
+	}
+
+	private void putAscii(String value) throws SQLException {
+		ensure(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			segment[length++] = (byte) value.charAt(i);
+		}
+	}
+
+	private void put(byte b) throws SQLException {
+		ensure(1);
+		segment[length++] = b;
+	}
+
+	/**
+	 * Sends the segment if it has no room for that many more bytes. A row may span several segments
+	 */
+	private void ensure(int bytes) throws SQLException {
+		if (length + bytes > segment.length) {
+			flush();
+		}
+	}
+}
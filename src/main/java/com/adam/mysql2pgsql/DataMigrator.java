@@ -2,408 +2,721 @@ package com.adam.mysql2pgsql;
 
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.lang.management.ManagementFactory;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Timestamp;
 import java.sql.Types;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * The transfer engine: moves the rows of each chunk of a plan from a {@link RowSource} to a {@link RowSink}, on as
+ * many workers as there are connection permits, with retries, throttling and column statistics. It reports its
+ * progress to a {@link MigrationListener} and doesn't need a console, so it can be embedded in other programs.
+ * @author adam
+ */
 public class DataMigrator {
 
 	private static final Logger LOG = Logger.getLogger(DataMigrator.class.getName());
 	private static final long BATCH_SIZE = 10000;
-	private Long MAX_QUERY_SIZE = 20_000_000L;
-	private final String mysqlPassword;
-	private final String mysqlSchema;
-	private final String pgsqlPassword;
-	private final String pgsqlSchema;
-	private final Set<String> onlyMigrateTables;
-	private final String mysqlUrl;
-	private final String mysqlUser;
-	private final String pgsqlUrl;
-	private final String pgsqlUser;
+	/**
+	 * BLOB/TEXT values larger than this are streamed through a spool file instead of being held on the heap
+	 */
+	private static final long LOB_STREAM_THRESHOLD = 4_000_000L;
+	private static final int LOB_PIECE_SIZE = 64 * 1024;
+	/**
+	 * How many rows to read between reports to the {@link SourceGovernor}
+	 */
+	private static final int GOVERNOR_INTERVAL = 1000;
+	/**
+	 * How often a lease worker without a chunk checks for chunks of dead workers
+	 */
+	private static final long LEASE_POLL_MILLIS = 5000;
+	/**
+	 * Backoff before the first retry of a failed chunk, doubled for every further retry
+	 */
+	private static final long RETRY_BACKOFF_MILLIS = 1000;
+	private static final long RETRY_MAX_BACKOFF_MILLIS = 60_000;
+	static final int DEFAULT_CHUNK_RETRIES = 5;
+	private final RowSource source;
+	private final RowSink sink;
+	private final Map<Integer, ColumnCodec> codecs;
+	private final RunMetrics runMetrics;
+	private final SourceGovernor governor;
+	private int chunkRetries = DEFAULT_CHUNK_RETRIES;
+	private boolean profiling = true;
+	private final Map<String, TableProfile> profiles = new ConcurrentHashMap<>();
+	private MigrationListener listener = new PrintWriterListener(new PrintWriter(System.out));
+	private MemoryBudget memoryBudget = new MemoryBudget(0);
+	private DeadLetterFiles deadLetters;
+	private final AtomicLong deadLetterRows = new AtomicLong();
+	private final Set<String> deadLetterTables = ConcurrentHashMap.newKeySet();
 
 	/**
-	 * @param mysqlUrl
-	 * @param mysqlUser
-	 * @param mysqlPassword
-	 * @param mysqlSchema
-	 * @param pgsqlUrl
-	 * @param pgsqlUser
-	 * @param pgsqlPassword
-	 * @param pgsqlSchema
-	 * @param onlyMigrateTables
+	 * @param source where the rows are read from, e.g. {@link MysqlRowSource}
+	 * @param sink where the rows are written to, e.g. {@link PgsqlRowSink}
+	 * @param zeroDatePolicy how to transfer mysql zero dates (0000-00-00)
+	 * @param runMetrics where the observed transfer rates are recorded
+	 * @param governor limits the load put on the source
 	 */
 	public DataMigrator(
-			String mysqlUrl,
-			String mysqlUser,
-			String mysqlPassword,
-			String mysqlSchema,
-			String pgsqlUrl,
-			String pgsqlUser,
-			String pgsqlPassword,
-			String pgsqlSchema,
-			Set<String> onlyMigrateTables) {
-		this.mysqlPassword = mysqlPassword;
-		this.mysqlSchema = mysqlSchema;
-		this.pgsqlPassword = pgsqlPassword;
-		this.pgsqlSchema = pgsqlSchema;
-		this.onlyMigrateTables = onlyMigrateTables;
-		this.mysqlUrl = mysqlUrl;
-		this.mysqlUser = mysqlUser;
-		this.pgsqlUrl = pgsqlUrl;
-		this.pgsqlUser = pgsqlUser;
+			RowSource source,
+			RowSink sink,
+			ZeroDatePolicy zeroDatePolicy,
+			RunMetrics runMetrics,
+			SourceGovernor governor) {
+		this.source = source;
+		this.sink = sink;
+		this.runMetrics = runMetrics;
+		this.governor = governor;
+		this.codecs = new HashMap<>();
+		ColumnCodec decimalCodec = new DecimalCodec();
+		codecs.put(Types.DECIMAL, decimalCodec);
+		codecs.put(Types.NUMERIC, decimalCodec);
+		codecs.put(Types.DATE, new TemporalCodec(Types.DATE, zeroDatePolicy));
+		codecs.put(Types.TIMESTAMP, new TemporalCodec(Types.TIMESTAMP, zeroDatePolicy));
+		codecs.put(Types.TIME, new TemporalCodec(Types.TIME, zeroDatePolicy));
+	}
+
+	/**
+	 * @param chunkRetries how many times a failed chunk is retried before the transfer fails
+	 */
+	public void setChunkRetries(int chunkRetries) {
+		this.chunkRetries = chunkRetries;
 	}
 
-	private Connection createMysqlConnection() throws SQLException {
-		return DriverManager.getConnection(mysqlUrl, mysqlUser, mysqlPassword);
+	/**
+	 * @param memoryBudget the memory all workers together may hold for rows read but not yet sent, by default
+	 * unlimited
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
 	}
 
-	private Connection createPgsqlConnection() throws SQLException {
-		return DriverManager.getConnection(pgsqlUrl, pgsqlUser, pgsqlPassword);
+	/**
+	 * @param deadLetters where to write the rows that the sink refuses, or null to fail their chunks, which is the
+	 * default
+	 */
+	public void setDeadLetters(DeadLetterFiles deadLetters) {
+		this.deadLetters = deadLetters;
+	}
 
+	/**
+	 * @return the number of rows written to the dead letter files
+	 */
+	public long getDeadLetterRows() {
+		return deadLetterRows.get();
 	}
 
 	/**
-	 * @return A map of all tables (and their estimated sizes) in the current mysql schema, ignoring some obvious ingorables
+	 * @return the tables with rows written to the dead letter files, which are incomplete in the sink
+	 */
+	public Set<String> getDeadLetterTables() {
+		return deadLetterTables;
+	}
+
+	/**
+	 * @param listener where the progress is reported, by default it's printed to stdout
+	 */
+	public void setListener(MigrationListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param profiling whether to gather column statistics of the transferred rows
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	/**
+	 * @return the column statistics of each table transferred by this process, by table name
+	 */
+	public Map<String, TableProfile> getProfiles() {
+		return profiles;
+	}
+
+	private TableProfile getProfile(String tableName) {
+		TableProfile profile = profiles.get(tableName);
+		if (profile == null) {
+			profiles.putIfAbsent(tableName, new TableProfile(tableName));
+			profile = profiles.get(tableName);
+		}
+		return profile;
+	}
+
+	/**
+	 * Transfers one stream of chunks of a table from mysql to postgres: all of its chunks, or those of one partition
+	 * @param tablePlan the table to transfer
+	 * @param stream the chunks to transfer, in order
 	 * @throws SQLException
 	 */
-	private Map<String, Long> getMysqlTableNames() throws SQLException {
-		Connection mysqlCon = null;
-		PreparedStatement stmt = null;
-		Map<String, Long> tableNamesAndSizes = new TreeMap<>();
-		try {
-			mysqlCon = createMysqlConnection();
-			mysqlCon.setCatalog(mysqlSchema);
-			stmt = mysqlCon.prepareStatement(""
-					+ "SELECT table_name, data_length\n"
-					+ "FROM information_schema.tables \n"
-					+ "WHERE table_schema = ? \n"
-					+ "AND table_type = 'BASE TABLE';"); //Where clause addded to prevent views from appearing in the resultset
-			stmt.setString(1, mysqlSchema);
-			ResultSet rs = stmt.executeQuery();
-			while (rs.next()) {
-				String tableName = rs.getString("table_name");
-				Long sizeBytes = rs.getLong("data_length");
-				if (tableName == null || tableName.length() == 0) {
-					continue;
+	void transferStream(final TablePlan tablePlan, List<TableChunk> stream) throws SQLException {
+		String tableName = tablePlan.getTableName();
+		String partition = stream.get(0).getPartition();
+		Shard shard = stream.get(0).getShard();
+		String streamName = partition != null ? tableName + " partition " + partition : tableName;
+		if (shard != null) {
+			streamName += " of " + shard;
+		}
+		try (RowSource.Session sourceSession = source.open(); RowSink.Session sinkSession = sink.open()) {
+			long startTime = System.currentTimeMillis();
+
+			long totRows = 0;
+			int batches = 0;
+			NumericColumnRange first = stream.get(0).getRange();
+			if (first != null) {
+				listener.message("Will transfer table " + streamName + " in batches of " + (first.getMax() - first.getMin()) + " rows per batch. Estim nr batches: " + stream.size());
+				for (TableChunk chunk : stream) {
+					checkCancelled(tableName);
+					totRows += transferChunk(sourceSession, sinkSession, tableName, tablePlan.getStats().getAvgRowLength(), chunk, false);
+					batches++;
+					listener.message(streamName + ": batch nr " + batches + ", " + totRows + ", speed is: " + ((int) (((double) totRows * 1000) / (System.currentTimeMillis() - startTime)) + " r/s"));
 				}
-				String tableNameLc = tableName.toLowerCase();
-				if (onlyMigrateTables != null && !onlyMigrateTables.contains(tableNameLc)) {
-					continue;
+			} else {
+				listener.message("Will transfer table " + streamName + " in one batch.");
+				totRows = transferChunk(sourceSession, sinkSession, tableName, tablePlan.getStats().getAvgRowLength(), stream.get(0), false);
+				batches++;
+			}
+			long duration = (System.currentTimeMillis() - startTime);
+			long dataLength = 0;
+			for (TableChunk chunk : stream) {
+				dataLength += chunk.getDataLength();
+			}
+			runMetrics.recordTransfer(dataLength, duration);
+			listener.message("Finished transfering table " + streamName + ": " + totRows + " rows in " + duration + "ms, " + ((int) (((double) totRows * 1000) / duration) + " r/s in " + batches + " batches"));
+		}
+	}
+
+	/**
+	 * Transfers one chunk of a table, see {@link #loadChunk}
+	 * @param sourceSession the source session of the worker
+	 * @param sinkSession the sink session of the worker
+	 * @param dirty true if rows of the chunk may be in the sink already, e.g. committed by a worker that died
+	 * @return the number of transferred rows
+	 */
+	private int transferChunk(RowSource.Session sourceSession, RowSink.Session sinkSession, String tableName, long avgRowLength, TableChunk chunk, boolean dirty) throws SQLException {
+		long startTime = System.currentTimeMillis();
+		int rows = loadChunk(sourceSession, sinkSession, tableName, avgRowLength, chunk, dirty);
+		listener.chunkTransferred(tableName, chunk, rows, System.currentTimeMillis() - startTime);
+		return rows;
+	}
+
+	/**
+	 * Transfers one chunk of a table in one sink transaction, retrying it with backoff on failure. A failed attempt
+	 * is rolled back. If it failed while committing, the rows it may have committed are deleted before the retry, so
+	 * a chunk is never loaded twice. The delete is part of the transaction of the retry, so a worker that lost its
+	 * claim on the chunk can't delete rows the new claimant has committed: the fence stops both together.
+	 * <p>
+	 * With dead letter files, a chunk the sink refuses because of its data is split in two halves of its pk range,
+	 * each transferred the same way. That goes on until the rows that fail are found one by one, which are written to
+	 * the dead letter file of the table, while all others are loaded.
+	 * @param dirty true if rows of the chunk may be in the sink already
+	 * @return the number of transferred rows
+	 * @throws SQLException the failure of the last attempt, once the retries are used up
+	 */
+	private int loadChunk(RowSource.Session sourceSession, RowSink.Session sinkSession, String tableName, long avgRowLength, TableChunk chunk, boolean dirty) throws SQLException {
+		for (int attempt = 1;; attempt++) {
+			AtomicLong committedRows = new AtomicLong();
+			try {
+				if (dirty) {
+					//Rolled back with the attempt if it fails, so the chunk stays dirty until an attempt commits
+					sinkSession.delete(tableName, chunk);
 				}
-				if (tableNameLc.startsWith("tmp_")
-						|| tableNameLc.startsWith("temp_")
-						|| tableNameLc.contains("_bak_")
-						|| tableNameLc.endsWith("_bak")
-						|| tableNameLc.contains("_bck_")
-						|| tableNameLc.endsWith("_bck")
-						|| tableNameLc.contains("_old_")
-						|| tableNameLc.endsWith("_old")) {
-					continue;
+				return transferChunkOnce(sourceSession, sinkSession, tableName, avgRowLength, chunk, committedRows);
+			} catch (SQLException e) {
+				sinkSession.rollback();
+				if (isFenced(e)) {
+					//Another worker has the chunk now, what this one loaded was rolled back and what it committed before is
+					//deleted by the other worker
+					throw e;
+				}
+				dirty |= committedRows.get() > 0;
+				//Only a range of a whole pk narrows down to single rows, a bad row can't be told apart from the other rows
+				//of its value of the first column of a composite pk
+				if (deadLetters != null && chunk.getRange() != null && chunk.getRange().isUnique() && isDataError(e)) {
+					return bisectChunk(sourceSession, sinkSession, tableName, avgRowLength, chunk, dirty, e);
+				}
+				if (attempt > chunkRetries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				long backoff = retryBackoffMillis(attempt);
+				LOG.log(Level.WARNING, String.format("Chunk %s of %s failed, retry %d of %d in %dms", chunk, tableName, attempt, chunkRetries, backoff), e);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw e;
 				}
-				tableNamesAndSizes.put(tableName, sizeBytes);
 			}
-			return tableNamesAndSizes;
-		} finally {
-			cleanup(mysqlCon);
-			cleanup(stmt);
 		}
 	}
 
-	private void cleanup(Statement stmt) {
-		try {
-			if (stmt != null) {
-				stmt.close();
+	/**
+	 * @return true if the chunk wasn't committed because the worker lost its claim on it
+	 */
+	static boolean isFenced(SQLException e) {
+		return CommitFence.FENCED_STATE.equals(e.getSQLState());
+	}
+
+	/**
+	 * @return true if the sink refused the data itself, e.g. a value out of range or invalid text, which fails again
+	 * on a retry
+	 */
+	static boolean isDataError(SQLException e) {
+		for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+			String state = cause.getSQLState();
+			//Class 22 is data exception, class 23 integrity constraint violation
+			if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+				return true;
 			}
-		} catch (Exception e) {
 		}
+		return false;
 	}
 
-	private void cleanup(Connection con) {
-		try {
-			if (con != null) {
-				con.close();
+	/**
+	 * Transfers the two halves of a chunk that failed on its data separately, or writes its row to the dead letter
+	 * file once the chunk is a single pk value
+	 * @param dirty true if rows of the chunk may be in the sink already, each half then deletes its own
+	 * @param e the failure of the chunk
+	 * @return the number of transferred rows
+	 */
+	private int bisectChunk(RowSource.Session sourceSession, RowSink.Session sinkSession, String tableName, long avgRowLength, TableChunk chunk, boolean dirty, SQLException e) throws SQLException {
+		NumericColumnRange range = chunk.getRange();
+		if (range.getMin() == range.getMax()) {
+			if (dirty) {
+				sinkSession.delete(tableName, chunk);
+				sinkSession.commit();
 			}
-		} catch (Exception e) {
+			writeDeadLetters(sourceSession, tableName, chunk, e);
+			return 0;
 		}
+		long mid = range.getMin() + ((range.getMax() - range.getMin()) >>> 1);
+		TableChunk lower = chunk.withRange(new NumericColumnRange(range.getColName(), range.getMin(), mid, range.isUnique()), chunk.getDataLength() / 2);
+		TableChunk upper = chunk.withRange(new NumericColumnRange(range.getColName(), mid + 1, range.getMax(), range.isUnique()), chunk.getDataLength() / 2);
+		return loadChunk(sourceSession, sinkSession, tableName, avgRowLength, lower, dirty)
+				+ loadChunk(sourceSession, sinkSession, tableName, avgRowLength, upper, dirty);
 	}
 
 	/**
-	 * Transfers all data from the specified table in mysql to postgres
-	 * @param tableName the name of the table to transfer
-	 * @throws SQLException
+	 * Reads the rows of a chunk again and writes them to the dead letter file of the table, with the error
 	 */
-	void transferTable(final String tableName, final Long totTableSize) throws SQLException {
-		Connection mysqlCon = null;
-		Connection pgsqlCon = null;
+	private void writeDeadLetters(RowSource.Session sourceSession, String tableName, TableChunk chunk, SQLException e) throws SQLException {
+		String error = e.getMessage();
+		for (SQLException next = e.getNextException(); next != null; next = next.getNextException()) {
+			error += " " + next.getMessage();
+		}
+		RowReader rows = null;
+		CopyRowWriter row = null;
+		LobSpool lobSpool = new LobSpool(LOB_STREAM_THRESHOLD, LOB_PIECE_SIZE);
 		try {
-			long startTime = System.currentTimeMillis();
-			mysqlCon = createMysqlConnection();
-			pgsqlCon = createPgsqlConnection();
-
-			PrintWriter writer = System.console().writer();
-			NumericColumnRange range = null;
-			String numericPkColumn = findNumericPkColumn(mysqlCon, tableName);
-			if (numericPkColumn != null && totTableSize > MAX_QUERY_SIZE) {
-				PreparedStatement ps = null;
-				try {
-					ps = mysqlCon.prepareStatement(String.format("SELECT MIN(%s) AS min, MAX(%s) AS max FROM `%s`.`%s`;", numericPkColumn, numericPkColumn, mysqlSchema, tableName));
-					ResultSet rs = ps.executeQuery();
-					if (rs.next()) {
-						range = new NumericColumnRange(numericPkColumn, rs.getLong("min"), rs.getLong("max"));
-					}
-				} finally {
-					cleanup(ps);
-				}
+			rows = sourceSession.read(tableName, chunk);
+			int columnCount = rows.getColumnCount();
+			List<String> columnNames = new ArrayList<>();
+			for (int i = 1; i <= columnCount; i++) {
+				columnNames.add(rows.getColumnName(i));
 			}
-			//
-			long totRows = 0;
-			int batches = 0;
-			if (range != null) {
-				long nrQueries = Math.round(totTableSize / MAX_QUERY_SIZE);
-				long nrRowsPerQuery = (long) Math.ceil(((double) (range.getMax() - range.getMin())) / nrQueries);
-				writer.println("Will transfer table " + tableName + " in batches of " + nrRowsPerQuery + " rows per batch. Estim nr batches: " + nrQueries);
-				for (long pkValue = range.getMin(); pkValue <= range.getMax(); pkValue += nrRowsPerQuery + 1) {
-					totRows += transferTableData(mysqlCon, pgsqlCon, tableName, new NumericColumnRange(numericPkColumn, pkValue, pkValue + nrRowsPerQuery));
-					batches++;
-					writer.println(tableName + ": batch nr " + batches + ", " + totRows + ", speed is: " + ((int) (((double) totRows * 1000) / (System.currentTimeMillis() - startTime)) + " r/s"));
+			row = deadLetters.write(tableName, columnNames);
+			while (rows.next()) {
+				for (int position = 1; position <= columnCount; position++) {
+					transferColumn(rows.getColumnType(position), position, rows, row, lobSpool);
 				}
-			} else {
-				writer.println("Will transfer table " + tableName + " in one batch.");
-				totRows = transferTableData(mysqlCon, pgsqlCon, tableName, null);
-				batches++;
+				row.setString(columnCount + 1, error);
+				row.addRow();
+				lobSpool.release();
 			}
-			long duration = (System.currentTimeMillis() - startTime);
-			writer.println("Finished transfering table " + tableName + ": " + totRows + " rows in " + duration + "ms, " + ((int) (((double) totRows * 1000) / duration) + " r/s in " + batches + " batches"));
+			long failed = row.end();
+			sourceSession.endRead(0, null);
+			deadLetterRows.addAndGet(failed);
+			if (failed > 0) {
+				deadLetterTables.add(tableName);
+			}
+			LOG.log(Level.WARNING, "{0} rows of {1} {2} could not be loaded, written to {3}: {4}",
+					new Object[]{failed, tableName, chunk, deadLetters.getFile(tableName).getAbsolutePath(), error});
+		} catch (SQLException ex) {
+			sourceSession.endRead(0, ex);
+			throw ex;
+		} finally {
+			lobSpool.release();
+			if (rows != null) {
+				rows.close();
+			}
+			if (row != null) {
+				row.close();
+			}
+		}
+	}
+
+	/**
+	 * @return exponential backoff with jitter, so chunks failing together don't retry together
+	 */
+	static long retryBackoffMillis(int attempt) {
+		long max = Math.min(RETRY_MAX_BACKOFF_MILLIS, RETRY_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+		return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+	}
+
+	/**
+	 * Transfers one chunk of a table once the governor allows another chunk to be read. The source is told how the
+	 * read went, so e.g. the mysql source can leave out a failed endpoint and have the retry read from another one.
+	 * @param committedRows set to the number of rows of the chunk once their commit has been sent to the sink
+	 */
+	private int transferChunkOnce(RowSource.Session sourceSession, RowSink.Session sinkSession, String tableName, long avgRowLength, TableChunk chunk, AtomicLong committedRows) throws SQLException {
+		governor.beginChunk();
+		try {
+			int rows = transferTableData(sourceSession, sinkSession, tableName, chunk, avgRowLength, committedRows);
+			sourceSession.endRead(rows * avgRowLength, null);
+			return rows;
+		} catch (SQLException e) {
+			sourceSession.endRead(0, e);
+			throw e;
 		} finally {
-			cleanup(pgsqlCon);
-			cleanup(mysqlCon);
+			governor.endChunk();
 		}
 	}
 
 	/**
-	 * Transfers data from a mysql table to the corresponding table in pgsql, possibly with a pk range constraint
+	 * JDBC calls don't respond to interrupts, so a cancelled transfer stops at the next chunk or batch
+	 */
+	private static void checkCancelled(String tableName) throws SQLException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new SQLException("Transfer of " + tableName + " cancelled");
+		}
+	}
+
+	/**
+	 * Transfers a chunk of a table from the source to the sink. The rows of a partition are read from that partition
+	 * only, and written right into its child table
 	 * @param tableName name of the table to transfer
-	 * @param range a range constraint, may be null
+	 * @param chunk the partition and pk range to transfer
+	 * @param avgRowLength the average row length in mysql, used to account for read bytes
+	 * @param committedRows set to the number of transferred rows right before they are committed in the sink, so a
+	 * caller can tell if a failed transfer may have committed them
 	 * @return the number of transfered rows
 	 * @throws SQLException
 	 */
-	private int transferTableData(Connection mysqlCon, Connection pgsqlCon, String tableName, NumericColumnRange range) throws SQLException {
-		String sql;
-		if (range != null) {
-			sql = String.format("SELECT * FROM `%s`.`%s` WHERE %s BETWEEN ? AND ?", mysqlSchema, tableName, range.getColName());
-		} else {
-			sql = String.format("SELECT * FROM `%s`.`%s`", mysqlSchema, tableName);
-		}
-		PreparedStatement mysqlPs = null;
-		PreparedStatement pgsqlPs = null;
+	private int transferTableData(RowSource.Session sourceSession, RowSink.Session sinkSession, String tableName, TableChunk chunk, long avgRowLength, AtomicLong committedRows) throws SQLException {
+		RowReader rows = null;
+		ReservingRowWriter row = null;
+		LobSpool lobSpool = new LobSpool(LOB_STREAM_THRESHOLD, LOB_PIECE_SIZE);
 		try {
-			mysqlPs = mysqlCon.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			if (range != null) {
-				mysqlPs.setLong(1, range.getMin());
-				mysqlPs.setLong(2, range.getMax());
-			}
-			ResultSet mysqlRs = mysqlPs.executeQuery();
-			ResultSetMetaData metaData = mysqlRs.getMetaData();
-			int columnCount = metaData.getColumnCount();
-			Map<Integer, Integer> typeByPosition = new TreeMap<>();
-			Map<Integer, String> nameByPosition = new TreeMap<>();
+			FlightEvents.ChunkTransfer chunkEvent = new FlightEvents.ChunkTransfer(tableName, chunk);
+			chunkEvent.begin();
+			FlightEvents.ChunkQuery queryEvent = new FlightEvents.ChunkQuery(tableName, chunk);
+			queryEvent.begin();
+			rows = sourceSession.read(tableName, chunk);
+			queryEvent.commit();
+			int columnCount = rows.getColumnCount();
+			int[] types = new int[columnCount + 1];
+			List<String> columnNames = new ArrayList<>();
 			for (int i = 1; i <= columnCount; i++) {
-				typeByPosition.put(i, metaData.getColumnType(i));
-				nameByPosition.put(i, metaData.getColumnLabel(i));
+				types[i] = rows.getColumnType(i);
+				columnNames.add(rows.getColumnName(i));
+			}
+			RowWriter writer = sinkSession.write(tableName, chunk, columnNames);
+			//Each chunk gathers statistics of its own, merged into those of the table once the chunk is committed
+			ColumnStats[] columnStats = null;
+			if (profiling) {
+				columnStats = ColumnStats.forColumns(rows);
+				writer = new ProfilingRowWriter(writer, columnStats);
 			}
-			pgsqlCon.setAutoCommit(false);
-			String insertStmt = generateInsertStatement(pgsqlSchema, tableName, nameByPosition);
-			pgsqlPs = pgsqlCon.prepareStatement(insertStmt);
+			//A row takes about twice its mysql length once converted to java strings, plus the mysql row itself
+			row = new ReservingRowWriter(writer, memoryBudget, 3 * avgRowLength + 24 * columnCount);
 			int totCtr = 0;
 			int ctr = 0;
-			while (mysqlRs.next()) {
+			FlightEvents.BatchRead readEvent = beginBatchRead(tableName, chunk);
+			row.reserveRow();
+			while (rows.next()) {
+				long convertStart = readEvent.isEnabled() ? System.nanoTime() : 0;
 				for (int position = 1; position <= columnCount; position++) {
-					int type = typeByPosition.get(position);
-					String colName = nameByPosition.get(position);
-					transferColumn(type, position, mysqlRs, colName, pgsqlPs);
-
+					transferColumn(types[position], position, rows, row, lobSpool);
+				}
+				row.addRow();
+				if (convertStart != 0) {
+					readEvent.conversionTime += System.nanoTime() - convertStart;
 				}
-				pgsqlPs.addBatch();
 				ctr++;
 				totCtr++;
-				if (ctr % BATCH_SIZE == 0) {
-					pgsqlPs.executeBatch();
-					pgsqlCon.commit();
+				if (totCtr % GOVERNOR_INTERVAL == 0) {
+					governor.consumed(GOVERNOR_INTERVAL, GOVERNOR_INTERVAL * avgRowLength);
+				}
+				//A spooled value is bound as a stream, so it has to be sent before the next row is read. The batch is also
+				//sent early if the memory budget has no room for another row, so the worker holds nothing while it waits
+				if (ctr % BATCH_SIZE == 0 || lobSpool.hasPending() || !row.tryReserveRow()) {
+					checkCancelled(tableName);
+					commitBatchRead(readEvent, ctr, avgRowLength);
+					flushBatch(row, tableName, chunk, ctr);
+					lobSpool.release();
 					ctr = 0;
+					row.reserveRow();
+					readEvent = beginBatchRead(tableName, chunk);
 				}
 			}
 			if (ctr > 0) {
-				pgsqlPs.executeBatch();
-				pgsqlCon.commit();
+				commitBatchRead(readEvent, ctr, avgRowLength);
+				flushBatch(row, tableName, chunk, ctr);
 			}
+			//The whole chunk is one transaction, so a failed chunk leaves nothing behind
+			governor.consumed(totCtr % GOVERNOR_INTERVAL, (totCtr % GOVERNOR_INTERVAL) * avgRowLength);
+			sinkSession.finish();
+			//Only a failure of the commit itself may leave the rows committed
+			committedRows.set(totCtr);
+			FlightEvents.ChunkCommit commitEvent = new FlightEvents.ChunkCommit(tableName, chunk);
+			commitEvent.begin();
+			sinkSession.commit();
+			commitEvent.rows = totCtr;
+			commitEvent.commit();
+			if (columnStats != null) {
+				getProfile(tableName).merge(columnStats, totCtr);
+			}
+			chunkEvent.rows = totCtr;
+			chunkEvent.bytes = totCtr * avgRowLength;
+			chunkEvent.commit();
 			return totCtr;
 		} finally {
-			cleanup(mysqlPs);
-			cleanup(pgsqlPs);
+			lobSpool.release();
+			if (rows != null) {
+				rows.close();
+			}
+			if (row != null) {
+				row.close();
+			}
 		}
 	}
 
+	private static FlightEvents.BatchRead beginBatchRead(String tableName, TableChunk chunk) {
+		FlightEvents.BatchRead readEvent = new FlightEvents.BatchRead(tableName, chunk);
+		readEvent.begin();
+		return readEvent;
+	}
+
+	private static void commitBatchRead(FlightEvents.BatchRead readEvent, int rows, long avgRowLength) {
+		readEvent.rows = rows;
+		readEvent.bytes = rows * avgRowLength;
+		readEvent.commit();
+	}
+
+	private static void flushBatch(RowWriter row, String tableName, TableChunk chunk, int rows) throws SQLException {
+		FlightEvents.BatchFlush flushEvent = new FlightEvents.BatchFlush(tableName, chunk);
+		flushEvent.begin();
+		row.flush();
+		flushEvent.rows = rows;
+		flushEvent.commit();
+	}
+
 	/**
-	 * Tranfers all data from each table in the mysql DB to the postgres DB
-	 * @throws SQLException
+	 * Tranfers all data from each table in the mysql DB to the postgres DB. Every table, or every partition of a
+	 * partitioned table, runs in a task of its own, forked once one of {@link MigrationPlan#getParallelism()}
+	 * connection permits is free and holding it while it transfers. The first task to fail cancels the others.
+	 * @param plan the tables to transfer, in the order they should get the connection permits
+	 * @throws SQLException the first failure
 	 */
-	public void transferTables() throws SQLException {
-		PrintWriter writer = System.console().writer();
-		writer.println("Transfer tables called");
-		Map<String, Long> mysqlTableNames = getMysqlTableNames();
-		ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		Set<Future<?>> futures = new HashSet<>();
-		for (final String tableName : mysqlTableNames.keySet()) {
-			final Long size = mysqlTableNames.get(tableName);
-			Future<?> future = threadPool.submit(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						transferTable(tableName, size);
-					} catch (SQLException ex) {
-						LOG.log(Level.SEVERE, tableName, ex);
-						LOG.log(Level.WARNING, "", ex.getNextException());
-					} catch (Throwable th) {
-						LOG.log(Level.SEVERE, tableName, th);
+	public void transferTables(final MigrationPlan plan) throws SQLException {
+		final Semaphore connectionPermits = new Semaphore(plan.getParallelism(), true);
+		final AtomicInteger done = new AtomicInteger();
+		try (TransferScope scope = new TransferScope()) {
+			listener.message("Transfering " + plan.getTables().size() + " tables over " + plan.getParallelism() + " connections"
+					+ (scope.isVirtual() ? " on virtual threads" : ""));
+			tables:
+			for (final TablePlan tablePlan : plan.getTables()) {
+				Map<String, List<TableChunk>> streams = tablePlan.getStreams();
+				final AtomicInteger streamsLeft = new AtomicInteger(streams.size());
+				for (final List<TableChunk> stream : streams.values()) {
+					//The permit is taken before the task is forked, in plan order, so the largest tables go first and there
+					//are never more threads than permits, however many tables, partitions and shards there are. A task
+					//cancelled before it started never releases its permit, so stop waiting once a task has failed
+					if (!scope.acquire(connectionPermits)) {
+						break tables;
 					}
-				}
-			});
-			futures.add(future);
-		}
-		Object monitor = new Object();
-		int originalSize = futures.size();
-		while (!futures.isEmpty()) {
-			Iterator<Future<?>> futureIter = futures.iterator();
-			while (futureIter.hasNext()) {
-				Future<?> future = futureIter.next();
-				if (future.isDone()) {
-					futureIter.remove();
+					scope.fork(new Callable<Void>() {
+						@Override
+						public Void call() throws SQLException {
+							try {
+								transferStream(tablePlan, stream);
+							} catch (SQLException ex) {
+								LOG.log(Level.SEVERE, tablePlan.getTableName(), ex);
+								if (ex.getNextException() != null) {
+									LOG.log(Level.WARNING, "", ex.getNextException());
+								}
+								throw ex;
+							} finally {
+								connectionPermits.release();
+							}
+							if (streamsLeft.decrementAndGet() == 0) {
+								int tablesDone = done.incrementAndGet();
+								listener.message(tablesDone + " tables done, " + (plan.getTables().size() - tablesDone) + " out of " + plan.getTables().size() + " tables remaining...");
+								listener.tableTransferred(tablePlan.getTableName(), tablesDone, plan.getTables().size());
+							}
+							return null;
+						}
+					});
 				}
 			}
-			synchronized (monitor) {
+			scope.join();
+		}
+		runMetrics.completeTransfer();
+		listener.message("Memory: " + memoryBudget);
+		reportDeadLetters();
+	}
+
+	private void reportDeadLetters() {
+		if (deadLetterRows.get() > 0) {
+			listener.message(deadLetterRows.get() + " rows could not be loaded, see the files in " + deadLetters.getDir().getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Transfers chunks claimed from a lease table until no chunk is left, neither pending nor leased by another
+	 * worker. Any number of processes can do this at the same time against the same lease table.
+	 * @param leases the lease table, published by the coordinator
+	 * @param parallelism the number of chunks to transfer concurrently in this process
+	 * @throws SQLException if any chunk failed, by this process or another one
+	 */
+	public void transferLeasedChunks(final ChunkLeaseTable leases, int parallelism) throws SQLException {
+		final String owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+		listener.message("Transfering leased chunks as " + owner);
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					monitor.wait(1000);
-				} catch (InterruptedException ex) {
+					leases.heartbeat(owner);
+				} catch (SQLException ex) {
+					LOG.log(Level.WARNING, "Could not renew chunk leases", ex);
 				}
 			}
-			int done = originalSize - futures.size();
-			writer.println(done + " tables done, " + futures.size() + " out of " + originalSize + " tables remaining...");
+		}, Math.max(1, leases.getLeaseSeconds() / 3), Math.max(1, leases.getLeaseSeconds() / 3), TimeUnit.SECONDS);
+		try (TransferScope scope = new TransferScope()) {
+			for (int i = 0; i < parallelism; i++) {
+				scope.fork(new Callable<Void>() {
+					@Override
+					public Void call() throws SQLException {
+						transferLeasedChunks(leases, owner);
+						return null;
+					}
+				});
+			}
+			scope.join();
+		} finally {
+			heartbeat.shutdownNow();
+		}
+		runMetrics.completeTransfer();
+		listener.message("Memory: " + memoryBudget);
+		reportDeadLetters();
+		//Keys, indices and the swap must not be built over tables with chunks missing
+		long failed = leases.failed();
+		if (failed > 0) {
+			throw new SQLException(failed + " chunks failed, see the error column of the lease table");
 		}
-		threadPool.shutdown();
 	}
 
-	/**
-	 * Generates a full insert statement for a table, eg INSERT INTO "schema"."table"("col1", "col2") VALUES(?,?)
-	 * @param schemaName the db schema
-	 * @param tableName the name of the table
-	 * @param columnNameByPosition a map with all columns for the table
-	 * @return the SQL insert string
-	 */
-	private String generateInsertStatement(String schemaName, String tableName, Map<Integer, String> columnNameByPosition) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("INSERT INTO \"").append(schemaName).append("\".\"").append(tableName).append("\"");
-		Iterator<Integer> iterator = columnNameByPosition.keySet().iterator();
-		StringBuilder colNames = new StringBuilder();
-		StringBuilder questionMarks = new StringBuilder();
-
-		while (iterator.hasNext()) {
-			Integer colPosition = iterator.next();
-			String colName = columnNameByPosition.get(colPosition);
-			colNames.append("\"").append(colName.toLowerCase()).append("\"");
-			questionMarks.append("?");
-			if (iterator.hasNext()) {
-				colNames.append(", ");
-				questionMarks.append(", ");
+	private void transferLeasedChunks(ChunkLeaseTable leases, String owner) throws SQLException {
+		while (true) {
+			ChunkLease lease = leases.claim(owner);
+			if (lease == null) {
+				if (leases.remaining() == 0) {
+					return;
+				}
+				//Everything left is leased by other workers, wait in case one of them dies
+				try {
+					Thread.sleep(LEASE_POLL_MILLIS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Cancelled", ex);
+				}
+				continue;
+			}
+			long startTime = System.currentTimeMillis();
+			try (RowSource.Session sourceSession = source.open(); RowSink.Session sinkSession = sink.open()) {
+				sinkSession.setFence(leases.fence(lease, owner));
+				//An earlier worker may have committed the chunk without getting to mark it as done
+				int rows = transferChunk(sourceSession, sinkSession, lease.getTableName(), lease.getAvgRowLength(), lease.getChunk(), lease.getAttempts() > 1);
+				long duration = System.currentTimeMillis() - startTime;
+				runMetrics.recordTransfer(rows * lease.getAvgRowLength(), duration);
+				if (leases.complete(lease, owner, rows)) {
+					listener.message("Finished transfering chunk " + lease + ": " + rows + " rows in " + duration + "ms");
+				} else {
+					LOG.log(Level.WARNING, "Lease on chunk {0} expired before it was done, another worker is reloading it", lease);
+				}
+			} catch (SQLException ex) {
+				if (isFenced(ex)) {
+					LOG.log(Level.WARNING, "Lease on chunk {0} expired before it was committed, another worker is loading it", lease);
+					continue;
+				}
+				LOG.log(Level.SEVERE, lease.toString(), ex);
+				leases.abandon(lease, owner, ex.getMessage());
 			}
 		}
-		sb.append("(").append(colNames).append(") VALUES (").append(questionMarks).append(")");
-		return sb.toString();
 	}
 
-	private void transferColumn(int type, int position, ResultSet mysqlRs, String colName, PreparedStatement pgsqlPs) throws SQLException {
+	private void transferColumn(int type, int position, RowReader rows, RowWriter row, LobSpool lobSpool) throws SQLException {
+		ColumnCodec codec = codecs.get(type);
+		if (codec != null) {
+			codec.transfer(rows, position, row);
+			return;
+		}
 		switch (type) {
-			case Types.DECIMAL:
 			case Types.DOUBLE:
 			case Types.REAL:
 			case Types.FLOAT: {
-				double value = mysqlRs.getDouble(colName);
+				double value = rows.getDouble(position);
 //								System.out.println(tableName + "." + colName + ": Getting from mysql: " + type + " " + metaData.getColumnTypeName(position) + " setting in pgsql: decimal");
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, Types.DECIMAL);
+				if (rows.wasNull()) {
+					row.setNull(position, Types.DECIMAL);
 				} else {
-					pgsqlPs.setDouble(position, value);
+					row.setDouble(position, value);
 				}
 				break;
 			}
 			case Types.BIT: {
-				boolean value = mysqlRs.getBoolean(colName);
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, Types.BIT);
+				boolean value = rows.getBoolean(position);
+				if (rows.wasNull()) {
+					row.setNull(position, Types.BIT);
 				} else {
-					pgsqlPs.setBoolean(position, value);
+					row.setBoolean(position, value);
 				}
 				break;
 			}
 			case Types.INTEGER:
 			case Types.SMALLINT:
 			case Types.TINYINT: {
-				int value = mysqlRs.getInt(colName);
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, Types.INTEGER);
+				int value = rows.getInt(position);
+				if (rows.wasNull()) {
+					row.setNull(position, Types.INTEGER);
 				} else {
-					pgsqlPs.setInt(position, value);
+					row.setInt(position, value);
 				}
 				break;
 			}
 			case Types.BIGINT: {
-				long value = mysqlRs.getLong(colName);
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, Types.BIGINT);
+				long value = rows.getLong(position);
+				if (rows.wasNull()) {
+					row.setNull(position, Types.BIGINT);
 				} else {
-					pgsqlPs.setLong(position, value);
+					row.setLong(position, value);
 				}
 				break;
 			}
-			case Types.DATE:
-			case Types.TIMESTAMP:
-			case Types.TIME: {
-				try {
-					Timestamp value = mysqlRs.getTimestamp(colName);
-					if (mysqlRs.wasNull()) {
-						pgsqlPs.setNull(position, Types.TIMESTAMP);
-					} else {
-						pgsqlPs.setTimestamp(position, value);
-					}
-				} catch (SQLException e) {
-					String message = e.getMessage();
-					if (message.startsWith("Value '") && message.endsWith("' can not be represented as java.sql.Timestamp")) {
-						pgsqlPs.setTimestamp(position, new Timestamp(0L));
-					} else {
-						throw e;
-					}
-				}
+			case Types.LONGVARCHAR: {
+				lobSpool.bindText(rows, position, row);
 				break;
 			}
 			case Types.VARCHAR:
-			case Types.LONGVARCHAR:
 			case Types.CHAR: {
-				String value = mysqlRs.getString(colName);
+				String value = rows.getString(position);
 				if (value != null) {
 					try {
 						String removeChars = new String(new byte[]{(byte) 0x00}, "utf-8");
@@ -413,50 +726,30 @@ public class DataMigrator {
 						Logger.getLogger(DataMigrator.class.getName()).log(Level.SEVERE, null, ex);
 					}
 				}
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, Types.VARCHAR);
+				if (rows.wasNull()) {
+					row.setNull(position, Types.VARCHAR);
 				} else {
-					pgsqlPs.setString(position, value);
+					row.setString(position, value);
 				}
 				break;
 			}
 			case Types.LONGVARBINARY:
-			case Types.BLOB:
+			case Types.BLOB: {
+				lobSpool.bindBinary(rows, position, row);
+				break;
+			}
 			case Types.VARBINARY:
 			case Types.BINARY: {
-				byte[] value = mysqlRs.getBytes(colName);
-				if (mysqlRs.wasNull()) {
-					pgsqlPs.setNull(position, type);
+				byte[] value = rows.getBytes(position);
+				if (rows.wasNull()) {
+					row.setNull(position, type);
 				} else {
-					pgsqlPs.setBytes(position, value);
+					row.setBytes(position, value);
 				}
 				break;
 			}
 			default:
-				throw new SQLException("Don't know how to handle type of " + type + " " + mysqlRs.getMetaData().getColumnTypeName(position));
-		}
-	}
-
-	private String findNumericPkColumn(Connection mysqlCon, String tableName) throws SQLException {
-		PreparedStatement ps = null;
-		try {
-			ps = mysqlCon.prepareStatement(""
-					+ "SHOW COLUMNS \n"
-					+ "FROM `" + mysqlSchema + "`.`" + tableName + "` \n"
-					+ "WHERE `Null` = 'NO' \n"
-					+ "AND `Key` IN ('PRI') \n"
-					+ "AND (`Type` LIKE 'bigint%' OR `Type` LIKE 'int%')"
-					+ ";");
-			ResultSet rs = ps.executeQuery();
-			String colName;
-			if (rs.next()) {
-				colName = rs.getString("Field");
-			} else {
-				colName = null;
-			}
-			return colName;
-		} finally {
-			cleanup(ps);
+				throw new SQLException("Don't know how to handle type of " + type + " " + rows.getColumnTypeName(position));
 		}
 	}
 }
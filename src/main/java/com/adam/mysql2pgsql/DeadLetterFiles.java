@@ -0,0 +1,138 @@
+package com.adam.mysql2pgsql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * The rows that pgsql refused to load, one file per table named &lt;table&gt;.tsv, in the text format of COPY with the
+ * error appended as the last column. The first line holds the column names. After fixing the rows, a file can be
+ * loaded into a table with the same columns plus an error column, or the error column cut off and the rows loaded into
+ * the migrated table itself. The text format only skips a header from pgsql 15 on, with
+ * \copy ... FROM '&lt;table&gt;.tsv' WITH (HEADER). Before that the first line has to be skipped by the client, e.g.
+ * \copy ... FROM PROGRAM 'tail -n +2 &lt;table&gt;.tsv'.
+ * @author adam
+ */
+public class DeadLetterFiles {
+
+	private final File dir;
+
+	/**
+	 * @param dir the directory of the files, created if missing
+	 */
+	public DeadLetterFiles(File dir) {
+		this.dir = dir;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public File getFile(String tableName) {
+		return new File(dir, tableName + ".tsv");
+	}
+
+	/**
+	 * @param tableName the table of the rows
+	 * @param columnNames the columns of the rows, the error is set after them
+	 * @return a writer of rows to add to the file of the table, they are appended to it when the writer is ended
+	 */
+	CopyRowWriter write(String tableName, List<String> columnNames) {
+		return new CopyRowWriter(new Letter(tableName, columnNames), columnNames.size() + 1, new byte[8 * 1024]);
+	}
+
+	/**
+	 * Appends rows to the file of a table, several workers may fail rows of the same table at the same time
+	 */
+	private synchronized void append(String tableName, List<String> columnNames, ByteArrayOutputStream rows) throws SQLException {
+		File file = getFile(tableName);
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Could not create directory " + dir.getAbsolutePath());
+			}
+			boolean header = !file.exists() || file.length() == 0;
+			try (OutputStream out = new FileOutputStream(file, true)) {
+				if (header) {
+					out.write((String.join("\t", columnNames) + "\terror\n").getBytes(StandardCharsets.UTF_8));
+				}
+				rows.writeTo(out);
+			}
+		} catch (IOException ex) {
+			throw new SQLException("Could not write failed rows to " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	/**
+	 * Collects the encoded rows in memory until the copy is ended
+	 */
+	private class Letter implements CopyIn {
+
+		private final String tableName;
+		private final List<String> columnNames;
+		private final ByteArrayOutputStream rows = new ByteArrayOutputStream();
+		private boolean active = true;
+		private long rowCount;
+
+		Letter(String tableName, List<String> columnNames) {
+			this.tableName = tableName;
+			this.columnNames = columnNames;
+		}
+
+		@Override
+		public void writeToCopy(byte[] buf, int off, int siz) {
+			rows.write(buf, off, siz);
+			for (int i = off; i < off + siz; i++) {
+				if (buf[i] == '\n') {
+					rowCount++;
+				}
+			}
+		}
+
+		@Override
+		public void flushCopy() {
+		}
+
+		@Override
+		public long endCopy() throws SQLException {
+			active = false;
+			append(tableName, columnNames, rows);
+			return rowCount;
+		}
+
+		@Override
+		public int getFieldCount() {
+			return columnNames.size() + 1;
+		}
+
+		@Override
+		public int getFormat() {
+			return 0;
+		}
+
+		@Override
+		public int getFieldFormat(int field) {
+			return 0;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void cancelCopy() {
+			active = false;
+		}
+
+		@Override
+		public long getHandledRowCount() {
+			return rowCount;
+		}
+	}
+}
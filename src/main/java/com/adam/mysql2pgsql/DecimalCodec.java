@@ -0,0 +1,23 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Transfers DECIMAL/NUMERIC columns exactly. The mysql driver hands out the value as the decimal text it got from the
+ * server, and the pgsql driver binds a string with the NUMERIC type as a numeric literal, so the value is never
+ * converted to a double (losing precision) or parsed into a BigDecimal on the way.
+ * @author adam
+ */
+class DecimalCodec implements ColumnCodec {
+
+	@Override
+	public void transfer(RowReader rows, int position, RowWriter row) throws SQLException {
+		String value = rows.getString(position);
+		if (value == null) {
+			row.setNull(position, Types.NUMERIC);
+		} else {
+			row.setText(position, value, Types.NUMERIC);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.adam.mysql2pgsql;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the migration phases, to find where the time of a slow migration goes. Record a run
+ * with -XX:StartFlightRecording=filename=migration.jfr and open it in JDK Mission Control, where the events show up
+ * under mysql2pgsql next to the GC and socket I/O events. Nothing is measured unless a recording is running.
+ * @author adam
+ */
+final class FlightEvents {
+
+	private FlightEvents() {
+	}
+
+	@Name("mysql2pgsql.ChunkTransfer")
+	@Label("Chunk Transfer")
+	@Description("The transfer of one chunk of a table, from its query to its commit")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class ChunkTransfer extends Event {
+
+		@Label("Table")
+		String table;
+		@Label("Chunk")
+		String chunk;
+		@Label("Rows")
+		long rows;
+		@Label("Estimated Bytes")
+		@DataAmount
+		long bytes;
+
+		ChunkTransfer(String table, TableChunk chunk) {
+			this.table = table;
+			this.chunk = chunk.toString();
+		}
+	}
+
+	@Name("mysql2pgsql.ChunkQuery")
+	@Label("Chunk Query")
+	@Description("Mysql executing the query of a chunk, until its rows start streaming")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class ChunkQuery extends Event {
+
+		@Label("Table")
+		String table;
+		@Label("Chunk")
+		String chunk;
+
+		ChunkQuery(String table, TableChunk chunk) {
+			this.table = table;
+			this.chunk = chunk.toString();
+		}
+	}
+
+	@Name("mysql2pgsql.BatchRead")
+	@Label("Batch Read")
+	@Description("Fetching the rows of one batch from mysql and converting them to pgsql parameters. The part of the"
+			+ " duration that isn't conversion is spent fetching, or throttled by the source governor")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class BatchRead extends Event {
+
+		@Label("Table")
+		String table;
+		@Label("Chunk")
+		String chunk;
+		@Label("Rows")
+		long rows;
+		@Label("Estimated Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Conversion Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long conversionTime;
+
+		BatchRead(String table, TableChunk chunk) {
+			this.table = table;
+			this.chunk = chunk.toString();
+		}
+	}
+
+	@Name("mysql2pgsql.BatchFlush")
+	@Label("Batch Flush")
+	@Description("Sending one batch of inserts to pgsql")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class BatchFlush extends Event {
+
+		@Label("Table")
+		String table;
+		@Label("Chunk")
+		String chunk;
+		@Label("Rows")
+		long rows;
+
+		BatchFlush(String table, TableChunk chunk) {
+			this.table = table;
+			this.chunk = chunk.toString();
+		}
+	}
+
+	@Name("mysql2pgsql.ChunkCommit")
+	@Label("Chunk Commit")
+	@Description("Committing the pgsql transaction of one chunk")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class ChunkCommit extends Event {
+
+		@Label("Table")
+		String table;
+		@Label("Chunk")
+		String chunk;
+		@Label("Rows")
+		long rows;
+
+		ChunkCommit(String table, TableChunk chunk) {
+			this.table = table;
+			this.chunk = chunk.toString();
+		}
+	}
+
+	@Name("mysql2pgsql.MemoryWait")
+	@Label("Memory Wait")
+	@Description("A worker waiting for room in the memory budget, until other workers have sent their batches")
+	@Category({"mysql2pgsql", "Transfer"})
+	@StackTrace(false)
+	static class MemoryWait extends Event {
+
+		@Label("Requested")
+		@DataAmount
+		long requested;
+		@Label("In Use")
+		@DataAmount
+		long inUse;
+	}
+
+	@Name("mysql2pgsql.DdlStatement")
+	@Label("DDL Statement")
+	@Description("One statement of a file executed by psql, timed from psql echoing it until it echoes the next one")
+	@Category({"mysql2pgsql", "Schema"})
+	@StackTrace(false)
+	static class DdlStatement extends Event {
+
+		@Label("File")
+		String file;
+		@Label("Statement")
+		String statement;
+	}
+
+	@Name("mysql2pgsql.SchemaParse")
+	@Label("Schema Parse")
+	@Description("Converting the mysqldump schema to pgsql")
+	@Category({"mysql2pgsql", "Schema"})
+	@StackTrace(false)
+	static class SchemaParse extends Event {
+
+		@Label("Schema")
+		String schema;
+		@Label("Lines")
+		long lines;
+		@Label("Tables")
+		long tables;
+	}
+}
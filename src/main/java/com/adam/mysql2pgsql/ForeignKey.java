@@ -0,0 +1,55 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * A converted foreign key constraint. It is added as NOT VALID, which only takes a brief lock and doesn't scan
+ * anything, and validated afterwards, which scans the tables but lets reads and writes go on.
+ * @author adam
+ */
+public class ForeignKey {
+
+	final String tableName;
+	final String constraintName;
+	final String referencedTable;
+	final String definition;
+
+	/**
+	 * @param tableName the referencing table
+	 * @param constraintName
+	 * @param referencedTable lower case
+	 * @param definition the ALTER TABLE ... ADD CONSTRAINT statement, without trailing semicolon
+	 */
+	ForeignKey(String tableName, String constraintName, String referencedTable, String definition) {
+		this.tableName = tableName;
+		this.constraintName = constraintName;
+		this.referencedTable = referencedTable;
+		this.definition = definition;
+	}
+
+	String getTableName() {
+		return tableName;
+	}
+
+	String getReferencedTable() {
+		return referencedTable;
+	}
+
+	String generateNotValidStatement() {
+		return definition + " NOT VALID;\n";
+	}
+
+	/**
+	 * @return the statement dropping the constraint, if it's there, before the referenced table is replaced
+	 */
+	String generateDropStatement(String schemaName) {
+		return String.format("ALTER TABLE \"%s\".\"%s\" DROP CONSTRAINT IF EXISTS \"%s\";\n", schemaName, tableName, constraintName);
+	}
+
+	String generateValidateStatement(String schemaName) {
+		return String.format("ALTER TABLE \"%s\".\"%s\" VALIDATE CONSTRAINT \"%s\"", schemaName, tableName, constraintName);
+	}
+
+	@Override
+	public String toString() {
+		return tableName + "." + constraintName;
+	}
+}
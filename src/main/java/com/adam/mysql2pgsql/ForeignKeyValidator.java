@@ -0,0 +1,107 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Validates NOT VALID foreign keys, several tables at a time. VALIDATE CONSTRAINT only takes a SHARE UPDATE EXCLUSIVE
+ * lock on the referencing table, so validations of different tables don't block each other. Validations of the same
+ * table would, so those run one after the other.
+ * @author adam
+ */
+public class ForeignKeyValidator {
+
+	private static final Logger LOG = Logger.getLogger(ForeignKeyValidator.class.getName());
+	private final String pgsqlUrl;
+	private final String pgsqlUser;
+	private final String pgsqlPassword;
+	private final String pgsqlSchema;
+	private final int parallelism;
+
+	/**
+	 * @param pgsqlUrl
+	 * @param pgsqlUser
+	 * @param pgsqlPassword
+	 * @param pgsqlSchema
+	 * @param parallelism the max number of tables validated at the same time
+	 */
+	public ForeignKeyValidator(String pgsqlUrl, String pgsqlUser, String pgsqlPassword, String pgsqlSchema, int parallelism) {
+		this.pgsqlUrl = pgsqlUrl;
+		this.pgsqlUser = pgsqlUser;
+		this.pgsqlPassword = pgsqlPassword;
+		this.pgsqlSchema = pgsqlSchema;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Validates the foreign keys. A foreign key that doesn't hold for the migrated data is left NOT VALID
+	 * @param foreignKeys
+	 * @return the foreign keys that could not be validated
+	 * @throws SQLException if interrupted
+	 */
+	public List<ForeignKey> validate(List<ForeignKey> foreignKeys) throws SQLException {
+		Map<String, List<ForeignKey>> byTable = new LinkedHashMap<>();
+		for (ForeignKey fk : foreignKeys) {
+			List<ForeignKey> fks = byTable.get(fk.getTableName());
+			if (fks == null) {
+				fks = new ArrayList<>();
+				byTable.put(fk.getTableName(), fks);
+			}
+			fks.add(fk);
+		}
+		final Semaphore connectionPermits = new Semaphore(parallelism, true);
+		final List<ForeignKey> invalid = Collections.synchronizedList(new ArrayList<ForeignKey>());
+		try (TransferScope scope = new TransferScope()) {
+			for (final List<ForeignKey> fks : byTable.values()) {
+				//Taken before the fork, so only as many threads as permits wait on pgsql
+				if (!scope.acquire(connectionPermits)) {
+					break;
+				}
+				scope.fork(new Callable<Void>() {
+					@Override
+					public Void call() throws SQLException {
+						try {
+							validateTable(fks, invalid);
+						} finally {
+							connectionPermits.release();
+						}
+						return null;
+					}
+				});
+			}
+			scope.join();
+		}
+		return invalid;
+	}
+
+	private void validateTable(List<ForeignKey> fks, List<ForeignKey> invalid) throws SQLException {
+		Connection con = null;
+		Statement stmt = null;
+		try {
+			con = DriverManager.getConnection(pgsqlUrl, pgsqlUser, pgsqlPassword);
+			stmt = con.createStatement();
+			for (ForeignKey fk : fks) {
+				try {
+					stmt.execute(fk.generateValidateStatement(pgsqlSchema));
+				} catch (SQLException e) {
+					LOG.log(Level.WARNING, "Could not validate foreign key " + fk, e);
+					invalid.add(fk);
+				}
+			}
+		} finally {
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(con);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Small jdbc helpers shared by the classes talking directly to mysql or pgsql
+ * @author adam
+ */
+final class JdbcUtils {
+
+	private JdbcUtils() {
+	}
+
+	static void cleanup(Statement stmt) {
+		try {
+			if (stmt != null) {
+				stmt.close();
+			}
+		} catch (Exception e) {
+		}
+	}
+
+	static void cleanup(Connection con) {
+		try {
+			if (con != null) {
+				con.close();
+			}
+		} catch (Exception e) {
+		}
+	}
+}
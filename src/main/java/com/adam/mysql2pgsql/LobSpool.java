@@ -0,0 +1,205 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves large object columns (BLOB/TEXT) from a row source to a row sink in fixed size pieces.
+ * Values up to the threshold are bound as plain byte arrays/strings. Larger values are spooled to a temp file
+ * piece by piece and bound as a stream, so the heap never holds more than one piece plus the threshold per value.
+ * Spooled files stay open until the batch they are bound in has been sent, then {@link #release()} removes them.
+ * @author adam
+ */
+class LobSpool {
+
+	private final long threshold;
+	private final byte[] bytePiece;
+	private final char[] charPiece;
+	private final List<File> spooledFiles;
+	private final List<InputStream> openStreams;
+
+	/**
+	 * @param threshold values larger than this many bytes (or chars for text) are spooled instead of kept on the heap
+	 * @param pieceSize the size of each piece read from mysql
+	 */
+	LobSpool(long threshold, int pieceSize) {
+		this.threshold = threshold;
+		this.bytePiece = new byte[pieceSize];
+		this.charPiece = new char[pieceSize];
+		this.spooledFiles = new ArrayList<>();
+		this.openStreams = new ArrayList<>();
+	}
+
+	/**
+	 * @return true if there are spooled values bound that must be sent before the row source moves on
+	 */
+	boolean hasPending() {
+		return !spooledFiles.isEmpty();
+	}
+
+	/**
+	 * Binds a binary large object column
+	 * @return the number of bytes transfered
+	 */
+	long bindBinary(RowReader rows, int position, RowWriter row) throws SQLException {
+		InputStream in = rows.getBinaryStream(position);
+		if (in == null) {
+			row.setNull(position, Types.BINARY);
+			return 0;
+		}
+		try {
+			byte[] head = new byte[0];
+			int headLen = 0;
+			int read;
+			while ((read = in.read(bytePiece)) != -1) {
+				if (headLen + read > threshold) {
+					return spoolBinary(head, headLen, read, in, position, row);
+				}
+				if (head.length < headLen + read) {
+					head = Arrays.copyOf(head, Math.max(headLen + read, head.length * 2));
+				}
+				System.arraycopy(bytePiece, 0, head, headLen, read);
+				headLen += read;
+			}
+			row.setBytes(position, head.length == headLen ? head : Arrays.copyOf(head, headLen));
+			return headLen;
+		} catch (IOException ex) {
+			throw new SQLException("Could not read binary column at position " + position, ex);
+		} finally {
+			close(in);
+		}
+	}
+
+	private long spoolBinary(byte[] head, int headLen, int pieceLen, InputStream in, int position, RowWriter row) throws IOException, SQLException {
+		File file = newSpoolFile();
+		long length = headLen;
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(head, 0, headLen);
+			out.write(bytePiece, 0, pieceLen);
+			length += pieceLen;
+			int read;
+			while ((read = in.read(bytePiece)) != -1) {
+				out.write(bytePiece, 0, read);
+				length += read;
+			}
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new SQLException("Binary value at position " + position + " is " + length + " bytes, which is larger than pgsql can bind");
+		}
+		InputStream spooled = new FileInputStream(file);
+		openStreams.add(spooled);
+		row.setBinaryStream(position, spooled, (int) length);
+		return length;
+	}
+
+	/**
+	 * Binds a text large object column, stripping 0x00 characters on the way as they are not allowed in pgsql
+	 * @return the number of chars transfered
+	 */
+	long bindText(RowReader rows, int position, RowWriter row) throws SQLException {
+		Reader in = rows.getCharacterStream(position);
+		if (in == null) {
+			row.setNull(position, Types.VARCHAR);
+			return 0;
+		}
+		try {
+			StringBuilder head = new StringBuilder();
+			int read;
+			while ((read = in.read(charPiece)) != -1) {
+				read = stripNulls(charPiece, read);
+				if (head.length() + read > threshold) {
+					return spoolText(head, read, in, position, row);
+				}
+				head.append(charPiece, 0, read);
+			}
+			row.setString(position, head.toString());
+			return head.length();
+		} catch (IOException ex) {
+			throw new SQLException("Could not read text column at position " + position, ex);
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Note that the pgsql driver (see {@link PgsqlRowSink}) materializes character streams when the statement is executed, so a spooled text
+	 * value is on the heap once while its (single row) batch is sent, but never while the rest of the batch is built.
+	 */
+	private long spoolText(StringBuilder head, int pieceLen, Reader in, int position, RowWriter row) throws IOException, SQLException {
+		File file = newSpoolFile();
+		long length = head.length();
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			out.append(head);
+			out.write(charPiece, 0, pieceLen);
+			length += pieceLen;
+			int read;
+			while ((read = in.read(charPiece)) != -1) {
+				read = stripNulls(charPiece, read);
+				out.write(charPiece, 0, read);
+				length += read;
+			}
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new SQLException("Text value at position " + position + " is " + length + " chars, which is larger than pgsql can bind");
+		}
+		InputStream spooled = new FileInputStream(file);
+		openStreams.add(spooled);
+		row.setCharacterStream(position, new InputStreamReader(spooled, StandardCharsets.UTF_8), (int) length);
+		return length;
+	}
+
+	/**
+	 * Mysql sometimes has 0x00 chars which are not allowed in pgsql text. Removes them in place
+	 * @return the new length of the piece
+	 */
+	private static int stripNulls(char[] piece, int length) {
+		int to = 0;
+		for (int from = 0; from < length; from++) {
+			if (piece[from] != 0x00) {
+				piece[to++] = piece[from];
+			}
+		}
+		return to;
+	}
+
+	private File newSpoolFile() throws IOException {
+		File file = File.createTempFile("mysql2pgsql_lob", ".bin");
+		spooledFiles.add(file);
+		return file;
+	}
+
+	/**
+	 * Closes and deletes all spooled values. Must only be called once the batch they were bound in has been sent
+	 */
+	void release() {
+		for (InputStream stream : openStreams) {
+			close(stream);
+		}
+		openStreams.clear();
+		for (File file : spooledFiles) {
+			file.delete();
+		}
+		spooledFiles.clear();
+	}
+
+	private static void close(AutoCloseable closeable) {
+		try {
+			closeable.close();
+		} catch (Exception e) {
+		}
+	}
+}
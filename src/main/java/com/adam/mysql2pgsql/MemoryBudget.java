@@ -0,0 +1,152 @@
+package com.adam.mysql2pgsql;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A byte budget shared by all transfer workers for the rows they hold in memory: the row being read and the rows of
+ * the batch not yet sent. Memory is reserved before it's used, and a worker that can't get what it needs waits until
+ * others have sent their batches, so the heap needed for the transfer is bounded by the budget instead of by the
+ * number of workers times the size of a batch.
+ * <p>
+ * A reservation larger than the whole budget, e.g. for a single huge row, is granted once nothing else is reserved.
+ * A worker that can't wait long, e.g. with a streaming mysql result set open, can limit its wait and then gets its
+ * reservation beyond the budget.
+ * @author adam
+ */
+public class MemoryBudget {
+
+	private final long bytes;
+	private long inUse;
+	private long peak;
+	private long waits;
+	private long waitNanos;
+	private long overruns;
+
+	/**
+	 * @param bytes the budget, or 0 for no limit, in which case the use is only measured
+	 */
+	public MemoryBudget(long bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Reserves memory, waiting for it if the budget is used up
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void reserve(long bytes) throws InterruptedException {
+		reserve(bytes, 0);
+	}
+
+	/**
+	 * Reserves memory, waiting for it at most the given time if the budget is used up. After that it's reserved
+	 * anyway, beyond the budget
+	 * @param maxWaitMillis how long to wait at most, or 0 to wait as long as it takes
+	 * @return false if the memory was reserved beyond the budget
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean reserve(long bytes, long maxWaitMillis) throws InterruptedException {
+		boolean fits = true;
+		if (!fits(bytes)) {
+			FlightEvents.MemoryWait waitEvent = new FlightEvents.MemoryWait();
+			waitEvent.begin();
+			waitEvent.requested = bytes;
+			waitEvent.inUse = inUse;
+			long startTime = System.nanoTime();
+			long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			waits++;
+			try {
+				while (!fits(bytes)) {
+					if (maxWaitMillis <= 0) {
+						wait();
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						fits = false;
+						overruns++;
+						break;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			} finally {
+				waitNanos += System.nanoTime() - startTime;
+				waitEvent.commit();
+			}
+		}
+		add(bytes);
+		return fits;
+	}
+
+	/**
+	 * Reserves memory if it's available right away
+	 * @return true if reserved
+	 */
+	public synchronized boolean tryReserve(long bytes) {
+		if (!fits(bytes)) {
+			return false;
+		}
+		add(bytes);
+		return true;
+	}
+
+	public synchronized void release(long bytes) {
+		inUse -= bytes;
+		notifyAll();
+	}
+
+	private boolean fits(long bytes) {
+		return this.bytes <= 0 || inUse == 0 || inUse + bytes <= this.bytes;
+	}
+
+	private void add(long bytes) {
+		inUse += bytes;
+		peak = Math.max(peak, inUse);
+	}
+
+	/**
+	 * @return the budget, or 0 if there is no limit
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * @return the most memory reserved at any one time
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	/**
+	 * @return how many times a worker had to wait for memory
+	 */
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	/**
+	 * @return how many times a worker gave up waiting and reserved memory beyond the budget
+	 */
+	public synchronized long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return the total time workers spent waiting for memory
+	 */
+	public synchronized long getWaitMillis() {
+		return waitNanos / 1_000_000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "peak " + peak / (1024 * 1024) + " MB in flight"
+				+ (bytes > 0 ? " of a " + bytes / (1024 * 1024) + " MB budget" : "")
+				+ ", workers waited for memory " + waits + " times, " + MigrationPlan.formatMillis(getWaitMillis()) + " in total"
+				+ (overruns > 0 ? ", went over the budget " + overruns + " times rather than wait longer" : "");
+	}
+}
@@ -0,0 +1,439 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A migration of a mysql schema to pgsql, for embedding the migrator in other programs. The command line tool is a
+ * thin wrapper around it. Nothing is asked for interactively and all progress goes to the {@link MigrationListener},
+ * so it runs as well from a scheduler as from a terminal.
+ * <pre>
+ * MigrationConfig config = MigrationConfig.fromSystemProperties();
+ * config.setMysqlHosts("replica1", "replica2");
+ * ...
+ * new Migration(config, listener).run();
+ * </pre>
+ * @author adam
+ */
+public class Migration {
+
+	/**
+	 * How often the swap of the shadow tables is tried while it times out waiting for a lock
+	 */
+	private static final int SWAP_ATTEMPTS = 10;
+	private final MigrationConfig config;
+	private final MigrationListener listener;
+
+	/**
+	 * @param config
+	 * @param listener receives the progress of the migration
+	 */
+	public Migration(MigrationConfig config, MigrationListener listener) {
+		this.config = config;
+		this.listener = listener;
+	}
+
+	/**
+	 * Collects the table statistics and plans the data transfer, without touching any data. Only the mysql settings
+	 * of the config are used
+	 * @return the plan, with the estimated duration of each phase
+	 */
+	public MigrationPlan plan() throws IOException, SQLException {
+		loadDrivers();
+		listener.message("Collecting table statistics, calibrating with " + config.getMetricsFile().getAbsolutePath() + "...");
+		return createPlan(config.getOnlyMigrateTables(), new RunMetrics(config.getMetricsFile()), null);
+	}
+
+	/**
+	 * Migrates the schema and all data in this process
+	 */
+	public void run() throws IOException, SQLException, ParseException {
+		migrate(false);
+	}
+
+	/**
+	 * Migrates the schema, and hands out the chunks of data through a lease table to this process and to any number
+	 * of workers started with {@link #runWorker()}
+	 */
+	public void coordinate() throws IOException, SQLException, ParseException {
+		migrate(true);
+	}
+
+	/**
+	 * Transfers chunks handed out by a coordinator until there are none left
+	 */
+	public void runWorker() throws IOException, SQLException {
+		loadDrivers();
+		listener.message("Migrating chunks handed out by the coordinator...");
+		RunMetrics runMetrics = new RunMetrics(config.getMetricsFile());
+		SourceGovernor governor = createGovernor();
+		SourceEndpoints sources = new SourceEndpoints(config.getMysqlUrls(), config.getMysqlUser(), config.getMysqlPassword());
+		DataMigrator dataMigrator = createDataMigrator(sources, null, runMetrics, governor);
+		//A worker only sees a part of the rows, its statistics are of no use
+		dataMigrator.setProfiling(false);
+		try {
+			dataMigrator.transferLeasedChunks(createLeaseTable(), config.getConnections());
+		} finally {
+			governor.stop();
+		}
+		runMetrics.save();
+		listener.message("All done");
+	}
+
+	private void migrate(boolean coordinate) throws IOException, SQLException, ParseException {
+		loadDrivers();
+		String pgsqlSchema = config.getPgsqlSchema();
+		String pgsqlUser = config.getPgsqlUser();
+		int parallelism = config.getConnections();
+		Set<String> onlyMigrateTables = config.getOnlyMigrateTables();
+		if (onlyMigrateTables != null) {
+			listener.message("Will only migrate tables: " + onlyMigrateTables);
+		} else {
+			listener.message("Will migrate all tables in the schema");
+		}
+		//Shards have the tables of the mysql schema, which is converted once and loaded from all of them
+		List<Shard> shards = config.getShards();
+		if (shards != null) {
+			listener.message("Will consolidate " + shards.size() + " shards into " + pgsqlSchema
+					+ (config.getShardColumn() != null ? ", keeping the shard id of each row in column " + config.getShardColumn() : ""));
+		}
+		RunMetrics runMetrics = new RunMetrics(config.getMetricsFile());
+		SourceEndpoints sources = new SourceEndpoints(config.getMysqlUrls(), config.getMysqlUser(), config.getMysqlPassword());
+
+		SchemaConverter schemaConverter = new SchemaConverter(config.getMysqlSchema(), config.getMysqlHosts().get(0), config.getMysqlPort(),
+				config.getMysqlUser(), config.getMysqlPassword(), pgsqlSchema, onlyMigrateTables);
+		schemaConverter.setFilters(config.getFilters());
+		schemaConverter.setShardColumn(config.getLoadShardColumn(), config.getShardColumn() != null);
+		PSQLExecutor psqle = new PSQLExecutor(config.getPgsqlHost(), config.getPgsqlDb(), config.getPgsqlPort(), pgsqlUser, config.getPgsqlPassword(), listener);
+
+		//Parse mysql schema
+		listener.message("Dumping and parsing mysql schema...");
+		schemaConverter.generateMysqlDumpData();
+		schemaConverter.parseSchemaDump();
+		listener.message("Done\n");
+
+		if (config.isRecreateSchema()) {
+			listener.message("Deleting and creating schema in postgres...");
+			File postgresSchemaDefFile = schemaConverter.generatePostgresSchemaDefinitionFile(pgsqlUser);
+			psqle.executeFile(postgresSchemaDefFile);
+			listener.message("Done\n");
+		}
+
+		//Only recreate and reload the tables that changed since the last run
+		TableFingerprints fingerprints = null;
+		Map<String, String> changedFingerprints = null;
+		if (config.isIncremental() && shards != null) {
+			listener.message("Tables are fingerprinted in a single mysql schema, ignoring mysql2pgsql.incremental");
+		} else if (config.isIncremental()) {
+			listener.message("Fingerprinting mysql tables...");
+			fingerprints = new TableFingerprints(sources, config.getMysqlSchema(), config.getPgsqlUrl(), pgsqlUser, config.getPgsqlPassword(), pgsqlSchema);
+			fingerprints.setFilters(config.getFilters());
+			if (config.isRecreateSchema()) {
+				fingerprints.clear();
+			}
+			Map<String, String> current = fingerprints.compute(schemaConverter.getTableNames());
+			Set<String> unchanged = fingerprints.findUnchanged(current);
+			changedFingerprints = new TreeMap<>(current);
+			changedFingerprints.keySet().removeAll(unchanged);
+			schemaConverter.retainTables(changedFingerprints.keySet());
+			onlyMigrateTables = new TreeSet<>();
+			for (String tableName : changedFingerprints.keySet()) {
+				onlyMigrateTables.add(tableName.toLowerCase());
+			}
+			listener.message(unchanged.size() + " tables unchanged since the last run, will migrate: " + changedFingerprints.keySet());
+			listener.message("Done\n");
+			if (changedFingerprints.isEmpty()) {
+				listener.message("All done");
+				return;
+			}
+		}
+
+		//Tables are loaded and indexed in the shadow schema while the existing ones stay readable, then swapped in
+		SchemaConverter loadConverter = schemaConverter;
+		if (config.isShadowLoad()) {
+			listener.message("Creating shadow schema " + config.getLoadSchema() + " in postgres...");
+			loadConverter = schemaConverter.forSchema(config.getLoadSchema());
+			psqle.executeFile(schemaConverter.generatePostgresShadowSchemaFile(config.getLoadSchema(), pgsqlUser));
+			listener.message("Done\n");
+		}
+
+		listener.message("Deleting and creating tables in the postgres schema...");
+		//Apply converted schema definition in postgres
+		File postgresTableDefFile = loadConverter.generatePostgresTableDefinitionFile(pgsqlUser);
+		listener.message(postgresTableDefFile.getAbsolutePath());
+		psqle.executeFile(postgresTableDefFile);
+		listener.message("Done\n");
+
+		//Open the snapshot before planning, so the pk ranges are planned from the snapshot as well
+		SnapshotConnections snapshot = null;
+		if (config.isConsistentSnapshot()) {
+			if (coordinate) {
+				listener.message("A consistent snapshot can't be shared with other worker processes, ignoring mysql2pgsql.consistentSnapshot");
+			} else if (shards != null) {
+				listener.message("A consistent snapshot can't span several shards, ignoring mysql2pgsql.consistentSnapshot");
+			} else {
+				listener.message("Opening " + parallelism + " connections with a consistent snapshot...");
+				snapshot = new SnapshotConnections(sources, parallelism);
+				listener.message("Snapshot taken at binlog position " + snapshot.getBinlogFile() + ":" + snapshot.getBinlogPosition()
+						+ (snapshot.getGtidSet() != null ? ", executed GTID set " + snapshot.getGtidSet() : ""));
+				listener.message("Done\n");
+			}
+		}
+
+		//Plan the data transfer
+		listener.message("Collecting table statistics and planning the migration...");
+		MigrationPlan plan = createPlan(onlyMigrateTables, runMetrics, snapshot);
+		listener.message("Estimated data transfer: " + MigrationPlan.formatMillis(plan.getEstTransferMillis())
+				+ ", pk, index and constraint build: " + MigrationPlan.formatMillis(plan.getEstIndexMillis()));
+		listener.message("Done\n");
+
+		//Migrate all data to the new schema
+		listener.message("Migrating actual data from mysql to posgres...");
+		SourceGovernor governor = createGovernor();
+		DataMigrator dataMigrator = createDataMigrator(sources, snapshot, runMetrics, governor);
+		dataMigrator.setProfiling(config.isProfiling() && !coordinate);
+		try {
+			if (coordinate) {
+				ChunkLeaseTable leases = createLeaseTable();
+				leases.publish(plan);
+				listener.message("Published chunks, workers may be started now...");
+				dataMigrator.transferLeasedChunks(leases, parallelism);
+			} else {
+				dataMigrator.transferTables(plan);
+			}
+		} finally {
+			governor.stop();
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+		runMetrics.save();
+		listener.message("Done\n");
+
+		if (shards != null && config.getShardColumn() == null) {
+			listener.message("Dropping the shard column the rows were loaded with...");
+			File postgresDropShardColumnFile = loadConverter.generatePostgresDropShardColumnFile();
+			listener.message(postgresDropShardColumnFile.getAbsolutePath());
+			psqle.executeFile(postgresDropShardColumnFile);
+			listener.message("Done\n");
+		}
+
+		//Apply all constraints and indices
+		long indexStartTime = System.currentTimeMillis();
+		listener.message("Applying pk constraints...");
+		File postgresPkDefFile = loadConverter.generatePostgresPkDefFile();
+		psqle.executeFile(postgresPkDefFile);
+		listener.message("Done.\n");
+
+		listener.message("Applying unique constraints and creating indices...");
+		File postgresIdxAndConstraintsFile = loadConverter.generatePostgresIndexAndConstraintsFile();
+		listener.message(postgresIdxAndConstraintsFile.getAbsolutePath());
+		psqle.executeFile(postgresIdxAndConstraintsFile);
+		runMetrics.recordIndexBuild(plan.getIndexedBytes(), System.currentTimeMillis() - indexStartTime);
+		runMetrics.save();
+		listener.message("Done\n");
+
+		if (config.isShadowLoad()) {
+			listener.message("Swapping the loaded tables in...");
+			long swapStartTime = System.currentTimeMillis();
+			File postgresSwapFile = schemaConverter.generatePostgresSwapFile(config.getLoadSchema(), config.getSwapLockTimeoutMillis());
+			listener.message(postgresSwapFile.getAbsolutePath());
+			swap(psqle, postgresSwapFile);
+			listener.message("Swapped " + schemaConverter.getTableNames().size() + " tables in " + MigrationPlan.formatMillis(System.currentTimeMillis() - swapStartTime));
+			listener.message("Done\n");
+		}
+
+		//Foreign keys are added without checking the data, then validated in parallel
+		listener.message("Applying fk constraints...");
+		File postgresFkDefFile = schemaConverter.generatePostgresForeignKeyFile();
+		listener.message(postgresFkDefFile.getAbsolutePath());
+		psqle.executeFile(postgresFkDefFile);
+		List<ForeignKey> foreignKeys = schemaConverter.getForeignKeys();
+		listener.message("Validating " + foreignKeys.size() + " fk constraints...");
+		List<ForeignKey> invalidForeignKeys = new ForeignKeyValidator(config.getPgsqlUrl(), pgsqlUser, config.getPgsqlPassword(), pgsqlSchema, parallelism).validate(foreignKeys);
+		if (!invalidForeignKeys.isEmpty()) {
+			listener.message(invalidForeignKeys.size() + " fk constraints don't hold for the migrated data and are left NOT VALID: " + invalidForeignKeys);
+		}
+		listener.message("Done\n");
+
+		//The profiles are complete only if this process transferred all rows
+		Map<String, TableProfile> profiles = !coordinate && config.isProfiling() ? dataMigrator.getProfiles() : null;
+		listener.message("Running post SQLs: Updaing sequences to current increment value...");
+		File postSqlFile = schemaConverter.generatePostSqlFile(profiles);
+		listener.message(postSqlFile.getAbsolutePath());
+		psqle.executeFile(postSqlFile);
+		listener.message("Done\n");
+
+		if (profiles != null) {
+			List<TableProfile> byUrgency = TableProfile.byAnalyzeUrgency(profiles.values());
+			File profileFile = File.createTempFile(pgsqlSchema + "_profile", ".txt");
+			try (PrintWriter profileWriter = new PrintWriter(profileFile, "UTF-8")) {
+				for (TableProfile profile : byUrgency) {
+					profile.print(profileWriter);
+				}
+			}
+			listener.message("Column statistics of the migrated data: " + profileFile.getAbsolutePath());
+			listener.message("Tables most in need of ANALYZE:");
+			for (TableProfile profile : byUrgency.subList(0, Math.min(10, byUrgency.size()))) {
+				listener.message(String.format("\t%-40s %12d rows, urgency %.0f", profile.getTableName(), profile.getRows(), profile.getAnalyzeUrgency()));
+			}
+			listener.message("");
+		}
+
+		if (fingerprints != null) {
+			//A table missing rows must be reloaded by the next run, whether it changes in mysql or not
+			Set<String> incomplete = dataMigrator.getDeadLetterTables();
+			if (!incomplete.isEmpty()) {
+				changedFingerprints.keySet().removeAll(incomplete);
+				listener.message("Not fingerprinting tables with rows in the dead letter files, the next run migrates them again: " + new TreeSet<>(incomplete));
+			}
+			fingerprints.store(changedFingerprints);
+		}
+
+		//All done
+		listener.message("All done");
+	}
+
+	/**
+	 * Runs the swap, retrying it with backoff while it times out waiting for a lock. Any other failure, e.g. a view
+	 * depending on a replaced table, is left to the user
+	 */
+	private void swap(PSQLExecutor psqle, File swapFile) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				psqle.executeFile(swapFile);
+				return;
+			} catch (IOException e) {
+				if (attempt >= SWAP_ATTEMPTS || e.getMessage() == null || !e.getMessage().contains("lock timeout")) {
+					throw e;
+				}
+				long backoff = DataMigrator.retryBackoffMillis(attempt);
+				listener.message("Swap timed out waiting for a lock, retry " + attempt + " of " + (SWAP_ATTEMPTS - 1) + " in " + backoff + "ms");
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to retry the swap", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Plans the transfer of the mysql schema, or when consolidating shards that of each shard, merged into one plan
+	 * @param snapshot the connections to read the pk ranges through, or null
+	 */
+	private MigrationPlan createPlan(Set<String> onlyMigrateTables, RunMetrics runMetrics, SnapshotConnections snapshot) throws SQLException {
+		List<Shard> shards = config.getShards();
+		if (shards == null) {
+			MigrationPlanner planner = createPlanner(config.getMysqlUrls().get(0), config.getMysqlSchema(), onlyMigrateTables, runMetrics);
+			planner.setSnapshot(snapshot);
+			return planner.plan();
+		}
+		List<MigrationPlan> shardPlans = new ArrayList<>();
+		for (Shard shard : shards) {
+			MigrationPlanner planner = createPlanner(shard.getMysqlUrl(config.getMysqlPort()), shard.getSchema(), onlyMigrateTables, runMetrics);
+			planner.setShard(shard);
+			shardPlans.add(planner.plan());
+		}
+		return MigrationPlanner.combine(shardPlans, config.getConnections());
+	}
+
+	private MigrationPlanner createPlanner(String mysqlUrl, String mysqlSchema, Set<String> onlyMigrateTables, RunMetrics runMetrics) {
+		MigrationPlanner planner = new MigrationPlanner(mysqlUrl, config.getMysqlUser(), config.getMysqlPassword(),
+				mysqlSchema, onlyMigrateTables, config.getConnections(), runMetrics);
+		planner.setFilters(config.getFilters());
+		return planner;
+	}
+
+	/**
+	 * @param sources the mysql servers to read from
+	 * @param snapshot the connections to read all chunks through, or null to read from the mysql endpoints
+	 */
+	private DataMigrator createDataMigrator(SourceEndpoints sources, SnapshotConnections snapshot, RunMetrics runMetrics, SourceGovernor governor) {
+		RowSource source;
+		if (config.getShards() != null) {
+			source = createShardedSource();
+		} else {
+			MysqlRowSource mysqlSource = new MysqlRowSource(sources, config.getMysqlSchema());
+			mysqlSource.setSnapshot(snapshot);
+			mysqlSource.setFilters(config.getFilters());
+			source = mysqlSource;
+		}
+		PgsqlRowSink sink = new PgsqlRowSink(config.getPgsqlUrl(), config.getPgsqlUser(), config.getPgsqlPassword(), config.getLoadSchema());
+		sink.setCopy(config.isCopy());
+		sink.setShardColumn(config.getLoadShardColumn());
+		DataMigrator dataMigrator = new DataMigrator(source, sink, config.getZeroDatePolicy(), runMetrics, governor);
+		dataMigrator.setChunkRetries(config.getChunkRetries());
+		dataMigrator.setMemoryBudget(new MemoryBudget(config.getMemoryBudget()));
+		if (config.getDeadLetterDir() != null) {
+			dataMigrator.setDeadLetters(new DeadLetterFiles(config.getDeadLetterDir()));
+		}
+		dataMigrator.setListener(listener);
+		return dataMigrator;
+	}
+
+	/**
+	 * @return a source reading each chunk from the mysql server of its shard
+	 */
+	private ShardedRowSource createShardedSource() {
+		ShardedRowSource source = new ShardedRowSource(config.getLoadShardColumn());
+		for (Shard shard : config.getShards()) {
+			SourceEndpoints shardSources = new SourceEndpoints(Collections.singletonList(shard.getMysqlUrl(config.getMysqlPort())),
+					config.getMysqlUser(), config.getMysqlPassword());
+			MysqlRowSource shardSource = new MysqlRowSource(shardSources, shard.getSchema());
+			shardSource.setFilters(config.getFilters());
+			source.addShard(shard, shardSource);
+		}
+		return source;
+	}
+
+	private ChunkLeaseTable createLeaseTable() {
+		ChunkLeaseTable leases = new ChunkLeaseTable(config.getPgsqlUrl(), config.getPgsqlUser(), config.getPgsqlPassword(), config.getPgsqlSchema(), config.getLeaseSeconds());
+		if (config.getShards() != null) {
+			leases.setShards(config.getShards());
+		}
+		return leases;
+	}
+
+	private SourceGovernor createGovernor() {
+		SourceGovernor governor = new SourceGovernor(config.getMaxRowsPerSecond(), config.getMaxBytesPerSecond(), config.getConnections());
+		if (config.getMaxReplicaLag() != null) {
+			//Every source read from is polled, the hosts of the shards when consolidating
+			Set<String> mysqlUrls = new LinkedHashSet<>();
+			if (config.getShards() != null) {
+				for (Shard shard : config.getShards()) {
+					mysqlUrls.add(shard.getMysqlUrl(config.getMysqlPort()));
+				}
+			} else {
+				mysqlUrls.addAll(config.getMysqlUrls());
+			}
+			governor.startLagPolling(mysqlUrls, config.getMysqlUser(), config.getMysqlPassword(),
+					config.getMaxReplicaLag(), config.getReplicaLagPollSeconds());
+		}
+		return governor;
+	}
+
+	/**
+	 * The drivers register themselves when their classes are loaded
+	 */
+	private static void loadDrivers() throws SQLException {
+		try {
+			Class.forName("com.mysql.jdbc.Driver");
+			Class.forName("org.postgresql.Driver");
+		} catch (ClassNotFoundException ex) {
+			throw new SQLException("Missing JDBC driver", ex);
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Everything a {@link Migration} needs to know: where to read from and write to, and how to go about it. The
+ * command line tool fills it in from its arguments and the -Dmysql2pgsql.* system properties, see
+ * {@link #fromSystemProperties()}.
+ * @author adam
+ */
+public class MigrationConfig {
+
+	/**
+	 * Default number of connections to each mysql host, the transfer threads mostly wait on the sockets
+	 */
+	static final int CONNECTIONS_PER_HOST = 8;
+
+	/**
+	 * Appended to the pgsql schema to name the schema tables are loaded into before they are swapped in
+	 */
+	static final String SHADOW_SUFFIX = "_shadow";
+
+	private List<String> mysqlHosts;
+	private int mysqlPort = 3306;
+	private String mysqlUser;
+	private String mysqlPassword;
+	private String mysqlSchema;
+	private String pgsqlHost;
+	private int pgsqlPort = 5432;
+	private String pgsqlDb;
+	private String pgsqlUser;
+	private String pgsqlPassword;
+	private String pgsqlSchema;
+	private Set<String> onlyMigrateTables;
+	private ZeroDatePolicy zeroDatePolicy = ZeroDatePolicy.EPOCH;
+	private int chunkRetries = DataMigrator.DEFAULT_CHUNK_RETRIES;
+	private boolean profiling = true;
+	private TableFilters filters = TableFilters.none();
+	private int connections;
+	private long maxRowsPerSecond;
+	private long maxBytesPerSecond;
+	private Long maxReplicaLag;
+	private long replicaLagPollSeconds = 10;
+	private boolean consistentSnapshot;
+	private boolean incremental;
+	private boolean recreateSchema;
+	private int leaseSeconds = 300;
+	private File metricsFile = RunMetrics.defaultFile();
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	private boolean copy = true;
+	private boolean shadowLoad;
+	private long swapLockTimeoutMillis = 2000;
+	private File deadLetterDir;
+	private List<Shard> shards;
+	private String shardColumn;
+
+	/**
+	 * @return a config with the settings given as -Dmysql2pgsql.* system properties, and the defaults for the rest.
+	 * The endpoints and credentials are left to the caller
+	 * @throws IOException if the -Dmysql2pgsql.tableFilters file can't be read
+	 */
+	public static MigrationConfig fromSystemProperties() throws IOException {
+		MigrationConfig config = new MigrationConfig();
+		config.setZeroDatePolicy(ZeroDatePolicy.valueOf(System.getProperty("mysql2pgsql.zeroDates", ZeroDatePolicy.EPOCH.name()).toUpperCase()));
+		config.setChunkRetries(Integer.getInteger("mysql2pgsql.chunkRetries", DataMigrator.DEFAULT_CHUNK_RETRIES));
+		config.setProfiling(Boolean.parseBoolean(System.getProperty("mysql2pgsql.profile", "true")));
+		String filterFile = System.getProperty("mysql2pgsql.tableFilters");
+		if (filterFile != null) {
+			config.setFilters(TableFilters.load(new File(filterFile)));
+		}
+		config.setConnections(Integer.getInteger("mysql2pgsql.connections", 0));
+		config.setMaxRowsPerSecond(Long.getLong("mysql2pgsql.maxRowsPerSecond", 0));
+		config.setMaxBytesPerSecond(Long.getLong("mysql2pgsql.maxBytesPerSecond", 0));
+		config.setMaxReplicaLag(Long.getLong("mysql2pgsql.maxReplicaLag"));
+		config.setReplicaLagPollSeconds(Long.getLong("mysql2pgsql.replicaLagPollSeconds", 10));
+		config.setConsistentSnapshot(Boolean.getBoolean("mysql2pgsql.consistentSnapshot"));
+		config.setIncremental(Boolean.getBoolean("mysql2pgsql.incremental"));
+		config.setLeaseSeconds(Integer.getInteger("mysql2pgsql.leaseSeconds", 300));
+		config.setCopy(Boolean.parseBoolean(System.getProperty("mysql2pgsql.copy", "true")));
+		config.setShadowLoad(Boolean.getBoolean("mysql2pgsql.shadowLoad"));
+		config.setSwapLockTimeoutMillis(Long.getLong("mysql2pgsql.swapLockTimeoutMillis", 2000));
+		String deadLetterDir = System.getProperty("mysql2pgsql.deadLetterDir");
+		if (deadLetterDir != null) {
+			config.setDeadLetterDir(new File(deadLetterDir));
+		}
+		String shards = System.getProperty("mysql2pgsql.shards");
+		if (shards != null) {
+			config.setShards(Shard.parse(shards));
+		}
+		config.setShardColumn(System.getProperty("mysql2pgsql.shardColumn"));
+		Long memoryBudgetMB = Long.getLong("mysql2pgsql.memoryBudgetMB");
+		if (memoryBudgetMB != null) {
+			config.setMemoryBudget(memoryBudgetMB * 1024 * 1024);
+		}
+		return config;
+	}
+
+	/**
+	 * @return the JDBC url of each mysql host, the schema is read from the first one
+	 */
+	public List<String> getMysqlUrls() {
+		List<String> mysqlUrls = new ArrayList<>();
+		for (String host : mysqlHosts) {
+			mysqlUrls.add("jdbc:mysql://" + host + ":" + mysqlPort + "/");
+		}
+		return mysqlUrls;
+	}
+
+	public String getPgsqlUrl() {
+		return "jdbc:postgresql://" + pgsqlHost + ":" + pgsqlPort + "/" + pgsqlDb;
+	}
+
+	/**
+	 * @return the number of chunks transferred in parallel. With more replicas to read from, more chunks can be read
+	 * in parallel, so unless set it's {@value #CONNECTIONS_PER_HOST} per mysql host. When consolidating shards it's
+	 * one per shard, but at least {@value #CONNECTIONS_PER_HOST}, so every shard is read from at once without opening
+	 * more pgsql connections than a default server accepts for a few dozen shards
+	 */
+	public int getConnections() {
+		if (connections > 0) {
+			return connections;
+		}
+		return shards != null ? Math.max(CONNECTIONS_PER_HOST, shards.size()) : CONNECTIONS_PER_HOST * mysqlHosts.size();
+	}
+
+	/**
+	 * @param connections the number of chunks to transfer in parallel, or 0 for the default
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public List<String> getMysqlHosts() {
+		return mysqlHosts;
+	}
+
+	/**
+	 * @param mysqlHosts one or more replicas holding the same data, the schema is read from the first one
+	 */
+	public void setMysqlHosts(List<String> mysqlHosts) {
+		this.mysqlHosts = mysqlHosts;
+	}
+
+	public void setMysqlHosts(String... mysqlHosts) {
+		setMysqlHosts(Arrays.asList(mysqlHosts));
+	}
+
+	public int getMysqlPort() {
+		return mysqlPort;
+	}
+
+	public void setMysqlPort(int mysqlPort) {
+		this.mysqlPort = mysqlPort;
+	}
+
+	public String getMysqlUser() {
+		return mysqlUser;
+	}
+
+	public void setMysqlUser(String mysqlUser) {
+		this.mysqlUser = mysqlUser;
+	}
+
+	public String getMysqlPassword() {
+		return mysqlPassword;
+	}
+
+	public void setMysqlPassword(String mysqlPassword) {
+		this.mysqlPassword = mysqlPassword;
+	}
+
+	public String getMysqlSchema() {
+		return mysqlSchema;
+	}
+
+	public void setMysqlSchema(String mysqlSchema) {
+		this.mysqlSchema = mysqlSchema;
+	}
+
+	public String getPgsqlHost() {
+		return pgsqlHost;
+	}
+
+	public void setPgsqlHost(String pgsqlHost) {
+		this.pgsqlHost = pgsqlHost;
+	}
+
+	public int getPgsqlPort() {
+		return pgsqlPort;
+	}
+
+	public void setPgsqlPort(int pgsqlPort) {
+		this.pgsqlPort = pgsqlPort;
+	}
+
+	public String getPgsqlDb() {
+		return pgsqlDb;
+	}
+
+	public void setPgsqlDb(String pgsqlDb) {
+		this.pgsqlDb = pgsqlDb;
+	}
+
+	public String getPgsqlUser() {
+		return pgsqlUser;
+	}
+
+	public void setPgsqlUser(String pgsqlUser) {
+		this.pgsqlUser = pgsqlUser;
+	}
+
+	public String getPgsqlPassword() {
+		return pgsqlPassword;
+	}
+
+	public void setPgsqlPassword(String pgsqlPassword) {
+		this.pgsqlPassword = pgsqlPassword;
+	}
+
+	public String getPgsqlSchema() {
+		return pgsqlSchema;
+	}
+
+	public void setPgsqlSchema(String pgsqlSchema) {
+		this.pgsqlSchema = pgsqlSchema;
+	}
+
+	/**
+	 * @return the pgsql schema the rows are loaded into: the shadow schema when loading into shadow tables, otherwise
+	 * the pgsql schema itself
+	 */
+	public String getLoadSchema() {
+		return shadowLoad ? pgsqlSchema + SHADOW_SUFFIX : pgsqlSchema;
+	}
+
+	public Set<String> getOnlyMigrateTables() {
+		return onlyMigrateTables;
+	}
+
+	/**
+	 * @param onlyMigrateTables lower case names of the tables to migrate, or null to migrate all tables of the schema
+	 */
+	public void setOnlyMigrateTables(Set<String> onlyMigrateTables) {
+		this.onlyMigrateTables = onlyMigrateTables;
+	}
+
+	public ZeroDatePolicy getZeroDatePolicy() {
+		return zeroDatePolicy;
+	}
+
+	public void setZeroDatePolicy(ZeroDatePolicy zeroDatePolicy) {
+		this.zeroDatePolicy = zeroDatePolicy;
+	}
+
+	public int getChunkRetries() {
+		return chunkRetries;
+	}
+
+	public void setChunkRetries(int chunkRetries) {
+		this.chunkRetries = chunkRetries;
+	}
+
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	/**
+	 * @param profiling whether to gather column statistics during the transfer
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	public TableFilters getFilters() {
+		return filters;
+	}
+
+	public void setFilters(TableFilters filters) {
+		this.filters = filters;
+	}
+
+	public long getMaxRowsPerSecond() {
+		return maxRowsPerSecond;
+	}
+
+	/**
+	 * @param maxRowsPerSecond the maximum number of rows to read from mysql per second, or 0 for no limit
+	 */
+	public void setMaxRowsPerSecond(long maxRowsPerSecond) {
+		this.maxRowsPerSecond = maxRowsPerSecond;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	/**
+	 * @param maxBytesPerSecond the maximum number of bytes to read from mysql per second, or 0 for no limit
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	public Long getMaxReplicaLag() {
+		return maxReplicaLag;
+	}
+
+	/**
+	 * @param maxReplicaLag the replica lag in seconds above which fewer chunks are read in parallel, or null to not
+	 * poll the lag
+	 */
+	public void setMaxReplicaLag(Long maxReplicaLag) {
+		this.maxReplicaLag = maxReplicaLag;
+	}
+
+	public long getReplicaLagPollSeconds() {
+		return replicaLagPollSeconds;
+	}
+
+	public void setReplicaLagPollSeconds(long replicaLagPollSeconds) {
+		this.replicaLagPollSeconds = replicaLagPollSeconds;
+	}
+
+	public boolean isConsistentSnapshot() {
+		return consistentSnapshot;
+	}
+
+	/**
+	 * @param consistentSnapshot whether to read all data from one consistent snapshot of the first mysql host
+	 */
+	public void setConsistentSnapshot(boolean consistentSnapshot) {
+		this.consistentSnapshot = consistentSnapshot;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @param incremental whether to only recreate and migrate the tables that changed since the last run
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean isRecreateSchema() {
+		return recreateSchema;
+	}
+
+	/**
+	 * @param recreateSchema whether to drop and recreate the whole pgsql schema, not just the migrated tables
+	 */
+	public void setRecreateSchema(boolean recreateSchema) {
+		this.recreateSchema = recreateSchema;
+	}
+
+	public int getLeaseSeconds() {
+		return leaseSeconds;
+	}
+
+	/**
+	 * @param leaseSeconds how long a worker may hold a chunk before it's handed out again
+	 */
+	public void setLeaseSeconds(int leaseSeconds) {
+		this.leaseSeconds = leaseSeconds;
+	}
+
+	public File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * @param metricsFile where the observed transfer rates are kept between runs
+	 */
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget the bytes all transfer workers together may hold for rows read but not yet sent, or 0 for
+	 * no limit. Half the max heap by default, leaving the rest for everything else
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public boolean isCopy() {
+		return copy;
+	}
+
+	/**
+	 * @param copy true to load the rows with COPY, false to insert them with batched prepared statements
+	 */
+	public void setCopy(boolean copy) {
+		this.copy = copy;
+	}
+
+	public boolean isShadowLoad() {
+		return shadowLoad;
+	}
+
+	/**
+	 * @param shadowLoad true to load and index the tables in a shadow schema and swap them in when done, so the
+	 * existing tables stay readable during the load. Workers must be given the same setting as their coordinator
+	 */
+	public void setShadowLoad(boolean shadowLoad) {
+		this.shadowLoad = shadowLoad;
+	}
+
+	public long getSwapLockTimeoutMillis() {
+		return swapLockTimeoutMillis;
+	}
+
+	/**
+	 * @param swapLockTimeoutMillis how long the swap of the shadow tables waits for a lock before it's rolled back and
+	 * retried. Queries on the tables queue up behind a waiting swap, so it shouldn't wait long
+	 */
+	public void setSwapLockTimeoutMillis(long swapLockTimeoutMillis) {
+		this.swapLockTimeoutMillis = swapLockTimeoutMillis;
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	/**
+	 * @param shards the mysql schemas to consolidate into the one pgsql schema, all with the same tables as the mysql
+	 * schema, which the pgsql tables are converted from. Null to migrate the mysql schema itself, which is the default.
+	 * Workers must be given the same list as their coordinator
+	 */
+	public void setShards(List<Shard> shards) {
+		this.shards = shards;
+	}
+
+	public String getShardColumn() {
+		return shardColumn;
+	}
+
+	/**
+	 * @param shardColumn the column to keep the shard id of each row in when consolidating shards, it becomes the first
+	 * column of every key. Null to drop the shard ids once all rows are loaded, for shards whose keys don't overlap
+	 */
+	public void setShardColumn(String shardColumn) {
+		this.shardColumn = shardColumn;
+	}
+
+	/**
+	 * @return the column the shard ids are loaded into when consolidating shards: the shard column if it is kept,
+	 * otherwise a column of its own that is dropped after the load. Null if there is a single mysql schema
+	 */
+	public String getLoadShardColumn() {
+		if (shards == null) {
+			return null;
+		}
+		return shardColumn != null ? shardColumn : Shard.LOAD_COLUMN;
+	}
+
+	public File getDeadLetterDir() {
+		return deadLetterDir;
+	}
+
+	/**
+	 * @param deadLetterDir where to write the rows pgsql refuses, one file per table, while all other rows of their
+	 * chunks are loaded. Null to fail the chunk of such a row instead, which is the default
+	 */
+	public void setDeadLetterDir(File deadLetterDir) {
+		this.deadLetterDir = deadLetterDir;
+	}
+}
@@ -0,0 +1,30 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * Receives the progress of a migration. Called from the transfer threads, so implementations must be thread safe.
+ * @author adam
+ */
+public interface MigrationListener {
+
+	/**
+	 * @param message a line of progress, as printed by the command line tool
+	 */
+	void message(String message);
+
+	/**
+	 * A chunk has been committed in the sink
+	 * @param tableName
+	 * @param chunk
+	 * @param rows the number of rows of the chunk
+	 * @param millis how long the chunk took, including any retries
+	 */
+	void chunkTransferred(String tableName, TableChunk chunk, long rows, long millis);
+
+	/**
+	 * All chunks of a table have been transferred
+	 * @param tableName
+	 * @param tablesDone the number of tables transferred so far, including this one
+	 * @param tables the number of tables to transfer
+	 */
+	void tableTransferred(String tableName, int tablesDone, int tables);
+}
@@ -0,0 +1,121 @@
+package com.adam.mysql2pgsql;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * The tables to migrate in the order they will be scheduled, and the predicted duration of each phase
+ * @author adam
+ */
+public class MigrationPlan {
+
+	private final List<TablePlan> tables;
+	private final int parallelism;
+	private final long estTransferMillis;
+	private final long estIndexMillis;
+	private final boolean calibrated;
+
+	MigrationPlan(List<TablePlan> tables, int parallelism, long estTransferMillis, long estIndexMillis, boolean calibrated) {
+		this.tables = tables;
+		this.parallelism = parallelism;
+		this.estTransferMillis = estTransferMillis;
+		this.estIndexMillis = estIndexMillis;
+		this.calibrated = calibrated;
+	}
+
+	/**
+	 * @return the tables in scheduling order, largest first
+	 */
+	public List<TablePlan> getTables() {
+		return tables;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @return the estimated wall clock time of the parallel data transfer
+	 */
+	public long getEstTransferMillis() {
+		return estTransferMillis;
+	}
+
+	/**
+	 * @return the estimated wall clock time of the pk, index and constraint phases
+	 */
+	public long getEstIndexMillis() {
+		return estIndexMillis;
+	}
+
+	/**
+	 * @return false if the estimates are based on default rates, with no previous runs recorded
+	 */
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+
+	public long getEstTotalMillis() {
+		return estTransferMillis + estIndexMillis;
+	}
+
+	/**
+	 * @return the sum of the data length of each table times its number of indices, the work of the index phases
+	 */
+	public long getIndexedBytes() {
+		long indexedBytes = 0;
+		for (TablePlan table : tables) {
+			indexedBytes += table.getStats().getDataLength() * table.getStats().getIndexCount();
+		}
+		return indexedBytes;
+	}
+
+	/**
+	 * Prints the plan, one line per table in scheduling order followed by the totals
+	 * @param writer
+	 */
+	public void print(PrintWriter writer) {
+		for (TablePlan table : tables) {
+			TableStats stats = table.getStats();
+			StringBuilder sb = new StringBuilder();
+			sb.append(table.getTableName());
+			Shard shard = table.getChunks().get(0).getShard();
+			if (shard != null) {
+				sb.append(" of ").append(shard);
+			}
+			sb.append(": rows=").append(stats.getRows())
+					.append(", avg row=").append(stats.getAvgRowLength()).append("B")
+					.append(", data=").append(stats.getDataLength() / 1_000_000).append("MB")
+					.append(", indices=").append(stats.getIndexCount());
+			List<TableChunk> chunks = table.getChunks();
+			if (!stats.getPartitions().isEmpty()) {
+				sb.append(", ").append(stats.getPartitions().size()).append(" partitions");
+			}
+			NumericColumnRange first = chunks.get(0).getRange();
+			if (stats.getPkRange() != null) {
+				sb.append(", pk ").append(stats.getPkRange())
+						.append(" density=").append(String.format("%.2f", stats.getPkDensity()));
+			}
+			sb.append(", ").append(chunks.size()).append(chunks.size() == 1 ? " chunk" : " chunks");
+			if (first != null) {
+				sb.append(" of ").append(first.getMax() - first.getMin() + 1).append(" ids");
+			}
+			sb.append(", worker ").append(table.getWorker())
+					.append(" at ").append(formatMillis(table.getEstStartMillis()))
+					.append(", transfer ").append(formatMillis(table.getEstTransferMillis()))
+					.append(", indices ").append(formatMillis(table.getEstIndexMillis()));
+			writer.println(sb);
+		}
+		writer.println(tables.size() + " tables on " + parallelism + " workers"
+				+ (calibrated ? "" : " (no previous runs recorded, using default rates)"));
+		writer.println("Estimated data transfer: " + formatMillis(estTransferMillis));
+		writer.println("Estimated pk, index and constraint build: " + formatMillis(estIndexMillis));
+		writer.println("Estimated total: " + formatMillis(getEstTotalMillis()));
+		writer.flush();
+	}
+
+	static String formatMillis(long millis) {
+		long seconds = millis / 1000;
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+}
@@ -0,0 +1,411 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Collects statistics for all tables to migrate and decides how to transfer them: the partition and pk chunks of each
+ * table, the order in which tables are handed to the workers and the predicted time of each phase, calibrated with the rates
+ * from {@link RunMetrics}.
+ * @author adam
+ */
+public class MigrationPlanner {
+
+	/**
+	 * Tables and partitions with more data than this are split into pk range chunks of roughly this size
+	 */
+	static final long MAX_QUERY_SIZE = 20_000_000L;
+	private final String mysqlUrl;
+	private final String mysqlUser;
+	private final String mysqlPassword;
+	private final String mysqlSchema;
+	private final Set<String> onlyMigrateTables;
+	private final int parallelism;
+	private final RunMetrics runMetrics;
+	private SnapshotConnections snapshot;
+	private TableFilters filters = TableFilters.none();
+	private Shard shard;
+
+	/**
+	 * @param mysqlUrl
+	 * @param mysqlUser
+	 * @param mysqlPassword
+	 * @param mysqlSchema
+	 * @param onlyMigrateTables
+	 * @param parallelism the number of tables transferred concurrently
+	 * @param runMetrics rates from previous runs
+	 */
+	public MigrationPlanner(
+			String mysqlUrl,
+			String mysqlUser,
+			String mysqlPassword,
+			String mysqlSchema,
+			Set<String> onlyMigrateTables,
+			int parallelism,
+			RunMetrics runMetrics) {
+		this.mysqlUrl = mysqlUrl;
+		this.mysqlUser = mysqlUser;
+		this.mysqlPassword = mysqlPassword;
+		this.mysqlSchema = mysqlSchema;
+		this.onlyMigrateTables = onlyMigrateTables;
+		this.parallelism = parallelism;
+		this.runMetrics = runMetrics;
+	}
+
+	/**
+	 * Makes the pk ranges be read within a consistent snapshot, so they match the rows the chunks will read
+	 * @param snapshot the snapshot connections, or null to use a connection of its own
+	 */
+	public void setSnapshot(SnapshotConnections snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @param filters the rows of each table to migrate, the pk ranges only cover those
+	 */
+	public void setFilters(TableFilters filters) {
+		this.filters = filters;
+	}
+
+	/**
+	 * @param shard the shard the schema is, its chunks are read from it. Null if there is a single mysql schema
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * @return the plan for all tables in the schema
+	 * @throws SQLException
+	 */
+	public MigrationPlan plan() throws SQLException {
+		List<TableStats> allStats = collectTableStats();
+		List<TablePlan> tables = new ArrayList<>();
+		double transferRate = runMetrics.getTransferBytesPerSecond();
+		double indexRate = runMetrics.getIndexBytesPerSecond();
+		long estIndexMillis = 0;
+		for (TableStats stats : allStats) {
+			List<TableChunk> chunks = new ArrayList<>();
+			if (stats.getPartitions().isEmpty()) {
+				addChunks(chunks, stats, shard);
+			}
+			for (TableStats partition : stats.getPartitions()) {
+				addChunks(chunks, partition, shard);
+			}
+			long transferMillis = (long) (stats.getDataLength() * 1000 / transferRate);
+			long indexMillis = (long) (stats.getDataLength() * stats.getIndexCount() * 1000 / indexRate);
+			estIndexMillis += indexMillis;
+			tables.add(new TablePlan(stats, chunks, transferMillis, indexMillis));
+		}
+		//Longest first, so the big tables don't end up alone on one worker at the end
+		Collections.sort(tables, new Comparator<TablePlan>() {
+			@Override
+			public int compare(TablePlan t1, TablePlan t2) {
+				return Long.compare(t2.getEstTransferMillis(), t1.getEstTransferMillis());
+			}
+		});
+		long estTransferMillis = simulateSchedule(tables, parallelism);
+		//The pk, index and constraint files are executed serially by psql
+		return new MigrationPlan(tables, parallelism, estTransferMillis, estIndexMillis, runMetrics.isCalibrated());
+	}
+
+	/**
+	 * Merges the plans of the shards being consolidated into one plan. The tables are taken from the shards in turns,
+	 * each round longest first, so the workers read from all shards at once from the start instead of going through
+	 * them one by one
+	 * @param shardPlans the plan of each shard, each longest first
+	 * @param parallelism the number of tables transferred concurrently
+	 * @return the plan for the tables of all shards
+	 */
+	static MigrationPlan combine(List<MigrationPlan> shardPlans, int parallelism) {
+		List<TablePlan> tables = new ArrayList<>();
+		boolean calibrated = true;
+		long estIndexMillis = 0;
+		for (MigrationPlan shardPlan : shardPlans) {
+			calibrated &= shardPlan.isCalibrated();
+			//The indices are built once over the rows of all shards
+			estIndexMillis += shardPlan.getEstIndexMillis();
+		}
+		for (int round = 0;; round++) {
+			List<TablePlan> roundTables = new ArrayList<>();
+			for (MigrationPlan shardPlan : shardPlans) {
+				if (round < shardPlan.getTables().size()) {
+					roundTables.add(shardPlan.getTables().get(round));
+				}
+			}
+			if (roundTables.isEmpty()) {
+				break;
+			}
+			Collections.sort(roundTables, new Comparator<TablePlan>() {
+				@Override
+				public int compare(TablePlan t1, TablePlan t2) {
+					return Long.compare(t2.getEstTransferMillis(), t1.getEstTransferMillis());
+				}
+			});
+			tables.addAll(roundTables);
+		}
+		return new MigrationPlan(tables, parallelism, simulateSchedule(tables, parallelism), estIndexMillis, calibrated);
+	}
+
+	/**
+	 * Adds the chunks of a table or of one of its partitions: pk ranges of roughly {@link #MAX_QUERY_SIZE} if it has
+	 * a pk range, else a single chunk
+	 */
+	private static void addChunks(List<TableChunk> chunks, TableStats stats, Shard shard) {
+		if (stats.getPkRange() == null) {
+			chunks.add(new TableChunk(stats.getPartitionName(), null, stats.getDataLength(), shard));
+			return;
+		}
+		List<NumericColumnRange> ranges = stats.getPkRange().split(stats.getDataLength() / MAX_QUERY_SIZE);
+		for (NumericColumnRange range : ranges) {
+			chunks.add(new TableChunk(stats.getPartitionName(), range, stats.getDataLength() / ranges.size(), shard));
+		}
+	}
+
+	/**
+	 * Hands the streams of each table, one per partition, to the worker that becomes free first, the same way the
+	 * connection permits will
+	 * @return the time until the last worker is done
+	 */
+	private static long simulateSchedule(List<TablePlan> tables, int parallelism) {
+		PriorityQueue<long[]> workers = new PriorityQueue<>(parallelism, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] w1, long[] w2) {
+				return w1[1] != w2[1] ? Long.compare(w1[1], w2[1]) : Long.compare(w1[0], w2[0]);
+			}
+		});
+		for (int i = 0; i < parallelism; i++) {
+			workers.add(new long[]{i, 0});
+		}
+		long end = 0;
+		for (TablePlan table : tables) {
+			boolean first = true;
+			for (List<TableChunk> stream : table.getStreams().values()) {
+				long[] worker = workers.poll();
+				if (first) {
+					table.schedule((int) worker[0], worker[1]);
+					first = false;
+				}
+				worker[1] += table.getEstTransferMillis(stream);
+				end = Math.max(end, worker[1]);
+				workers.add(worker);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return statistics for all tables to migrate, ignoring some obvious ignorables
+	 * @throws SQLException
+	 */
+	List<TableStats> collectTableStats() throws SQLException {
+		Connection mysqlCon = null;
+		PreparedStatement stmt = null;
+		List<TableStats> allStats = new ArrayList<>();
+		try {
+			mysqlCon = snapshot != null ? snapshot.acquire() : DriverManager.getConnection(mysqlUrl, mysqlUser, mysqlPassword);
+			mysqlCon.setCatalog(mysqlSchema);
+			Map<String, Integer> indexCounts = getIndexCounts(mysqlCon);
+			Map<String, List<TableStats>> partitionStats = getPartitionStats(mysqlCon);
+			stmt = mysqlCon.prepareStatement(""
+					+ "SELECT table_name, table_rows, avg_row_length, data_length, index_length\n"
+					+ "FROM information_schema.tables \n"
+					+ "WHERE table_schema = ? \n"
+					+ "AND table_type = 'BASE TABLE';"); //Where clause addded to prevent views from appearing in the resultset
+			stmt.setString(1, mysqlSchema);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				String tableName = rs.getString("table_name");
+				if (!shouldMigrate(tableName)) {
+					continue;
+				}
+				long dataLength = rs.getLong("data_length");
+				List<TableStats> partitions = partitionStats.get(tableName);
+				NumericColumnRange pkRange = null;
+				if (dataLength > MAX_QUERY_SIZE && partitions == null) {
+					pkRange = findNumericPkRange(mysqlCon, tableName, null);
+				}
+				Integer indexCount = indexCounts.get(tableName);
+				allStats.add(new TableStats(
+						tableName,
+						null,
+						rs.getLong("table_rows"),
+						rs.getLong("avg_row_length"),
+						dataLength,
+						rs.getLong("index_length"),
+						indexCount == null ? 0 : indexCount,
+						pkRange,
+						partitions == null ? Collections.<TableStats>emptyList() : partitions));
+			}
+			return allStats;
+		} finally {
+			JdbcUtils.cleanup(stmt);
+			if (snapshot != null) {
+				if (mysqlCon != null) {
+					snapshot.release(mysqlCon);
+				}
+			} else {
+				JdbcUtils.cleanup(mysqlCon);
+			}
+		}
+	}
+
+	private boolean shouldMigrate(String tableName) {
+		if (tableName == null || tableName.length() == 0) {
+			return false;
+		}
+		String tableNameLc = tableName.toLowerCase();
+		if (onlyMigrateTables != null && !onlyMigrateTables.contains(tableNameLc)) {
+			return false;
+		}
+		return !(tableNameLc.startsWith("tmp_")
+				|| tableNameLc.startsWith("temp_")
+				|| tableNameLc.contains("_bak_")
+				|| tableNameLc.endsWith("_bak")
+				|| tableNameLc.contains("_bck_")
+				|| tableNameLc.endsWith("_bck")
+				|| tableNameLc.contains("_old_")
+				|| tableNameLc.endsWith("_old"));
+	}
+
+	private Map<String, Integer> getIndexCounts(Connection mysqlCon) throws SQLException {
+		PreparedStatement stmt = null;
+		Map<String, Integer> indexCounts = new HashMap<>();
+		try {
+			stmt = mysqlCon.prepareStatement(""
+					+ "SELECT table_name, COUNT(DISTINCT index_name) AS index_count\n"
+					+ "FROM information_schema.statistics \n"
+					+ "WHERE table_schema = ? \n"
+					+ "GROUP BY table_name;");
+			stmt.setString(1, mysqlSchema);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				indexCounts.put(rs.getString("table_name"), rs.getInt("index_count"));
+			}
+			return indexCounts;
+		} finally {
+			JdbcUtils.cleanup(stmt);
+		}
+	}
+
+	/**
+	 * Collects statistics for each partition of the tables that can be transferred partition by partition, see
+	 * {@link PartitionScheme}
+	 * @return the statistics of the partitions by table name, in partition order
+	 */
+	private Map<String, List<TableStats>> getPartitionStats(Connection mysqlCon) throws SQLException {
+		PreparedStatement stmt = null;
+		Map<String, List<TableStats>> partitionStats = new HashMap<>();
+		Set<String> unsupported = new HashSet<>();
+		try {
+			stmt = mysqlCon.prepareStatement(""
+					+ "SELECT table_name, partition_name, subpartition_name, partition_method, partition_expression, table_rows, avg_row_length, data_length\n"
+					+ "FROM information_schema.partitions \n"
+					+ "WHERE table_schema = ? \n"
+					+ "AND partition_name IS NOT NULL \n"
+					+ "ORDER BY table_name, partition_ordinal_position, subpartition_ordinal_position;");
+			stmt.setString(1, mysqlSchema);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				String tableName = rs.getString("table_name");
+				if (!shouldMigrate(tableName) || unsupported.contains(tableName)) {
+					continue;
+				}
+				if (rs.getString("subpartition_name") != null || !PartitionScheme.isSupported(rs.getString("partition_method"), rs.getString("partition_expression"))) {
+					//Transferred like any other table, into a table that isn't partitioned
+					unsupported.add(tableName);
+					continue;
+				}
+				String partitionName = rs.getString("partition_name");
+				long dataLength = rs.getLong("data_length");
+				NumericColumnRange pkRange = null;
+				if (dataLength > MAX_QUERY_SIZE) {
+					pkRange = findNumericPkRange(mysqlCon, tableName, partitionName);
+				}
+				List<TableStats> partitions = partitionStats.get(tableName);
+				if (partitions == null) {
+					partitions = new ArrayList<>();
+					partitionStats.put(tableName, partitions);
+				}
+				partitions.add(new TableStats(tableName, partitionName, rs.getLong("table_rows"), rs.getLong("avg_row_length"), dataLength, 0, 0, pkRange, Collections.<TableStats>emptyList()));
+			}
+			return partitionStats;
+		} finally {
+			JdbcUtils.cleanup(stmt);
+		}
+	}
+
+	/**
+	 * @param partitionName the partition to find the range within, or null for the whole table
+	 * @return the min and max value of the first integer column of the pk, or null if the table doesn't have one
+	 */
+	private NumericColumnRange findNumericPkRange(Connection mysqlCon, String tableName, String partitionName) throws SQLException {
+		String numericPkColumn = findNumericPkColumn(mysqlCon, tableName);
+		if (numericPkColumn == null) {
+			return null;
+		}
+		PreparedStatement ps = null;
+		try {
+			String where = filters.getWhere(tableName);
+			ps = mysqlCon.prepareStatement(String.format("SELECT MIN(%s) AS min, MAX(%s) AS max FROM `%s`.`%s`%s%s;", numericPkColumn, numericPkColumn, mysqlSchema, tableName,
+					partitionName != null ? " PARTITION (`" + partitionName + "`)" : "", where != null ? " WHERE " + where : ""));
+			ResultSet rs = ps.executeQuery();
+			if (rs.next()) {
+				return new NumericColumnRange(numericPkColumn, rs.getLong("min"), rs.getLong("max"), countPkColumns(mysqlCon, tableName) == 1);
+			}
+			return null;
+		} finally {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+
+	private int countPkColumns(Connection mysqlCon, String tableName) throws SQLException {
+		PreparedStatement ps = null;
+		try {
+			ps = mysqlCon.prepareStatement("SHOW COLUMNS FROM `" + mysqlSchema + "`.`" + tableName + "` WHERE `Key` IN ('PRI');");
+			ResultSet rs = ps.executeQuery();
+			int count = 0;
+			while (rs.next()) {
+				count++;
+			}
+			return count;
+		} finally {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+
+	private String findNumericPkColumn(Connection mysqlCon, String tableName) throws SQLException {
+		PreparedStatement ps = null;
+		try {
+			ps = mysqlCon.prepareStatement(""
+					+ "SHOW COLUMNS \n"
+					+ "FROM `" + mysqlSchema + "`.`" + tableName + "` \n"
+					+ "WHERE `Null` = 'NO' \n"
+					+ "AND `Key` IN ('PRI') \n"
+					+ "AND (`Type` LIKE 'bigint%' OR `Type` LIKE 'int%')"
+					+ ";");
+			ResultSet rs = ps.executeQuery();
+			String colName;
+			if (rs.next()) {
+				colName = rs.getString("Field");
+			} else {
+				colName = null;
+			}
+			return colName;
+		} finally {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the rows of each chunk from mysql, through the endpoint picked by {@link SourceEndpoints} or from a
+ * consistent snapshot. Rows are streamed one by one, never buffered by the driver.
+ * @author adam
+ */
+public class MysqlRowSource implements RowSource {
+
+	private final SourceEndpoints sources;
+	private final String mysqlSchema;
+	private SnapshotConnections snapshot;
+	private TableFilters filters = TableFilters.none();
+
+	/**
+	 * @param sources the mysql servers to read from
+	 * @param mysqlSchema
+	 */
+	public MysqlRowSource(SourceEndpoints sources, String mysqlSchema) {
+		this.sources = sources;
+		this.mysqlSchema = mysqlSchema;
+	}
+
+	/**
+	 * Makes all chunks be read through connections sharing one consistent snapshot, instead of through the endpoints
+	 * @param snapshot the snapshot connections, or null to read each chunk on a connection of its own
+	 */
+	public void setSnapshot(SnapshotConnections snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @param filters the rows and columns to read of each table
+	 */
+	public void setFilters(TableFilters filters) {
+		this.filters = filters;
+	}
+
+	@Override
+	public RowSource.Session open() {
+		return new Session();
+	}
+
+	/**
+	 * Keeps one connection to each endpoint, opened as needed. If an endpoint fails, its connection is dropped and
+	 * the endpoint is left out, so a retry reads from another one
+	 */
+	private class Session implements RowSource.Session {
+
+		private final Map<SourceEndpoints.Endpoint, Connection> mysqlCons = new HashMap<>();
+		private SourceEndpoints.Endpoint endpoint;
+		private Connection snapshotCon;
+		private long startTime;
+
+		@Override
+		public RowReader read(String tableName, TableChunk chunk) throws SQLException {
+			Connection mysqlCon;
+			if (snapshot != null) {
+				snapshotCon = snapshot.acquire();
+				mysqlCon = snapshotCon;
+			} else {
+				endpoint = sources.acquire();
+				startTime = System.currentTimeMillis();
+				mysqlCon = mysqlCons.get(endpoint);
+				if (mysqlCon == null) {
+					mysqlCon = sources.connect(endpoint);
+					mysqlCons.put(endpoint, mysqlCon);
+				}
+			}
+			String sql = String.format("SELECT %s FROM `%s`.`%s`", filters.getSelectList(mysqlCon, mysqlSchema, tableName), mysqlSchema, tableName);
+			if (chunk.getPartition() != null) {
+				sql += " PARTITION (`" + chunk.getPartition() + "`)";
+			}
+			NumericColumnRange range = chunk.getRange();
+			String where = filters.getWhere(tableName);
+			if (range != null) {
+				sql += String.format(" WHERE %s BETWEEN ? AND ?", range.getColName());
+				if (where != null) {
+					sql += " AND (" + where + ")";
+				}
+			} else if (where != null) {
+				sql += " WHERE " + where;
+			}
+			PreparedStatement mysqlPs = mysqlCon.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				//Stream rows one by one instead of letting the mysql driver buffer the whole result set
+				mysqlPs.setFetchSize(Integer.MIN_VALUE);
+				if (range != null) {
+					mysqlPs.setLong(1, range.getMin());
+					mysqlPs.setLong(2, range.getMax());
+				}
+				return new ResultSetRowReader(mysqlPs, mysqlPs.executeQuery());
+			} catch (SQLException e) {
+				JdbcUtils.cleanup(mysqlPs);
+				throw e;
+			}
+		}
+
+		@Override
+		public void endRead(long bytes, SQLException failure) {
+			if (snapshotCon != null) {
+				snapshot.release(snapshotCon);
+				snapshotCon = null;
+				return;
+			}
+			if (endpoint == null) {
+				return;
+			}
+			if (failure == null) {
+				sources.release(endpoint, bytes, System.currentTimeMillis() - startTime);
+			} else if (!isValid(mysqlCons.get(endpoint))) {
+				sources.failed(endpoint, failure);
+				JdbcUtils.cleanup(mysqlCons.remove(endpoint));
+			} else {
+				sources.release(endpoint, 0, 0);
+			}
+			endpoint = null;
+		}
+
+		private boolean isValid(Connection mysqlCon) {
+			try {
+				return mysqlCon != null && mysqlCon.isValid(5);
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void close() {
+			for (Connection mysqlCon : mysqlCons.values()) {
+				JdbcUtils.cleanup(mysqlCon);
+			}
+		}
+	}
+
+	/**
+	 * The rows of a mysql result set
+	 */
+	private static class ResultSetRowReader implements RowReader {
+
+		private final PreparedStatement ps;
+		private final ResultSet rs;
+		private final String[] names;
+		private final int[] types;
+		private final String[] typeNames;
+
+		ResultSetRowReader(PreparedStatement ps, ResultSet rs) throws SQLException {
+			this.ps = ps;
+			this.rs = rs;
+			ResultSetMetaData metaData = rs.getMetaData();
+			int columnCount = metaData.getColumnCount();
+			this.names = new String[columnCount];
+			this.types = new int[columnCount];
+			this.typeNames = new String[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				names[i] = metaData.getColumnLabel(i + 1);
+				types[i] = metaData.getColumnType(i + 1);
+				typeNames[i] = metaData.getColumnTypeName(i + 1);
+			}
+		}
+
+		@Override
+		public int getColumnCount() {
+			return names.length;
+		}
+
+		@Override
+		public String getColumnName(int position) {
+			return names[position - 1];
+		}
+
+		@Override
+		public int getColumnType(int position) {
+			return types[position - 1];
+		}
+
+		@Override
+		public String getColumnTypeName(int position) {
+			return typeNames[position - 1];
+		}
+
+		@Override
+		public boolean next() throws SQLException {
+			return rs.next();
+		}
+
+		@Override
+		public boolean wasNull() throws SQLException {
+			return rs.wasNull();
+		}
+
+		@Override
+		public String getString(int position) throws SQLException {
+			return rs.getString(position);
+		}
+
+		@Override
+		public long getLong(int position) throws SQLException {
+			return rs.getLong(position);
+		}
+
+		@Override
+		public int getInt(int position) throws SQLException {
+			return rs.getInt(position);
+		}
+
+		@Override
+		public double getDouble(int position) throws SQLException {
+			return rs.getDouble(position);
+		}
+
+		@Override
+		public boolean getBoolean(int position) throws SQLException {
+			return rs.getBoolean(position);
+		}
+
+		@Override
+		public byte[] getBytes(int position) throws SQLException {
+			return rs.getBytes(position);
+		}
+
+		@Override
+		public InputStream getBinaryStream(int position) throws SQLException {
+			return rs.getBinaryStream(position);
+		}
+
+		@Override
+		public Reader getCharacterStream(int position) throws SQLException {
+			return rs.getCharacterStream(position);
+		}
+
+		@Override
+		public void close() {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package com.adam.mysql2pgsql;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Util class for defining a column and a range
  * @author adam
@@ -9,11 +12,23 @@ public class NumericColumnRange {
 	private final String colName;
 	private final long min;
 	private final long max;
+	private final boolean unique;
 
+	/**
+	 * A range of a column that is the whole pk, see {@link #isUnique()}
+	 */
 	public NumericColumnRange(String colName, long min, long max) {
+		this(colName, min, max, true);
+	}
+
+	/**
+	 * @param unique true if the column is the whole pk, false if it's the first of several pk columns
+	 */
+	public NumericColumnRange(String colName, long min, long max, boolean unique) {
 		this.colName = colName;
 		this.min = min;
 		this.max = max;
+		this.unique = unique;
 	}
 
 	public String getColName() {
@@ -27,4 +42,36 @@ public class NumericColumnRange {
 	public long getMax() {
 		return max;
 	}
+
+	/**
+	 * @return true if the column is the whole pk, so a range of a single value is a single row. The first column of a
+	 * composite pk, e.g. tenant_id of (tenant_id, id), can have any number of rows per value
+	 */
+	public boolean isUnique() {
+		return unique;
+	}
+
+	/**
+	 * Splits this range into consecutive, non overlapping ranges of equal width
+	 * @param nrChunks the wanted number of ranges, the last one may be narrower
+	 * @return the ranges covering min to max, in ascending order
+	 */
+	public List<NumericColumnRange> split(long nrChunks) {
+		long nrValuesPerChunk = (long) Math.ceil(((double) (max - min)) / Math.max(nrChunks, 1));
+		List<NumericColumnRange> chunks = new ArrayList<>();
+		long value = min;
+		while (true) {
+			long end = max - value <= nrValuesPerChunk ? max : value + nrValuesPerChunk;
+			chunks.add(new NumericColumnRange(colName, value, end, unique));
+			if (end >= max) {
+				return chunks;
+			}
+			value = end + 1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return colName + "[" + min + ".." + max + "]";
+	}
 }
@@ -2,32 +2,42 @@ package com.adam.mysql2pgsql;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class PSQLExecutor {
 
+	private static final Logger LOG = Logger.getLogger(PSQLExecutor.class.getName());
 	final String pgsqlHost;
 	final String pgsqlDb;
 	final Integer pgsqlPort;
 	final String pgsqlUser;
 	final String pgsqlPassword;
+	private final MigrationListener listener;
 
-	public PSQLExecutor(String pgsqlHost, String pgsqlDb, Integer pgsqlPort, String pgsqlUser, String pgsqlPassword) {
+	/**
+	 * @param listener receives the output of psql, its warnings and errors
+	 */
+	public PSQLExecutor(String pgsqlHost, String pgsqlDb, Integer pgsqlPort, String pgsqlUser, String pgsqlPassword, MigrationListener listener) {
 		this.pgsqlHost = pgsqlHost;
 		this.pgsqlDb = pgsqlDb;
 		this.pgsqlPort = pgsqlPort;
 		this.pgsqlUser = pgsqlUser;
 		this.pgsqlPassword = pgsqlPassword;
+		this.listener = listener;
 	}
 
 	@SuppressWarnings("SleepWhileInLoop")
 	void executeFile(File file) throws IOException {
-		System.out.println("ExecuteCommand called with file: " + file.getAbsolutePath());
+		LOG.log(Level.FINE, "Executing {0}", file.getAbsolutePath());
 		List<String> args = new LinkedList<>();
 		args.add("psql");
 		args.add("--dbname=" + pgsqlDb);
@@ -36,6 +46,12 @@ public class PSQLExecutor {
 		args.add("-U" + pgsqlUser);
 		args.add("--quiet");
 		args.add("--file=" + file.getAbsolutePath());
+		//psql echoes each statement as it sends it, which times the statements while a flight recording is running
+		List<List<String>> statements = Collections.emptyList();
+		if (new FlightEvents.DdlStatement().isEnabled()) {
+			statements = readStatements(file);
+			args.add("--echo-queries");
+		}
 		ProcessBuilder pb = new ProcessBuilder(args);
 		pb.environment().put("PGPASSWORD", pgsqlPassword);
 		pb.redirectErrorStream(true);
@@ -44,7 +60,26 @@ public class PSQLExecutor {
 		final BufferedReader br = new BufferedReader(new InputStreamReader(is));
 		List<String> lines = new ArrayList<>();
 		String line;
+		FlightEvents.DdlStatement statementEvent = null;
+		int statement = 0;
+		int echoedLines = 0;
 		while ((line = br.readLine()) != null) {
+			if (statement < statements.size() && line.trim().equals(statements.get(statement).get(0))) {
+				if (statementEvent != null) {
+					statementEvent.commit();
+				}
+				statementEvent = new FlightEvents.DdlStatement();
+				statementEvent.begin();
+				statementEvent.file = file.getName();
+				statementEvent.statement = line.trim();
+				echoedLines = 1;
+				statement++;
+				continue;
+			}
+			if (statementEvent != null && echoedLines < statements.get(statement - 1).size() && line.trim().equals(statements.get(statement - 1).get(echoedLines))) {
+				echoedLines++;
+				continue;
+			}
 			if (line.isEmpty() || "\n".equals(line) || line.contains(" NOTICE:")) {
 				try {
 					Thread.sleep(10);
@@ -52,17 +87,41 @@ public class PSQLExecutor {
 				}
 				continue;
 			}
-			System.out.println("PSQL: " + line);
+			listener.message("PSQL: " + line);
 			lines.add(line);
 		}
 		try {
 			int exitCode = process.waitFor();
+			if (statementEvent != null) {
+				statementEvent.commit();
+			}
 			if (exitCode != 0) {
-				System.err.println("Got exit code " + exitCode + " from subprocess");
-				throw new IOException(lines.toString());
+				throw new IOException("psql exited with code " + exitCode + " on " + file.getAbsolutePath() + ": " + lines);
 			}
 		} catch (InterruptedException ex) {
 			throw new IOException(ex);
 		}
 	}
+
+	/**
+	 * @return the trimmed lines of each statement in a file, as psql will echo them
+	 */
+	private static List<List<String>> readStatements(File file) throws IOException {
+		List<List<String>> statements = new ArrayList<>();
+		List<String> statement = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				statement.add(line.trim());
+				if (line.trim().endsWith(";")) {
+					statements.add(statement);
+					statement = new ArrayList<>();
+				}
+			}
+		}
+		return statements;
+	}
 }
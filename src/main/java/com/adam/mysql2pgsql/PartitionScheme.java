@@ -0,0 +1,162 @@
+package com.adam.mysql2pgsql;
+
+import static java.util.regex.Pattern.compile;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * The partitioning of a mysql table, translated to pgsql declarative partitioning (pgsql 11+). RANGE and LIST
+ * partitioning, also with COLUMNS, is translated when partitioning on plain columns, on TO_DAYS(col) or on YEAR(col).
+ * The bounds of the latter two are converted to dates. Other partitioning (HASH, KEY, other expressions,
+ * subpartitions) can't be mapped partition by partition, such tables become ordinary pgsql tables.
+ * @author adam
+ */
+public class PartitionScheme {
+
+	/**
+	 * TO_DAYS('1970-01-01')
+	 */
+	private static final long TO_DAYS_EPOCH = 719528;
+	private final String method;
+	private final List<String> columns;
+	private final String function;
+	private final List<Partition> partitions = new ArrayList<>();
+
+	/**
+	 * A single partition and its bound: the LESS THAN value of a RANGE partition, the IN list of a LIST partition
+	 */
+	public static class Partition {
+
+		private final String name;
+		private final String bound;
+
+		Partition(String name, String bound) {
+			this.name = name;
+			this.bound = bound;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private PartitionScheme(String method, List<String> columns, String function) {
+		this.method = method;
+		this.columns = columns;
+		this.function = function;
+	}
+
+	/**
+	 * @param method RANGE, RANGE COLUMNS, LIST or LIST COLUMNS
+	 * @param expression the partitioning expression or column list, e.g. to_days(`created`)
+	 * @return the scheme without partitions, or null if the partitioning can't be translated
+	 */
+	static PartitionScheme of(String method, String expression) {
+		String normalizedMethod = method.trim().toUpperCase().replaceAll("\\s+", " ");
+		if (!normalizedMethod.matches("(RANGE|LIST)( COLUMNS)?")) {
+			return null;
+		}
+		String normalizedExpression = expression.trim().replace("`", "");
+		if (normalizedMethod.endsWith("COLUMNS")) {
+			List<String> columns = new ArrayList<>();
+			for (String column : normalizedExpression.split(",")) {
+				columns.add(column.trim().toLowerCase());
+			}
+			return new PartitionScheme(normalizedMethod.substring(0, normalizedMethod.indexOf(' ')), columns, null);
+		}
+		Matcher m = compile("^(?:(?i)(to_days|year)\\s*\\(\\s*)?(\\w+)\\s*\\)?$").matcher(normalizedExpression);
+		if (!m.matches() || (m.group(1) != null && !normalizedMethod.equals("RANGE"))) {
+			return null;
+		}
+		return new PartitionScheme(normalizedMethod, Collections.singletonList(m.group(2).toLowerCase()), m.group(1) != null ? m.group(1).toLowerCase() : null);
+	}
+
+	/**
+	 * @return true if a table partitioned this way is migrated partition by partition
+	 */
+	public static boolean isSupported(String method, String expression) {
+		return method != null && expression != null && of(method, expression) != null;
+	}
+
+	/**
+	 * Parses the partitioning clause of a mysqldump table definition
+	 * @param clause everything from PARTITION BY up to the closing comment, e.g.
+	 * PARTITION BY RANGE (to_days(`created`)) (PARTITION p0 VALUES LESS THAN (737000) ENGINE = InnoDB, ...
+	 * @return the scheme, or null if the partitioning can't be translated
+	 */
+	static PartitionScheme parse(String clause) {
+		Matcher m = compile("PARTITION BY (?:LINEAR )?(RANGE|LIST|HASH|KEY)\\s*(COLUMNS)?\\s*\\((.*?)\\)\\s*(?:\\(PARTITION|PARTITIONS|SUBPARTITION|$)").matcher(clause);
+		if (!m.find() || clause.contains("SUBPARTITION")) {
+			return null;
+		}
+		PartitionScheme scheme = of(m.group(1) + (m.group(2) != null ? " COLUMNS" : ""), m.group(3));
+		if (scheme == null) {
+			return null;
+		}
+		Matcher p = compile("PARTITION `?(\\w+)`? VALUES (?:LESS THAN (?:\\((.*?)\\)|(MAXVALUE))|IN \\((.*?)\\))(?: ENGINE| COMMENT|,|\\)|$)").matcher(clause);
+		while (p.find()) {
+			String bound = p.group(2) != null ? p.group(2) : p.group(3) != null ? p.group(3) : p.group(4);
+			scheme.partitions.add(new Partition(p.group(1), bound.trim()));
+		}
+		return scheme.partitions.isEmpty() ? null : scheme;
+	}
+
+	public List<Partition> getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * @return the child table holding a partition in pgsql
+	 */
+	static String childTableName(String tableName, String partitionName) {
+		return tableName + "_" + partitionName.toLowerCase();
+	}
+
+	/**
+	 * @return the PARTITION BY clause of the pgsql table
+	 */
+	String generatePartitionByClause() {
+		List<String> quoted = new ArrayList<>();
+		for (String column : columns) {
+			quoted.add("\"" + column + "\"");
+		}
+		return " PARTITION BY " + method + " (" + String.join(", ", quoted) + ")";
+	}
+
+	/**
+	 * @return the statements creating the partitions of the pgsql table
+	 */
+	String generateCreatePartitionStatements(String schemaName, String tableName) {
+		StringBuilder sb = new StringBuilder();
+		String from = String.join(", ", Collections.nCopies(columns.size(), "MINVALUE"));
+		for (Partition partition : partitions) {
+			sb.append(String.format("CREATE TABLE \"%s\".\"%s\" PARTITION OF \"%s\".\"%s\" ", schemaName, childTableName(tableName, partition.name), schemaName, tableName));
+			if (method.equals("LIST")) {
+				sb.append("FOR VALUES IN (").append(partition.bound).append(");\n");
+				continue;
+			}
+			String to = convertBound(partition.bound);
+			sb.append("FOR VALUES FROM (").append(from).append(") TO (").append(to).append(");\n");
+			from = to;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a LESS THAN bound of the partitioning expression as a bound of the partitioning column
+	 */
+	private String convertBound(String bound) {
+		if (bound.equalsIgnoreCase("MAXVALUE") || function == null) {
+			return bound;
+		}
+		long value = Long.parseLong(bound);
+		if (function.equals("to_days")) {
+			return "'" + LocalDate.ofEpochDay(value - TO_DAYS_EPOCH) + "'";
+		}
+		return "'" + value + "-01-01'";
+	}
+}
@@ -0,0 +1,313 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.postgresql.PGConnection;
+
+/**
+ * Loads the rows of each chunk into pgsql with COPY, or with batched prepared statements, one transaction per chunk.
+ * The rows of a partition go right into its child table.
+ * @author adam
+ */
+public class PgsqlRowSink implements RowSink {
+
+	private static final Logger LOG = Logger.getLogger(PgsqlRowSink.class.getName());
+	private final String pgsqlUrl;
+	private final String pgsqlUser;
+	private final String pgsqlPassword;
+	private final String pgsqlSchema;
+	/**
+	 * Larger than the 8KB output buffer of the driver, so full segments bypass it
+	 */
+	private final SegmentPool segments = new SegmentPool(64 * 1024);
+	private boolean copy = true;
+	private String shardColumn;
+
+	public PgsqlRowSink(String pgsqlUrl, String pgsqlUser, String pgsqlPassword, String pgsqlSchema) {
+		this.pgsqlUrl = pgsqlUrl;
+		this.pgsqlUser = pgsqlUser;
+		this.pgsqlPassword = pgsqlPassword;
+		this.pgsqlSchema = pgsqlSchema;
+	}
+
+	/**
+	 * @param copy true to load the rows with COPY, encoded into pooled segments without creating objects per row.
+	 * False to insert them with batched prepared statements, which holds every value of a batch as an object
+	 */
+	public void setCopy(boolean copy) {
+		this.copy = copy;
+	}
+
+	/**
+	 * @param shardColumn the column holding the shard of each row when shards are consolidated into the same tables,
+	 * the rows of a failed chunk are then only deleted from its own shard. Null if there is a single mysql schema
+	 */
+	public void setShardColumn(String shardColumn) {
+		this.shardColumn = shardColumn;
+	}
+
+	@Override
+	public RowSink.Session open() {
+		return new Session();
+	}
+
+	/**
+	 * One pgsql connection, opened when first needed and reopened if it breaks, and when copying one segment to encode
+	 * the rows into and one batch to gather them in first
+	 */
+	private class Session implements RowSink.Session {
+
+		private Connection pgsqlCon;
+		private CommitFence fence;
+		private TableChunk chunk;
+		private byte[] segment;
+		private CopyRowWriter copyWriter;
+		private ColumnBatch batch;
+
+		private Connection connection() throws SQLException {
+			if (pgsqlCon == null) {
+				pgsqlCon = DriverManager.getConnection(pgsqlUrl, pgsqlUser, pgsqlPassword);
+			}
+			return pgsqlCon;
+		}
+
+		@Override
+		public RowWriter write(String tableName, TableChunk chunk, List<String> columnNames) throws SQLException {
+			Connection con = connection();
+			con.setAutoCommit(false);
+			this.chunk = chunk;
+			if (copy) {
+				if (segment == null) {
+					segment = segments.acquire();
+				}
+				String sql = generateCopyStatement(pgsqlSchema, chunk.getTargetTable(tableName), columnNames);
+				copyWriter = new CopyRowWriter(((PGConnection) con).getCopyAPI().copyIn(sql), columnNames.size(), segment);
+				if (batch == null) {
+					batch = new ColumnBatch(ColumnBatch.DEFAULT_CAPACITY);
+				}
+				batch.reset(copyWriter, columnNames.size());
+				return batch;
+			}
+			return new StatementRowWriter(con.prepareStatement(generateInsertStatement(pgsqlSchema, chunk.getTargetTable(tableName), columnNames)));
+		}
+
+		@Override
+		public void setFence(CommitFence fence) {
+			this.fence = fence;
+		}
+
+		@Override
+		public void finish() throws SQLException {
+			if (copyWriter != null) {
+				CopyRowWriter writer = copyWriter;
+				copyWriter = null;
+				batch.flush();
+				//Most data errors of a COPY are only reported here
+				writer.end();
+			}
+		}
+
+		@Override
+		public void commit() throws SQLException {
+			finish();
+			//Checked in the transaction of the chunk, so the check and the rows commit together or not at all
+			if (fence != null && !fence.holds(connection(), chunk)) {
+				throw new SQLException("Lost the claim on " + chunk + ", it is not committed", CommitFence.FENCED_STATE);
+			}
+			connection().commit();
+		}
+
+		@Override
+		public void rollback() {
+			if (pgsqlCon == null) {
+				return;
+			}
+			try {
+				if (copyWriter != null) {
+					copyWriter = null;
+					batch.close();
+				}
+				if (pgsqlCon.isValid(5)) {
+					pgsqlCon.rollback();
+					return;
+				}
+			} catch (SQLException e) {
+				LOG.log(Level.WARNING, "Could not roll back", e);
+			}
+			JdbcUtils.cleanup(pgsqlCon);
+			pgsqlCon = null;
+		}
+
+		@Override
+		public void delete(String tableName, TableChunk chunk) throws SQLException {
+			Connection con = connection();
+			PreparedStatement ps = null;
+			NumericColumnRange range = chunk.getRange();
+			String targetTable = chunk.getTargetTable(tableName);
+			try {
+				con.setAutoCommit(false);
+				this.chunk = chunk;
+				Shard shard = shardColumn != null ? chunk.getShard() : null;
+				String where = range != null ? String.format("\"%s\" BETWEEN ? AND ?", range.getColName().toLowerCase()) : null;
+				if (shard != null) {
+					//The other shards load into the same table, only the rows of this one may go
+					where = (where != null ? where + " AND " : "") + String.format("\"%s\" = ?", shardColumn);
+				}
+				if (where != null) {
+					ps = con.prepareStatement(String.format("DELETE FROM \"%s\".\"%s\" WHERE %s", pgsqlSchema, targetTable, where));
+					int parameter = 1;
+					if (range != null) {
+						ps.setLong(parameter++, range.getMin());
+						ps.setLong(parameter++, range.getMax());
+					}
+					if (shard != null) {
+						ps.setInt(parameter, shard.getId());
+					}
+				} else {
+					ps = con.prepareStatement(String.format("TRUNCATE \"%s\".\"%s\"", pgsqlSchema, targetTable));
+				}
+				ps.executeUpdate();
+			} finally {
+				JdbcUtils.cleanup(ps);
+			}
+		}
+
+		@Override
+		public void close() {
+			JdbcUtils.cleanup(pgsqlCon);
+			if (segment != null) {
+				segments.release(segment);
+				segment = null;
+			}
+		}
+	}
+
+	/**
+	 * Generates a COPY statement reading the rows of a table in text format, eg COPY "schema"."table"("col1", "col2")
+	 * FROM STDIN
+	 * @param schemaName the db schema
+	 * @param tableName the name of the table
+	 * @param columnNames all columns for the table, in order
+	 * @return the SQL copy string
+	 */
+	static String generateCopyStatement(String schemaName, String tableName, List<String> columnNames) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("COPY \"").append(schemaName).append("\".\"").append(tableName).append("\"(");
+		for (int i = 0; i < columnNames.size(); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("\"").append(columnNames.get(i).toLowerCase()).append("\"");
+		}
+		sb.append(") FROM STDIN");
+		return sb.toString();
+	}
+
+	/**
+	 * Generates a full insert statement for a table, eg INSERT INTO "schema"."table"("col1", "col2") VALUES(?,?)
+	 * @param schemaName the db schema
+	 * @param tableName the name of the table
+	 * @param columnNames all columns for the table, in order
+	 * @return the SQL insert string
+	 */
+	static String generateInsertStatement(String schemaName, String tableName, List<String> columnNames) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO \"").append(schemaName).append("\".\"").append(tableName).append("\"");
+		StringBuilder colNames = new StringBuilder();
+		StringBuilder questionMarks = new StringBuilder();
+		for (int i = 0; i < columnNames.size(); i++) {
+			if (i > 0) {
+				colNames.append(", ");
+				questionMarks.append(", ");
+			}
+			colNames.append("\"").append(columnNames.get(i).toLowerCase()).append("\"");
+			questionMarks.append("?");
+		}
+		sb.append("(").append(colNames).append(") VALUES (").append(questionMarks).append(")");
+		return sb.toString();
+	}
+
+	/**
+	 * Binds each row to a prepared insert statement, adding it to the batch of the statement
+	 */
+	private static class StatementRowWriter implements RowWriter {
+
+		private final PreparedStatement ps;
+
+		StatementRowWriter(PreparedStatement ps) {
+			this.ps = ps;
+		}
+
+		@Override
+		public void setNull(int position, int sqlType) throws SQLException {
+			ps.setNull(position, sqlType);
+		}
+
+		@Override
+		public void setString(int position, String value) throws SQLException {
+			ps.setString(position, value);
+		}
+
+		@Override
+		public void setText(int position, String value, int sqlType) throws SQLException {
+			ps.setObject(position, value, sqlType);
+		}
+
+		@Override
+		public void setLong(int position, long value) throws SQLException {
+			ps.setLong(position, value);
+		}
+
+		@Override
+		public void setInt(int position, int value) throws SQLException {
+			ps.setInt(position, value);
+		}
+
+		@Override
+		public void setDouble(int position, double value) throws SQLException {
+			ps.setDouble(position, value);
+		}
+
+		@Override
+		public void setBoolean(int position, boolean value) throws SQLException {
+			ps.setBoolean(position, value);
+		}
+
+		@Override
+		public void setBytes(int position, byte[] value) throws SQLException {
+			ps.setBytes(position, value);
+		}
+
+		@Override
+		public void setBinaryStream(int position, InputStream value, int length) throws SQLException {
+			ps.setBinaryStream(position, value, length);
+		}
+
+		@Override
+		public void setCharacterStream(int position, Reader value, int length) throws SQLException {
+			ps.setCharacterStream(position, value, length);
+		}
+
+		@Override
+		public void addRow() throws SQLException {
+			ps.addBatch();
+		}
+
+		@Override
+		public void flush() throws SQLException {
+			ps.executeBatch();
+		}
+
+		@Override
+		public void close() {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+}
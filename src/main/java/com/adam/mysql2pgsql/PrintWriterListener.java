@@ -0,0 +1,30 @@
+package com.adam.mysql2pgsql;
+
+import java.io.PrintWriter;
+
+/**
+ * Prints the progress messages of a migration, e.g. to the console
+ * @author adam
+ */
+public class PrintWriterListener implements MigrationListener {
+
+	private final PrintWriter writer;
+
+	public PrintWriterListener(PrintWriter writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public void message(String message) {
+		writer.println(message);
+		writer.flush();
+	}
+
+	@Override
+	public void chunkTransferred(String tableName, TableChunk chunk, long rows, long millis) {
+	}
+
+	@Override
+	public void tableTransferred(String tableName, int tablesDone, int tables) {
+	}
+}
@@ -0,0 +1,99 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+
+/**
+ * Gathers the {@link ColumnStats} of the rows written to a {@link RowWriter} from the values as they are set, already
+ * read and converted, rather than reading each value from the source a second time. Values set as streams aren't
+ * profiled.
+ * @author adam
+ */
+class ProfilingRowWriter implements RowWriter {
+
+	private final RowWriter writer;
+	private final ColumnStats[] stats;
+
+	/**
+	 * @param writer the writer to profile the rows of
+	 * @param stats the statistics of each column, by position - 1
+	 */
+	ProfilingRowWriter(RowWriter writer, ColumnStats[] stats) {
+		this.writer = writer;
+		this.stats = stats;
+	}
+
+	@Override
+	public void setNull(int position, int sqlType) throws SQLException {
+		writer.setNull(position, sqlType);
+		stats[position - 1].addNull();
+	}
+
+	@Override
+	public void setString(int position, String value) throws SQLException {
+		writer.setString(position, value);
+		stats[position - 1].addText(value);
+	}
+
+	@Override
+	public void setText(int position, String value, int sqlType) throws SQLException {
+		writer.setText(position, value, sqlType);
+		stats[position - 1].addText(value);
+	}
+
+	@Override
+	public void setLong(int position, long value) throws SQLException {
+		writer.setLong(position, value);
+		stats[position - 1].addLong(value);
+	}
+
+	@Override
+	public void setInt(int position, int value) throws SQLException {
+		writer.setInt(position, value);
+		stats[position - 1].addLong(value);
+	}
+
+	@Override
+	public void setDouble(int position, double value) throws SQLException {
+		writer.setDouble(position, value);
+		stats[position - 1].addDouble(value);
+	}
+
+	@Override
+	public void setBoolean(int position, boolean value) throws SQLException {
+		writer.setBoolean(position, value);
+		stats[position - 1].addBoolean(value);
+	}
+
+	@Override
+	public void setBytes(int position, byte[] value) throws SQLException {
+		writer.setBytes(position, value);
+		stats[position - 1].addBytes(value);
+	}
+
+	@Override
+	public void setBinaryStream(int position, InputStream value, int length) throws SQLException {
+		writer.setBinaryStream(position, value, length);
+	}
+
+	@Override
+	public void setCharacterStream(int position, Reader value, int length) throws SQLException {
+		writer.setCharacterStream(position, value, length);
+	}
+
+	@Override
+	public void addRow() throws SQLException {
+		writer.addRow();
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		writer.close();
+	}
+}
@@ -0,0 +1,174 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+
+/**
+ * Accounts the rows written to a {@link RowWriter} against a {@link MemoryBudget}. Before a row is read, room for it
+ * is reserved with {@link #tryReserveRow()} or {@link #reserveRow()}. Once added, the row keeps the estimated heap
+ * size of its values reserved until its batch has been sent. Values bound as streams are spooled to disk, so they
+ * don't count.
+ * @author adam
+ */
+class ReservingRowWriter implements RowWriter {
+
+	/**
+	 * Estimated heap size of a boxed value, or of the header of a string or byte array, in a batch of parameters
+	 */
+	private static final int VALUE_OVERHEAD = 24;
+	/**
+	 * The longest a worker waits for memory. It waits with its mysql result set open, and mysql aborts a streaming
+	 * query whose client stops reading for net_write_timeout, 60 seconds by default, so past this it goes over the
+	 * budget instead
+	 */
+	static final long MAX_WAIT_MILLIS = 30_000;
+
+	private final RowWriter writer;
+	private final MemoryBudget budget;
+	private long headroom;
+	private long reserved;
+	private long batchBytes;
+	private long rowBytes;
+
+	/**
+	 * @param writer the writer to account the rows of
+	 * @param budget
+	 * @param estRowBytes the expected heap size of a row while it's read and converted, adjusted upwards if the
+	 * rows turn out larger
+	 */
+	ReservingRowWriter(RowWriter writer, MemoryBudget budget, long estRowBytes) {
+		this.writer = writer;
+		this.budget = budget;
+		this.headroom = estRowBytes;
+	}
+
+	/**
+	 * Reserves room for the next row, unless it's already reserved
+	 * @return false if the budget has no room left, in which case the batch should be sent to release its memory
+	 * before waiting for room with {@link #reserveRow()}
+	 */
+	boolean tryReserveRow() {
+		long missing = batchBytes + headroom - reserved;
+		if (missing <= 0) {
+			return true;
+		}
+		if (budget.tryReserve(missing)) {
+			reserved += missing;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reserves room for the next row, waiting for other workers to release memory if needed, but no longer than
+	 * {@link #MAX_WAIT_MILLIS}
+	 * @throws SQLException if interrupted while waiting
+	 */
+	void reserveRow() throws SQLException {
+		long missing = batchBytes + headroom - reserved;
+		if (missing <= 0) {
+			return;
+		}
+		try {
+			budget.reserve(missing, MAX_WAIT_MILLIS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Cancelled while waiting for memory", ex);
+		}
+		reserved += missing;
+	}
+
+	@Override
+	public void setNull(int position, int sqlType) throws SQLException {
+		writer.setNull(position, sqlType);
+		rowBytes += 8;
+	}
+
+	@Override
+	public void setString(int position, String value) throws SQLException {
+		writer.setString(position, value);
+		rowBytes += VALUE_OVERHEAD + 2L * value.length();
+	}
+
+	@Override
+	public void setText(int position, String value, int sqlType) throws SQLException {
+		writer.setText(position, value, sqlType);
+		rowBytes += VALUE_OVERHEAD + 2L * value.length();
+	}
+
+	@Override
+	public void setLong(int position, long value) throws SQLException {
+		writer.setLong(position, value);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void setInt(int position, int value) throws SQLException {
+		writer.setInt(position, value);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void setDouble(int position, double value) throws SQLException {
+		writer.setDouble(position, value);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void setBoolean(int position, boolean value) throws SQLException {
+		writer.setBoolean(position, value);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void setBytes(int position, byte[] value) throws SQLException {
+		writer.setBytes(position, value);
+		rowBytes += VALUE_OVERHEAD + value.length;
+	}
+
+	@Override
+	public void setBinaryStream(int position, InputStream value, int length) throws SQLException {
+		writer.setBinaryStream(position, value, length);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void setCharacterStream(int position, Reader value, int length) throws SQLException {
+		writer.setCharacterStream(position, value, length);
+		rowBytes += VALUE_OVERHEAD;
+	}
+
+	@Override
+	public void addRow() throws SQLException {
+		writer.addRow();
+		batchBytes += rowBytes;
+		//The values read from the source take about as much room as the converted ones
+		headroom = Math.max(headroom, 2 * rowBytes);
+		rowBytes = 0;
+	}
+
+	/**
+	 * Sends the batch and releases its memory
+	 */
+	@Override
+	public void flush() throws SQLException {
+		try {
+			writer.flush();
+		} finally {
+			batchBytes = 0;
+			budget.release(reserved);
+			reserved = 0;
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			writer.close();
+		} finally {
+			budget.release(reserved);
+			reserved = 0;
+		}
+	}
+}
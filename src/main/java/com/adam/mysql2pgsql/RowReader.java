@@ -0,0 +1,64 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+
+/**
+ * The rows of one chunk, read one at a time from a {@link RowSource}. It's the part of a JDBC result set the transfer
+ * uses, so the mysql source is a thin wrapper around one, while other sources only need to implement this much.
+ * Column positions start at 1.
+ * @author adam
+ */
+public interface RowReader extends AutoCloseable {
+
+	int getColumnCount();
+
+	String getColumnName(int position);
+
+	/**
+	 * @return the type of the column, one of {@link java.sql.Types}
+	 */
+	int getColumnType(int position);
+
+	/**
+	 * @return the name of the type of the column in the source, for error messages
+	 */
+	String getColumnTypeName(int position);
+
+	/**
+	 * Moves to the next row
+	 * @return false if there are no more rows
+	 */
+	boolean next() throws SQLException;
+
+	/**
+	 * @return true if the last value read was null
+	 */
+	boolean wasNull() throws SQLException;
+
+	String getString(int position) throws SQLException;
+
+	long getLong(int position) throws SQLException;
+
+	int getInt(int position) throws SQLException;
+
+	double getDouble(int position) throws SQLException;
+
+	boolean getBoolean(int position) throws SQLException;
+
+	byte[] getBytes(int position) throws SQLException;
+
+	/**
+	 * @return the value of a binary large object column as a stream, or null
+	 */
+	InputStream getBinaryStream(int position) throws SQLException;
+
+	/**
+	 * @return the value of a text large object column as a stream, or null
+	 */
+	Reader getCharacterStream(int position) throws SQLException;
+
+	@Override
+	void close() throws SQLException;
+}
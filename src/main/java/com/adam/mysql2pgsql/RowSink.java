@@ -0,0 +1,69 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Where the {@link DataMigrator} writes the rows of each chunk to. {@link PgsqlRowSink} inserts them into pgsql, but
+ * anything that can load a chunk in one transaction will do.
+ * @author adam
+ */
+public interface RowSink {
+
+	/**
+	 * @return a session for one worker
+	 * @throws SQLException
+	 */
+	Session open() throws SQLException;
+
+	/**
+	 * The sink as seen by one worker, loading one chunk at a time, each in a transaction of its own
+	 */
+	interface Session extends AutoCloseable {
+
+		/**
+		 * Starts loading a chunk
+		 * @param tableName
+		 * @param chunk the chunk, whose partition decides the target table
+		 * @param columnNames the names of the columns, by position - 1
+		 * @return the writer to add the rows to, which the caller closes
+		 * @throws SQLException
+		 */
+		RowWriter write(String tableName, TableChunk chunk, List<String> columnNames) throws SQLException;
+
+		/**
+		 * @param fence checked in the transaction of each chunk before it's committed, or null to always commit. A sink
+		 * that can't check it within its transaction must not accept one
+		 * @throws SQLException if the sink can't check the fence
+		 */
+		void setFence(CommitFence fence) throws SQLException;
+
+		/**
+		 * Sends the last rows of the chunk, e.g. ends the COPY, without committing them. The sink refuses rows here
+		 * rather than in {@link #commit()}, so a chunk that fails here has certainly not been committed
+		 */
+		void finish() throws SQLException;
+
+		/**
+		 * Commits all rows of the chunk, once they are finished
+		 * @throws SQLException with the state {@link CommitFence#FENCED_STATE} if the fence didn't hold and the chunk
+		 * wasn't committed
+		 */
+		void commit() throws SQLException;
+
+		/**
+		 * Rolls back the chunk after a failure. If the session is broken, it's reset so the next chunk starts afresh
+		 */
+		void rollback();
+
+		/**
+		 * Deletes the rows of a chunk, so it can be loaded again. The delete is part of the transaction of the chunk,
+		 * it's committed by {@link #commit()} behind the same fence as the rows loaded after it, or rolled back with them
+		 * @param chunk the chunk. Without a pk range, all rows of its table or partition are deleted
+		 */
+		void delete(String tableName, TableChunk chunk) throws SQLException;
+
+		@Override
+		void close();
+	}
+}
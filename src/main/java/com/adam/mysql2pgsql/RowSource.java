@@ -0,0 +1,44 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+
+/**
+ * Where the {@link DataMigrator} reads the rows of each chunk from. {@link MysqlRowSource} reads them from mysql, but
+ * anything that can hand out the rows of a chunk will do, e.g. an in-memory source to measure the engine itself.
+ * @author adam
+ */
+public interface RowSource {
+
+	/**
+	 * @return a session for one worker
+	 * @throws SQLException
+	 */
+	Session open() throws SQLException;
+
+	/**
+	 * The source as seen by one worker, reading one chunk at a time. It may hold on to connections between chunks,
+	 * until it is closed.
+	 */
+	interface Session extends AutoCloseable {
+
+		/**
+		 * Starts reading the rows of a chunk
+		 * @param tableName
+		 * @param chunk the partition and pk range to read
+		 * @return the rows, which the caller closes
+		 * @throws SQLException
+		 */
+		RowReader read(String tableName, TableChunk chunk) throws SQLException;
+
+		/**
+		 * Ends the read of the last chunk, whether it was transferred or not
+		 * @param bytes the estimated number of bytes read
+		 * @param failure why the transfer of the chunk failed, or null if it succeeded. The failure may be in the
+		 * sink, so the session should check its own connections before giving up on them
+		 */
+		void endRead(long bytes, SQLException failure);
+
+		@Override
+		void close();
+	}
+}
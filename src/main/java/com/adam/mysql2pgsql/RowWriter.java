@@ -0,0 +1,61 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+
+/**
+ * Takes the rows of one chunk for a {@link RowSink}: the values of a row are set by column position, starting at 1,
+ * then the row is added. Added rows are sent in batches with {@link #flush()}, and become visible once the sink
+ * session commits.
+ * @author adam
+ */
+public interface RowWriter extends AutoCloseable {
+
+	/**
+	 * @param sqlType the type of the column, one of {@link java.sql.Types}
+	 */
+	void setNull(int position, int sqlType) throws SQLException;
+
+	void setString(int position, String value) throws SQLException;
+
+	/**
+	 * Sets a value in its textual form, to be parsed by the sink into the type of the target column
+	 * @param sqlType {@link java.sql.Types#NUMERIC} for an exact number, {@link java.sql.Types#OTHER} for a literal of
+	 * any other type
+	 */
+	void setText(int position, String value, int sqlType) throws SQLException;
+
+	void setLong(int position, long value) throws SQLException;
+
+	void setInt(int position, int value) throws SQLException;
+
+	void setDouble(int position, double value) throws SQLException;
+
+	void setBoolean(int position, boolean value) throws SQLException;
+
+	void setBytes(int position, byte[] value) throws SQLException;
+
+	/**
+	 * Sets a large binary value, read from the stream when the row is sent
+	 */
+	void setBinaryStream(int position, InputStream value, int length) throws SQLException;
+
+	/**
+	 * Sets a large text value, read from the reader when the row is sent
+	 */
+	void setCharacterStream(int position, Reader value, int length) throws SQLException;
+
+	/**
+	 * Adds the row whose values have been set
+	 */
+	void addRow() throws SQLException;
+
+	/**
+	 * Sends the rows added since the last flush
+	 */
+	void flush() throws SQLException;
+
+	@Override
+	void close() throws SQLException;
+}
@@ -0,0 +1,126 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Throughput observed in previous runs, persisted in a properties file. Used to calibrate the
+ * {@link MigrationPlanner} estimates. Each run is blended into the stored rates, so they follow changes in hardware
+ * and data without jumping on a single odd run.
+ * @author adam
+ */
+public class RunMetrics {
+
+	/**
+	 * Transfer rate for a single worker, used when there is no history
+	 */
+	static final double DEFAULT_TRANSFER_BYTES_PER_SECOND = 5_000_000;
+	/**
+	 * Index build rate, in table data bytes per index, used when there is no history
+	 */
+	static final double DEFAULT_INDEX_BYTES_PER_SECOND = 20_000_000;
+	private static final double HISTORY_WEIGHT = 0.3;
+	private static final String TRANSFER_RATE = "transfer.bytesPerSecond";
+	private static final String INDEX_RATE = "index.bytesPerSecond";
+	private final File file;
+	private final Properties properties;
+	private long runTransferBytes;
+	private long runTransferMillis;
+
+	/**
+	 * @param file the properties file to read from and save to, need not exist
+	 * @throws IOException
+	 */
+	public RunMetrics(File file) throws IOException {
+		this.file = file;
+		this.properties = new Properties();
+		if (file.exists()) {
+			try (InputStream is = new FileInputStream(file)) {
+				properties.load(is);
+			}
+		}
+	}
+
+	/**
+	 * @return the file given by -Dmysql2pgsql.metrics, or .mysql2pgsql_metrics.properties in the home directory
+	 */
+	public static File defaultFile() {
+		String path = System.getProperty("mysql2pgsql.metrics");
+		if (path != null) {
+			return new File(path);
+		}
+		return new File(System.getProperty("user.home"), ".mysql2pgsql_metrics.properties");
+	}
+
+	/**
+	 * @return the calibrated number of table data bytes one worker transfers per second
+	 */
+	public double getTransferBytesPerSecond() {
+		return getRate(TRANSFER_RATE, DEFAULT_TRANSFER_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * @return the calibrated number of table data bytes indexed per second, counted once per index
+	 */
+	public double getIndexBytesPerSecond() {
+		return getRate(INDEX_RATE, DEFAULT_INDEX_BYTES_PER_SECOND);
+	}
+
+	public boolean isCalibrated() {
+		return properties.containsKey(TRANSFER_RATE);
+	}
+
+	/**
+	 * Records the transfer of one table by one worker. Called concurrently by the transfer threads
+	 * @param bytes the mysql data length of the table
+	 * @param millis the time it took
+	 */
+	public synchronized void recordTransfer(long bytes, long millis) {
+		runTransferBytes += bytes;
+		runTransferMillis += millis;
+	}
+
+	/**
+	 * Blends the transfer rate of the current run into the stored rate
+	 */
+	public synchronized void completeTransfer() {
+		if (runTransferBytes > 0 && runTransferMillis > 0) {
+			blend(TRANSFER_RATE, runTransferBytes * 1000.0 / runTransferMillis);
+		}
+		runTransferBytes = 0;
+		runTransferMillis = 0;
+	}
+
+	/**
+	 * Blends an index and constraint build phase into the stored rate
+	 * @param indexedBytes the table data bytes times the number of indices of each table
+	 * @param millis the time the phase took
+	 */
+	public synchronized void recordIndexBuild(long indexedBytes, long millis) {
+		if (indexedBytes > 0 && millis > 0) {
+			blend(INDEX_RATE, indexedBytes * 1000.0 / millis);
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		try (OutputStream os = new FileOutputStream(file)) {
+			properties.store(os, "mysql2pgsql throughput from previous runs");
+		}
+	}
+
+	private synchronized double getRate(String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	private void blend(String key, double observed) {
+		String previous = properties.getProperty(key);
+		double rate = previous == null ? observed : HISTORY_WEIGHT * Double.parseDouble(previous) + (1 - HISTORY_WEIGHT) * observed;
+		properties.setProperty(key, String.valueOf(rate));
+	}
+}
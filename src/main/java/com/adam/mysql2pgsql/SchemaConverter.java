@@ -12,13 +12,19 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
 public class SchemaConverter {
 
+	private static final Logger LOG = Logger.getLogger(SchemaConverter.class.getName());
+
 	final String mysqlSchema;
 	final String mysqlHost;
 	final Integer mysqlPort;
@@ -27,6 +33,9 @@ public class SchemaConverter {
 	final String pgsqlSchema;
 	private List<String> dumpRows;
 	private final Set<String> onlyMigrateTables;
+	private TableFilters filters = TableFilters.none();
+	private String shardColumn;
+	private boolean shardKeys;
 
 	/**
 	 * @param mysqlSchema
@@ -54,6 +63,32 @@ public class SchemaConverter {
 		this.onlyMigrateTables = onlyMigrateTables;
 	}
 
+	/**
+	 * @param filters the columns of each table to migrate, keys and constraints using other columns are left out
+	 */
+	void setFilters(TableFilters filters) {
+		this.filters = filters;
+	}
+
+	/**
+	 * Adds a column holding the shard of each row to every table, for consolidating several mysql schemas with the
+	 * same tables into one pgsql schema
+	 * @param shardColumn the name of the column, or null if there is a single mysql schema
+	 * @param shardKeys true to make the shard column the first column of every pk, unique constraint and foreign key,
+	 * since the keys of one shard may well be used in another. False if the column is dropped after the load
+	 */
+	void setShardColumn(String shardColumn, boolean shardKeys) {
+		this.shardColumn = shardColumn;
+		this.shardKeys = shardKeys;
+	}
+
+	/**
+	 * @return the columns of a key, preceded by the shard column if the keys are per shard
+	 */
+	private String shardKey(String columns) {
+		return shardKeys ? "\"" + shardColumn + "\", " + columns : columns;
+	}
+
 	/**
 	 * Uses mysqldump to dump entire db metadata from mysql. There are alternative ways of doing this, such as
 	 * mysql-specific SQL-queries, but this turned out to be the fastest method.
@@ -79,7 +114,7 @@ public class SchemaConverter {
 		}
 		ProcessBuilder pb = new ProcessBuilder(args);
 		pb.redirectErrorStream(true);
-		System.console().printf("Generating schema dump...");
+		LOG.info("Generating schema dump...");
 		Process process = pb.start();
 		InputStream is = process.getInputStream();
 		final BufferedReader br = new BufferedReader(new InputStreamReader(is));
@@ -98,7 +133,7 @@ public class SchemaConverter {
 		try {
 			int exitCode = process.waitFor();
 			if (exitCode != 0) {
-				System.console().printf("Got exit code %d from subprocess", exitCode);
+				LOG.log(Level.SEVERE, "Got exit code {0} from subprocess", exitCode);
 				throw new IOException(lines.toString());
 			}
 		} catch (InterruptedException ex) {
@@ -106,9 +141,24 @@ public class SchemaConverter {
 		this.dumpRows = lines;
 	}
 	private List<TableMetaData> tables;
+	/**
+	 * Foreign keys of tables that are kept as they are, referencing a table that is recreated
+	 */
+	private List<ForeignKey> danglingForeignKeys = new ArrayList<>();
 
 	protected void parseSchemaDump() throws ParseException {
+		FlightEvents.SchemaParse parseEvent = new FlightEvents.SchemaParse();
+		parseEvent.begin();
+		parseSchema();
+		parseEvent.schema = mysqlSchema;
+		parseEvent.lines = dumpRows.size();
+		parseEvent.tables = tables.size();
+		parseEvent.commit();
+	}
+
+	private void parseSchema() throws ParseException {
 		TableMetaData tableMetaData = null;
+		StringBuilder partitionClause = null;
 		this.tables = new ArrayList<>();
 		Matcher m;
 		for (String tmp : dumpRows) {
@@ -122,20 +172,45 @@ public class SchemaConverter {
 			if (m.matches()) {
 				String tableName = m.group(1);
 				tableMetaData = new TableMetaData(tableName);
+				if (shardColumn != null) {
+					tableMetaData.addColDefinition("\"" + shardColumn + "\" integer NOT NULL");
+				}
 				continue;
 			}
-			//Closing parenthesis
+			//Closing parenthesis, followed by the partitioning of a partitioned table
 			m = compile("^\\) ENGINE=.*$").matcher(line);
 			if (m.matches()) {
-				if(tableMetaData != null && (onlyMigrateTables == null || onlyMigrateTables.contains(tableMetaData.getTableName().toLowerCase()))){
-					tables.add(tableMetaData);
+				if (line.endsWith(";")) {
+					addTable(tableMetaData);
+					tableMetaData = null;
+				} else {
+					partitionClause = new StringBuilder();
+				}
+				continue;
+			}
+			if (partitionClause != null) {
+				//from: /*!50100 PARTITION BY RANGE (to_days(`created`))
+				//      (PARTITION p202401 VALUES LESS THAN (739282) ENGINE = InnoDB,
+				//       PARTITION pmax VALUES LESS THAN MAXVALUE ENGINE = InnoDB) */;
+				partitionClause.append(' ').append(line);
+				if (line.endsWith(";")) {
+					PartitionScheme partitionScheme = PartitionScheme.parse(partitionClause.toString());
+					if (partitionScheme == null) {
+						LOG.warning("The partitioning of " + tableMetaData.getTableName() + " can't be mapped to pgsql, it is created as an ordinary table:" + partitionClause);
+					}
+					tableMetaData.setPartitionScheme(partitionScheme);
+					addTable(tableMetaData);
+					tableMetaData = null;
+					partitionClause = null;
 				}
-				tableMetaData = null;
 				continue;
 			}
 			if (tableMetaData == null) {
 				//Noy interested
-				//TODO: Parse extra table metadata, such as partitioning info etc
+				continue;
+			}
+			//Keys and constraints on columns that aren't migrated
+			if (usesExcludedColumn(tableMetaData.getTableName(), line)) {
 				continue;
 			}
 			//Indices
@@ -146,7 +221,8 @@ public class SchemaConverter {
 			// CONSTRAINT "fk_constraint_name" FOREIGN KEY ("col_name") REFERENCES "ref_table_name" ("ref_col_name") ON UPDATE NO ACTION
 			m = compile("^CONSTRAINT `(\\S+)` FOREIGN KEY \\(`(\\S+)`\\) REFERENCES `(\\S+)` \\(`(\\S+)`\\)[A-Z\\s]*$").matcher(line);
 			if (m.matches()) {
-				tableMetaData.addConstraint(format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s\" FOREIGN KEY (\"%s\") REFERENCES \"%s\" (\"%s\") ON UPDATE NO ACTION ON DELETE NO ACTION", pgsqlSchema, tableMetaData.getTableName(), m.group(1).toLowerCase(), m.group(2).toLowerCase(), m.group(3).toLowerCase(), m.group(4).toLowerCase()));
+				String fkName = m.group(1).toLowerCase();
+				tableMetaData.addForeignKey(new ForeignKey(tableMetaData.getTableName(), fkName, m.group(3).toLowerCase(), format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s\" FOREIGN KEY (%s) REFERENCES \"%s\" (%s) ON UPDATE NO ACTION ON DELETE NO ACTION", pgsqlSchema, tableMetaData.getTableName(), fkName, shardKey("\"" + m.group(2).toLowerCase() + "\""), m.group(3).toLowerCase(), shardKey("\"" + m.group(4).toLowerCase() + "\""))));
 				continue;
 			}
 			//Unique constraints
@@ -154,7 +230,7 @@ public class SchemaConverter {
 			//to:   ALTER TABLE "schema_name"."table_name" ADD CONSTRAINT "ix_name" UNIQUE ("col1", "col2", "col3", "col4");
 			m = compile("^UNIQUE KEY `(\\S+)` \\((\\S+)\\)[^\\(]*$").matcher(line);
 			if (m.matches()) {
-				tableMetaData.addConstraint(format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s_%s\" UNIQUE (%s)", pgsqlSchema, tableMetaData.getTableName(), tableMetaData.getTableName(), m.group(1).toLowerCase(), m.group(2).toLowerCase().replaceAll("`", "\"").toLowerCase()));
+				tableMetaData.addConstraint(format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s_%s\" UNIQUE (%s)", pgsqlSchema, tableMetaData.getTableName(), tableMetaData.getTableName(), m.group(1).toLowerCase(), shardKey(m.group(2).toLowerCase().replaceAll("`", "\"").toLowerCase())));
 				continue;
 			}
 			//Primary keys
@@ -162,7 +238,7 @@ public class SchemaConverter {
 			//to  : ALTER TABLE "schema_name"."table_name" ADD CONSTRAINT "table_name_pkey" PRIMARY KEY ("col1", "col2");
 			m = compile("^PRIMARY KEY \\((\\S+)\\)[^\\(]*$").matcher(line);
 			if (m.matches()) {
-				tableMetaData.addPk(format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s_pkey\" PRIMARY KEY (%s)", pgsqlSchema, tableMetaData.getTableName(), tableMetaData.getTableName(), m.group(1).replaceAll("`", "\"").toLowerCase()));
+				tableMetaData.addPk(format("ALTER TABLE \"%s\".\"%s\" ADD CONSTRAINT \"%s_pkey\" PRIMARY KEY (%s)", pgsqlSchema, tableMetaData.getTableName(), tableMetaData.getTableName(), shardKey(m.group(1).replaceAll("`", "\"").toLowerCase())));
 				continue;
 			}
 			//
@@ -172,6 +248,9 @@ public class SchemaConverter {
 				throw new ParseException("Could not find the column name from line: " + line, -1);
 			}
 			String columnName = m.group(1).toLowerCase();
+			if (!filters.isColumnIncluded(tableMetaData.getTableName(), columnName)) {
+				continue;
+			}
 			line = line.substring(0, m.start(1)) + columnName + line.substring(m.end(1));
 			//Extract possible comments
 			m = compile("^.* (COMMENT) '(.*)'$").matcher(line);
@@ -229,6 +308,84 @@ public class SchemaConverter {
 		}
 	}
 
+	private void addTable(TableMetaData tableMetaData) {
+		if (tableMetaData != null && (onlyMigrateTables == null || onlyMigrateTables.contains(tableMetaData.getTableName().toLowerCase()))) {
+			tables.add(tableMetaData);
+		}
+	}
+
+	/**
+	 * @return the names of all parsed tables
+	 */
+	List<String> getTableNames() {
+		List<String> tableNames = new ArrayList<>();
+		for (TableMetaData tableMetaData : tables) {
+			tableNames.add(tableMetaData.getTableName());
+		}
+		return tableNames;
+	}
+
+	/**
+	 * @param pgsqlSchema the pgsql schema to create the tables in
+	 * @return a converter of the same tables, for loading them into another pgsql schema
+	 */
+	SchemaConverter forSchema(String pgsqlSchema) throws ParseException {
+		SchemaConverter converter = new SchemaConverter(mysqlSchema, mysqlHost, mysqlPort, mysqlUser, mysqlPassword, pgsqlSchema, onlyMigrateTables);
+		converter.setFilters(filters);
+		converter.setShardColumn(shardColumn, shardKeys);
+		converter.dumpRows = dumpRows;
+		converter.parseSchema();
+		converter.retainTables(new HashSet<>(getTableNames()));
+		return converter;
+	}
+
+	/**
+	 * Limits the generated files to the given tables, leaving all other tables in pgsql as they are. Recreating a
+	 * table drops the foreign keys referencing it, so those are recreated even when they belong to a table that is
+	 * left as is.
+	 * @param tableNames the tables to recreate
+	 */
+	void retainTables(Set<String> tableNames) {
+		Set<String> recreated = new HashSet<>();
+		for (String tableName : tableNames) {
+			recreated.add(tableName.toLowerCase());
+		}
+		List<TableMetaData> retained = new ArrayList<>();
+		danglingForeignKeys = new ArrayList<>();
+		for (TableMetaData tableMetaData : tables) {
+			if (tableNames.contains(tableMetaData.getTableName())) {
+				retained.add(tableMetaData);
+			} else {
+				danglingForeignKeys.addAll(tableMetaData.getForeignKeysReferencing(recreated));
+			}
+		}
+		this.tables = retained;
+	}
+
+	/**
+	 * @param line a key or constraint definition
+	 * @return true if it uses a column that is filtered out, of the table itself or of a referenced table
+	 */
+	private boolean usesExcludedColumn(String tableName, String line) {
+		Matcher m = compile("^(?:(?:UNIQUE |PRIMARY )?KEY(?: `[^`]+`)?|CONSTRAINT `[^`]+` FOREIGN KEY)(.*?)(?: REFERENCES `([^`]+)`(.*))?$").matcher(line);
+		if (!m.matches()) {
+			return false;
+		}
+		if (usesExcludedColumn(tableName, compile("`([^`]+)`").matcher(m.group(1)))) {
+			return true;
+		}
+		return m.group(2) != null && usesExcludedColumn(m.group(2), compile("`([^`]+)`").matcher(m.group(3)));
+	}
+
+	private boolean usesExcludedColumn(String tableName, Matcher columnNames) {
+		while (columnNames.find()) {
+			if (!filters.isColumnIncluded(tableName, columnNames.group(1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private static String listToString(List<String> strings) {
 		String retStr = "";
 		for (int i = 0; i < strings.size(); i++) {
@@ -263,6 +420,70 @@ public class SchemaConverter {
 		return file;
 	}
 
+	/**
+	 * Creates the schema the tables are loaded into before they are swapped in, unless it's there since an earlier run
+	 */
+	File generatePostgresShadowSchemaFile(String shadowSchema, String pgsqlUser) throws IOException {
+		File file = File.createTempFile(shadowSchema + "_schema_definition", ".sql");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("CREATE SCHEMA IF NOT EXISTS " + shadowSchema + " AUTHORIZATION " + pgsqlUser + ";\n");
+			writer.write('\n');
+			writer.flush();
+		}
+		return file;
+	}
+
+	/**
+	 * Replaces all tables by the ones loaded and indexed in the shadow schema, in a single transaction. Readers of a
+	 * table only wait for the swap itself, not for the load. The swap stops at the first error and is rolled back,
+	 * leaving the tables as they were.
+	 * <p>
+	 * The old tables are dropped in one statement without CASCADE, so foreign keys among them go with them, but a view
+	 * or a foreign key of another table depending on one of them fails the swap instead of being dropped silently. The
+	 * foreign keys of unchanged tables referencing a replaced table are dropped first, they are recreated after the
+	 * swap. A swap that waits longer than the lock timeout for a table, e.g. behind a long running query, gives up
+	 * rather than blocking every query queued behind it, and can be retried.
+	 * @param lockTimeoutMillis how long the swap waits for each lock
+	 */
+	File generatePostgresSwapFile(String shadowSchema, long lockTimeoutMillis) throws IOException {
+		File file = File.createTempFile(pgsqlSchema + "_swap", ".sql");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("\\set ON_ERROR_STOP on\n");
+			writer.write("BEGIN;\n");
+			writer.write("SET LOCAL lock_timeout = " + lockTimeoutMillis + ";\n");
+			for (ForeignKey fk : danglingForeignKeys) {
+				writer.write(fk.generateDropStatement(pgsqlSchema));
+			}
+			List<String> dropped = new ArrayList<>();
+			for (TableMetaData tableMetaData : tables) {
+				dropped.add(String.format("\"%s\".\"%s\"", pgsqlSchema, tableMetaData.getTableName()));
+			}
+			if (!dropped.isEmpty()) {
+				writer.write("DROP TABLE IF EXISTS " + String.join(", ", dropped) + ";\n");
+			}
+			for (TableMetaData tableMetaData : tables) {
+				writer.write(tableMetaData.generateSwapStatement(shadowSchema, pgsqlSchema));
+			}
+			writer.write("COMMIT;\n");
+			writer.flush();
+		}
+		return file;
+	}
+
+	/**
+	 * Drops the shard column that told the rows of the shards apart while they were loaded, when it isn't kept
+	 */
+	File generatePostgresDropShardColumnFile() throws IOException {
+		File file = File.createTempFile(pgsqlSchema + "_drop_shard_column", ".sql");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			for (TableMetaData tableMetaData : tables) {
+				writer.write(tableMetaData.generateDropColumnStatement(pgsqlSchema, shardColumn));
+			}
+			writer.flush();
+		}
+		return file;
+	}
+
 	File generatePostgresIndexAndConstraintsFile() throws IOException {
 		File file = File.createTempFile(pgsqlSchema + "_ix_constraints_definition", ".sql");
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
@@ -283,6 +504,32 @@ public class SchemaConverter {
 		return file;
 	}
 
+	/**
+	 * @return all foreign keys to create, including those of unchanged tables referencing a recreated one
+	 */
+	List<ForeignKey> getForeignKeys() {
+		List<ForeignKey> fks = new ArrayList<>();
+		for (TableMetaData tableMetaData : tables) {
+			fks.addAll(tableMetaData.getForeignKeys());
+		}
+		fks.addAll(danglingForeignKeys);
+		return fks;
+	}
+
+	/**
+	 * All foreign keys are added as NOT VALID, which doesn't scan the tables. They are validated separately
+	 */
+	File generatePostgresForeignKeyFile() throws IOException {
+		File file = File.createTempFile(pgsqlSchema + "_fk_definition", ".sql");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			for (ForeignKey fk : getForeignKeys()) {
+				writer.write(fk.generateNotValidStatement());
+			}
+			writer.flush();
+		}
+		return file;
+	}
+
 	File generatePostgresPkDefFile() throws IOException {
 		File file = File.createTempFile(pgsqlSchema + "_pk_definition", ".sql");
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
@@ -298,11 +545,14 @@ public class SchemaConverter {
 		return file;
 	}
 
-	File generatePostSqlFile() throws IOException {
+	/**
+	 * @param profiles the statistics of the transferred tables by table name, or null if not known for all rows
+	 */
+	File generatePostSqlFile(Map<String, TableProfile> profiles) throws IOException {
 		File file = File.createTempFile(pgsqlSchema + "_post_sqls", ".sql");
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
 			for (TableMetaData tableMetaData : tables) {
-				String postSql = tableMetaData.generatePostSqls();
+				String postSql = tableMetaData.generatePostSqls(pgsqlSchema, profiles != null ? profiles.get(tableMetaData.getTableName()) : null);
 				if (postSql != null && !postSql.isEmpty()) {
 					writer.write(postSql);
 					writer.write('\n');
@@ -341,14 +591,7 @@ public class SchemaConverter {
 		Matcher m = compile("^`(\\S+)` (big)?int\\([0-9]*\\) (unsigned )?NOT NULL AUTO_INCREMENT").matcher(line);
 		if (m.matches()) {
 			tableMetaData.addColDefinition("\"" + m.group(1) + "\" " + (m.group(2) != null ? m.group(2) : "") + "serial");
-			tableMetaData.addPostSQL(format(
-					"SELECT setval('\"%s\".\"%s_%s_seq\"', (select coalesce(max(\"%s\"), 0)+1 from \"%s\".\"%s\"))",
-					pgsqlSchema,
-					tableMetaData.getTableName(),
-					m.group(1).toLowerCase(),
-					m.group(1).toLowerCase(),
-					pgsqlSchema,
-					tableMetaData.getTableName()));
+			tableMetaData.addSerialColumn(m.group(1).toLowerCase());
 		} else {
 			throw new ParseException("Could not parse auto increment row: " + line, -1);
 		}
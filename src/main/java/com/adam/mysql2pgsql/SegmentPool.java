@@ -0,0 +1,32 @@
+package com.adam.mysql2pgsql;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Fixed size byte segments that rows are encoded into before they are sent, recycled across batches, chunks and
+ * workers. A worker holds one segment while it has a sink session open, so the pool never grows beyond the number of
+ * workers and a steady transfer allocates no segments at all.
+ * @author adam
+ */
+class SegmentPool {
+
+	private final int segmentSize;
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param segmentSize the size of each segment, larger than the socket buffer so a full segment is written to the
+	 * socket as it is
+	 */
+	SegmentPool(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	byte[] acquire() {
+		byte[] segment = free.poll();
+		return segment != null ? segment : new byte[segmentSize];
+	}
+
+	void release(byte[] segment) {
+		free.add(segment);
+	}
+}
@@ -0,0 +1,101 @@
+package com.adam.mysql2pgsql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of several mysql schemas with the same tables, e.g. the shards of a sharded database, that are consolidated into
+ * one pgsql schema. The rows of each shard are told apart by its id, which is loaded into a shard column of every
+ * table.
+ * @author adam
+ */
+public class Shard {
+
+	/**
+	 * The shard column added to every table while loading when the shard ids aren't kept, dropped when all rows are in
+	 */
+	static final String LOAD_COLUMN = "mysql2pgsql_shard";
+	private final int id;
+	private final String host;
+	private final int port;
+	private final String schema;
+
+	/**
+	 * @param id the value of the shard column for the rows of this shard
+	 * @param host the mysql host of the shard
+	 * @param port the mysql port of the shard, or 0 for the port of the migration
+	 * @param schema the mysql schema of the shard
+	 */
+	public Shard(int id, String host, int port, String schema) {
+		this.id = id;
+		this.host = host;
+		this.port = port;
+		this.schema = schema;
+	}
+
+	/**
+	 * Parses a comma separated list of shards, each given as host[:port]/schema, e.g.
+	 * db1/shop_01,db1/shop_02,db2:3307/shop_03. The shards get the ids 1, 2, 3 and so on in list order
+	 * @param shards
+	 * @return the shards, in list order
+	 * @throws IllegalArgumentException if a shard has no schema or an invalid port
+	 */
+	public static List<Shard> parse(String shards) {
+		List<Shard> list = new ArrayList<>();
+		for (String shard : shards.split(",")) {
+			shard = shard.trim();
+			if (shard.isEmpty()) {
+				continue;
+			}
+			int slash = shard.indexOf('/');
+			if (slash <= 0 || slash == shard.length() - 1) {
+				throw new IllegalArgumentException("Shard should be given as host[:port]/schema: " + shard);
+			}
+			String host = shard.substring(0, slash);
+			int port = 0;
+			int colon = host.lastIndexOf(':');
+			if (colon > 0) {
+				try {
+					port = Integer.parseInt(host.substring(colon + 1));
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Invalid port of shard " + shard, ex);
+				}
+				host = host.substring(0, colon);
+			}
+			list.add(new Shard(list.size() + 1, host, port, shard.substring(slash + 1)));
+		}
+		return list;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the mysql port of the shard, or 0 if it's the port of the migration
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public String getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @param defaultPort the port of the migration, used unless the shard has a port of its own
+	 * @return the JDBC url of the mysql host of the shard
+	 */
+	public String getMysqlUrl(int defaultPort) {
+		return "jdbc:mysql://" + host + ":" + (port > 0 ? port : defaultPort) + "/";
+	}
+
+	@Override
+	public String toString() {
+		return "shard " + id + " (" + host + (port > 0 ? ":" + port : "") + "/" + schema + ")";
+	}
+}
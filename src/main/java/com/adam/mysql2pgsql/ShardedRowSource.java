@@ -0,0 +1,189 @@
+package com.adam.mysql2pgsql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the chunks of several shards, each from the source of the shard the chunk belongs to, and adds the id of the
+ * shard to every row as a last column. The rows of all shards can then go into the same pgsql tables and still be
+ * told apart, which the sink relies on to clean up after a failed chunk of one shard without touching the others.
+ * @author adam
+ */
+public class ShardedRowSource implements RowSource {
+
+	private final String shardColumn;
+	private final Map<Integer, RowSource> sources = new HashMap<>();
+
+	/**
+	 * @param shardColumn the name of the column the shard id is read into
+	 */
+	public ShardedRowSource(String shardColumn) {
+		this.shardColumn = shardColumn;
+	}
+
+	/**
+	 * @param shard
+	 * @param source where the chunks of the shard are read from
+	 */
+	public void addShard(Shard shard, RowSource source) {
+		sources.put(shard.getId(), source);
+	}
+
+	@Override
+	public RowSource.Session open() {
+		return new Session();
+	}
+
+	/**
+	 * Keeps the session of the source of the last shard read from, a worker mostly reads a stream of chunks of one
+	 * shard, and holding on to the connections of every shard would multiply them by the number of shards
+	 */
+	private class Session implements RowSource.Session {
+
+		private Shard shard;
+		private RowSource.Session session;
+
+		@Override
+		public RowReader read(String tableName, TableChunk chunk) throws SQLException {
+			Shard chunkShard = chunk.getShard();
+			RowSource shardSource = chunkShard != null ? sources.get(chunkShard.getId()) : null;
+			if (shardSource == null) {
+				throw new SQLException("No source for the shard of " + tableName + " " + chunk);
+			}
+			if (session == null || shard.getId() != chunkShard.getId()) {
+				close();
+				session = shardSource.open();
+				shard = chunkShard;
+			}
+			return new ShardRowReader(session.read(tableName, chunk), shardColumn, shard.getId());
+		}
+
+		@Override
+		public void endRead(long bytes, SQLException failure) {
+			if (session != null) {
+				session.endRead(bytes, failure);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (session != null) {
+				session.close();
+				session = null;
+				shard = null;
+			}
+		}
+	}
+
+	/**
+	 * The rows of a shard with the shard id as an extra last column
+	 */
+	private static class ShardRowReader implements RowReader {
+
+		private final RowReader rows;
+		private final String shardColumn;
+		private final int shardId;
+		private final int shardPosition;
+		private boolean shardRead;
+
+		ShardRowReader(RowReader rows, String shardColumn, int shardId) {
+			this.rows = rows;
+			this.shardColumn = shardColumn;
+			this.shardId = shardId;
+			this.shardPosition = rows.getColumnCount() + 1;
+		}
+
+		/**
+		 * @return true if the position is that of the shard column, remembering it for {@link #wasNull()}
+		 */
+		private boolean isShard(int position) {
+			shardRead = position == shardPosition;
+			return shardRead;
+		}
+
+		@Override
+		public int getColumnCount() {
+			return shardPosition;
+		}
+
+		@Override
+		public String getColumnName(int position) {
+			return position == shardPosition ? shardColumn : rows.getColumnName(position);
+		}
+
+		@Override
+		public int getColumnType(int position) {
+			return position == shardPosition ? Types.INTEGER : rows.getColumnType(position);
+		}
+
+		@Override
+		public String getColumnTypeName(int position) {
+			return position == shardPosition ? "INT" : rows.getColumnTypeName(position);
+		}
+
+		@Override
+		public boolean next() throws SQLException {
+			return rows.next();
+		}
+
+		@Override
+		public boolean wasNull() throws SQLException {
+			return !shardRead && rows.wasNull();
+		}
+
+		@Override
+		public String getString(int position) throws SQLException {
+			return isShard(position) ? Integer.toString(shardId) : rows.getString(position);
+		}
+
+		@Override
+		public long getLong(int position) throws SQLException {
+			return isShard(position) ? shardId : rows.getLong(position);
+		}
+
+		@Override
+		public int getInt(int position) throws SQLException {
+			return isShard(position) ? shardId : rows.getInt(position);
+		}
+
+		@Override
+		public double getDouble(int position) throws SQLException {
+			return isShard(position) ? shardId : rows.getDouble(position);
+		}
+
+		@Override
+		public boolean getBoolean(int position) throws SQLException {
+			return isShard(position) ? shardId != 0 : rows.getBoolean(position);
+		}
+
+		@Override
+		public byte[] getBytes(int position) throws SQLException {
+			return isShard(position) ? Integer.toString(shardId).getBytes() : rows.getBytes(position);
+		}
+
+		@Override
+		public InputStream getBinaryStream(int position) throws SQLException {
+			if (isShard(position)) {
+				throw new SQLException("The shard column " + shardColumn + " can't be read as a stream");
+			}
+			return rows.getBinaryStream(position);
+		}
+
+		@Override
+		public Reader getCharacterStream(int position) throws SQLException {
+			if (isShard(position)) {
+				throw new SQLException("The shard column " + shardColumn + " can't be read as a stream");
+			}
+			return rows.getCharacterStream(position);
+		}
+
+		@Override
+		public void close() throws SQLException {
+			rows.close();
+		}
+	}
+}
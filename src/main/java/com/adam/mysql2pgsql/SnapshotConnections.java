@@ -0,0 +1,127 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of mysql connections that all see the same consistent snapshot of the data. The snapshot is opened
+ * on every connection while a global read lock is held, and the binlog position at that moment is recorded, so the
+ * migrated data matches a single point in time that replication can catch up from.
+ * @author adam
+ */
+public class SnapshotConnections {
+
+	private final BlockingQueue<Connection> idle;
+	private final List<Connection> all;
+	private String binlogFile;
+	private long binlogPosition;
+	private String gtidSet;
+
+	/**
+	 * Takes a global read lock, starts a consistent snapshot transaction on each connection, records the binlog
+	 * position and releases the lock. Writes on the server are blocked only while the connections are opened.
+	 * @param sources the endpoints, the snapshot is taken on the first one
+	 * @param size the number of connections
+	 * @throws SQLException
+	 */
+	public SnapshotConnections(SourceEndpoints sources, int size) throws SQLException {
+		this.idle = new ArrayBlockingQueue<>(size);
+		this.all = new ArrayList<>();
+		Connection lockCon = null;
+		Statement lockStmt = null;
+		try {
+			lockCon = sources.connect(sources.getPrimary());
+			lockStmt = lockCon.createStatement();
+			//Open all connections before taking the lock to keep the lock as short as possible
+			for (int i = 0; i < size; i++) {
+				all.add(sources.connect(sources.getPrimary()));
+			}
+			lockStmt.execute("FLUSH TABLES WITH READ LOCK");
+			try {
+				for (Connection con : all) {
+					Statement stmt = con.createStatement();
+					try {
+						stmt.execute("SET SESSION TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+						stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+					} finally {
+						JdbcUtils.cleanup(stmt);
+					}
+				}
+				ResultSet rs = lockStmt.executeQuery("SHOW MASTER STATUS");
+				if (rs.next()) {
+					binlogFile = rs.getString("File");
+					binlogPosition = rs.getLong("Position");
+					gtidSet = rs.getMetaData().getColumnCount() >= 5 ? rs.getString("Executed_Gtid_Set") : null;
+				}
+			} finally {
+				lockStmt.execute("UNLOCK TABLES");
+			}
+			idle.addAll(all);
+		} catch (SQLException e) {
+			close();
+			throw e;
+		} finally {
+			JdbcUtils.cleanup(lockStmt);
+			JdbcUtils.cleanup(lockCon);
+		}
+	}
+
+	/**
+	 * @return a snapshot connection, waiting until one is free. Must be given back with {@link #release}
+	 * @throws SQLException if interrupted while waiting
+	 */
+	public Connection acquire() throws SQLException {
+		try {
+			return idle.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a snapshot connection", ex);
+		}
+	}
+
+	public void release(Connection con) {
+		idle.add(con);
+	}
+
+	/**
+	 * @return the binlog file at the time of the snapshot, or null if binary logging is off
+	 */
+	public String getBinlogFile() {
+		return binlogFile;
+	}
+
+	public long getBinlogPosition() {
+		return binlogPosition;
+	}
+
+	/**
+	 * @return the executed GTID set at the time of the snapshot, or null if GTIDs aren't used
+	 */
+	public String getGtidSet() {
+		return gtidSet == null || gtidSet.isEmpty() ? null : gtidSet;
+	}
+
+	/**
+	 * Ends the snapshot transactions and closes the connections
+	 */
+	public void close() {
+		for (Connection con : all) {
+			Statement stmt = null;
+			try {
+				stmt = con.createStatement();
+				stmt.execute("COMMIT");
+			} catch (Exception e) {
+			} finally {
+				JdbcUtils.cleanup(stmt);
+			}
+			JdbcUtils.cleanup(con);
+		}
+		idle.clear();
+	}
+}
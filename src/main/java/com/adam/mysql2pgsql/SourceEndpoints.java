@@ -0,0 +1,150 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One or more mysql servers holding the same data, e.g. a set of replicas. Chunks are spread over them weighted by
+ * the throughput observed for each of them, and an endpoint that fails is left out for a while so its chunks move to
+ * the others.
+ * @author adam
+ */
+public class SourceEndpoints {
+
+	private static final Logger LOG = Logger.getLogger(SourceEndpoints.class.getName());
+	/**
+	 * How long a failed endpoint is left out before it is tried again
+	 */
+	private static final long DOWN_MILLIS = 60_000;
+	/**
+	 * Weight of the latest chunk in the observed throughput of an endpoint
+	 */
+	private static final double RATE_WEIGHT = 0.3;
+	private final List<Endpoint> endpoints;
+	private final String mysqlUser;
+	private final String mysqlPassword;
+
+	/**
+	 * A single mysql server
+	 */
+	public static class Endpoint {
+
+		private final String url;
+		private double bytesPerSecond;
+		private int inFlight;
+		private long downUntil;
+
+		Endpoint(String url) {
+			this.url = url;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		@Override
+		public String toString() {
+			return url;
+		}
+	}
+
+	/**
+	 * @param mysqlUrls the jdbc urls of the servers, the first one is used for anything that isn't a chunk read
+	 * @param mysqlUser
+	 * @param mysqlPassword
+	 */
+	public SourceEndpoints(List<String> mysqlUrls, String mysqlUser, String mysqlPassword) {
+		List<Endpoint> list = new ArrayList<>();
+		for (String url : mysqlUrls) {
+			list.add(new Endpoint(url));
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+		this.mysqlUser = mysqlUser;
+		this.mysqlPassword = mysqlPassword;
+	}
+
+	/**
+	 * @return the first endpoint, used for metadata queries
+	 */
+	public Endpoint getPrimary() {
+		return endpoints.get(0);
+	}
+
+	public int size() {
+		return endpoints.size();
+	}
+
+	public Connection connect(Endpoint endpoint) throws SQLException {
+		return DriverManager.getConnection(endpoint.url, mysqlUser, mysqlPassword);
+	}
+
+	/**
+	 * Picks the endpoint to read the next chunk from: the one with the fewest chunks in flight relative to its
+	 * observed throughput. Endpoints without observations yet are assumed to be as fast as the fastest one, so they
+	 * get probed. Must be followed by either {@link #release} or {@link #failed}
+	 * @return the endpoint
+	 */
+	public synchronized Endpoint acquire() {
+		long now = System.currentTimeMillis();
+		double fastest = 0;
+		for (Endpoint endpoint : endpoints) {
+			fastest = Math.max(fastest, endpoint.bytesPerSecond);
+		}
+		Endpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.downUntil > now) {
+				continue;
+			}
+			double rate = endpoint.bytesPerSecond > 0 ? endpoint.bytesPerSecond : Math.max(fastest, 1);
+			double score = (endpoint.inFlight + 1) / rate;
+			if (score < bestScore) {
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+		if (best == null) {
+			//All are down, try the one that has been down the longest
+			for (Endpoint endpoint : endpoints) {
+				if (best == null || endpoint.downUntil < best.downUntil) {
+					best = endpoint;
+				}
+			}
+		}
+		best.inFlight++;
+		return best;
+	}
+
+	/**
+	 * Reports a successfully read chunk
+	 * @param endpoint the endpoint it was read from
+	 * @param bytes the (estimated) size of the chunk
+	 * @param millis the time it took
+	 */
+	public synchronized void release(Endpoint endpoint, long bytes, long millis) {
+		endpoint.inFlight--;
+		if (bytes > 0 && millis > 0) {
+			double rate = bytes * 1000.0 / millis;
+			endpoint.bytesPerSecond = endpoint.bytesPerSecond == 0 ? rate : (1 - RATE_WEIGHT) * endpoint.bytesPerSecond + RATE_WEIGHT * rate;
+		}
+	}
+
+	/**
+	 * Reports a failed chunk read, leaving the endpoint out for a while
+	 * @param endpoint the endpoint that failed
+	 * @param cause why it failed
+	 */
+	public synchronized void failed(Endpoint endpoint, SQLException cause) {
+		endpoint.inFlight--;
+		endpoint.downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+		if (endpoints.size() > 1) {
+			LOG.log(Level.WARNING, "Mysql endpoint " + endpoint + " failed, moving its chunks to the other endpoints", cause);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the load the migration puts on the mysql source, shared by all transfer threads. It caps the aggregate rate
+ * of rows and bytes read, and the number of chunks read concurrently. With a lag budget it polls the replication lag
+ * of the sources and lowers the number of concurrent chunk reads while the lag is above budget, raising it again once
+ * the replica has caught up.
+ * @author adam
+ */
+public class SourceGovernor {
+
+	private static final Logger LOG = Logger.getLogger(SourceGovernor.class.getName());
+	/**
+	 * How much unused rate may be saved up, e.g. while a worker waits for a pgsql commit
+	 */
+	private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long NOT_A_REPLICA = -1;
+	private static final long STOP_TIMEOUT_SECONDS = 10;
+	private final long maxRowsPerSecond;
+	private final long maxBytesPerSecond;
+	private final int maxWorkers;
+	private final Object workerLock = new Object();
+	private int allowedWorkers;
+	private int activeWorkers;
+	private long nextFreeNanos;
+	private ScheduledExecutorService lagPoller;
+	/**
+	 * The connection to each polled source, by url. Kept between polls, and only used by the poller thread until it's
+	 * stopped
+	 */
+	private final Map<String, Connection> lagConnections = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxRowsPerSecond the max number of rows read per second by all workers together, 0 for no limit
+	 * @param maxBytesPerSecond the max number of bytes read per second by all workers together, 0 for no limit
+	 * @param maxWorkers the max number of chunks read concurrently
+	 */
+	public SourceGovernor(long maxRowsPerSecond, long maxBytesPerSecond, int maxWorkers) {
+		this.maxRowsPerSecond = maxRowsPerSecond;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.maxWorkers = maxWorkers;
+		this.allowedWorkers = maxWorkers;
+		this.nextFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * Blocks until a chunk may be read. Must be followed by {@link #endChunk()}
+	 * @throws SQLException if interrupted while waiting
+	 */
+	public void beginChunk() throws SQLException {
+		synchronized (workerLock) {
+			while (activeWorkers >= allowedWorkers) {
+				try {
+					workerLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a chunk to read", ex);
+				}
+			}
+			activeWorkers++;
+		}
+	}
+
+	public void endChunk() {
+		synchronized (workerLock) {
+			activeWorkers--;
+			workerLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Accounts for rows read from mysql, blocking long enough to keep the aggregate rate below the limits
+	 * @param rows the number of rows read since last call
+	 * @param bytes the (estimated) number of bytes read since last call
+	 * @throws SQLException if interrupted while waiting
+	 */
+	public void consumed(long rows, long bytes) throws SQLException {
+		if (maxRowsPerSecond <= 0 && maxBytesPerSecond <= 0) {
+			return;
+		}
+		long cost = 0;
+		if (maxRowsPerSecond > 0) {
+			cost = rows * 1_000_000_000L / maxRowsPerSecond;
+		}
+		if (maxBytesPerSecond > 0) {
+			cost = Math.max(cost, bytes * 1_000_000_000L / maxBytesPerSecond);
+		}
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			nextFreeNanos = Math.max(nextFreeNanos, now - BURST_NANOS) + cost;
+			waitNanos = nextFreeNanos - now;
+		}
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while throttled", ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of chunks currently allowed to be read concurrently
+	 */
+	public int getAllowedWorkers() {
+		synchronized (workerLock) {
+			return allowedWorkers;
+		}
+	}
+
+	void setAllowedWorkers(int workers) {
+		synchronized (workerLock) {
+			allowedWorkers = Math.max(1, Math.min(maxWorkers, workers));
+			workerLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts polling the replication lag of the sources, scaling the number of concurrent chunk reads down by one for
+	 * every poll where the lag of any of them is above budget, and up by one for every poll where the lag of all of
+	 * them is below half the budget. Sources that aren't replicas aren't polled.
+	 * @param mysqlUrls the sources read from
+	 * @param mysqlUser
+	 * @param mysqlPassword
+	 * @param maxLagSeconds the lag budget
+	 * @param pollSeconds how often to poll
+	 */
+	public void startLagPolling(Collection<String> mysqlUrls, final String mysqlUser, final String mysqlPassword, final long maxLagSeconds, long pollSeconds) {
+		final Set<String> replicaUrls = new LinkedHashSet<>(mysqlUrls);
+		lagPoller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "replica-lag-poller");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		lagPoller.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long maxLag = -1;
+				for (Iterator<String> it = replicaUrls.iterator(); it.hasNext();) {
+					String mysqlUrl = it.next();
+					Long lag = pollReplicaLag(mysqlUrl, mysqlUser, mysqlPassword);
+					if (lag != null && lag == NOT_A_REPLICA) {
+						LOG.log(Level.WARNING, "Source {0} is not a replica, not able to throttle on its replica lag", mysqlUrl);
+						it.remove();
+						closeLagConnection(mysqlUrl);
+					} else if (lag != null) {
+						maxLag = Math.max(maxLag, lag);
+					}
+				}
+				if (replicaUrls.isEmpty()) {
+					lagPoller.shutdown();
+					return;
+				}
+				if (maxLag < 0) {
+					//Replication stopped or the lag couldn't be polled, the lag doesn't depend on us
+					return;
+				}
+				int workers = getAllowedWorkers();
+				if (maxLag > maxLagSeconds && workers > 1) {
+					setAllowedWorkers(workers - 1);
+					LOG.log(Level.INFO, "Replica lag {0}s above budget of {1}s, reading with {2} workers", new Object[]{maxLag, maxLagSeconds, getAllowedWorkers()});
+				} else if (maxLag * 2 < maxLagSeconds && workers < maxWorkers) {
+					setAllowedWorkers(workers + 1);
+					LOG.log(Level.INFO, "Replica lag {0}s within budget of {1}s, reading with {2} workers", new Object[]{maxLag, maxLagSeconds, getAllowedWorkers()});
+				}
+			}
+		}, 0, pollSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the replication lag of a source in seconds, {@link #NOT_A_REPLICA} if it isn't a replica or null if its
+	 * replication is stopped or the lag couldn't be polled. The connection is kept for the next poll
+	 */
+	private Long pollReplicaLag(String mysqlUrl, String mysqlUser, String mysqlPassword) {
+		Connection con = lagConnections.get(mysqlUrl);
+		try {
+			if (con == null) {
+				con = DriverManager.getConnection(mysqlUrl, mysqlUser, mysqlPassword);
+				lagConnections.put(mysqlUrl, con);
+			}
+			return getReplicaLag(con);
+		} catch (SQLException ex) {
+			LOG.log(Level.WARNING, "Could not poll replica lag of " + mysqlUrl, ex);
+			closeLagConnection(mysqlUrl);
+			return null;
+		}
+	}
+
+	private void closeLagConnection(String mysqlUrl) {
+		JdbcUtils.cleanup(lagConnections.remove(mysqlUrl));
+	}
+
+	/**
+	 * Stops polling the replication lag and closes the connections it was polled through
+	 */
+	public void stop() {
+		if (lagPoller != null) {
+			lagPoller.shutdownNow();
+			try {
+				//The connections are only used by the poller, so they are closed once it's done
+				if (!lagPoller.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					LOG.warning("Replica lag poller did not stop, closing its connections anyway");
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			for (Connection con : lagConnections.values()) {
+				JdbcUtils.cleanup(con);
+			}
+			lagConnections.clear();
+		}
+	}
+
+	/**
+	 * @return the replication lag in seconds, {@link #NOT_A_REPLICA} if the source isn't a replica or null if the
+	 * replication is stopped
+	 */
+	private Long getReplicaLag(Connection con) throws SQLException {
+		Statement stmt = null;
+		try {
+			stmt = con.createStatement();
+			ResultSet rs;
+			String lagColumn;
+			try {
+				rs = stmt.executeQuery("SHOW REPLICA STATUS");
+				lagColumn = "Seconds_Behind_Source";
+			} catch (SQLException e) {
+				//Before mysql 8.0.22
+				rs = stmt.executeQuery("SHOW SLAVE STATUS");
+				lagColumn = "Seconds_Behind_Master";
+			}
+			if (!rs.next()) {
+				return NOT_A_REPLICA;
+			}
+			long lag = rs.getLong(lagColumn);
+			return rs.wasNull() ? null : lag;
+		} finally {
+			JdbcUtils.cleanup(stmt);
+		}
+	}
+}
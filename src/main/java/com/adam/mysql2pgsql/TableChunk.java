@@ -0,0 +1,87 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * A part of a table that is transferred in one query and one pgsql transaction: all rows of the table or of one of
+ * its partitions, or the rows within a pk range of either. When shards are consolidated, a chunk is read from one
+ * shard.
+ * @author adam
+ */
+public class TableChunk {
+
+	private final String partition;
+	private final NumericColumnRange range;
+	private final long dataLength;
+	private final Shard shard;
+
+	/**
+	 * @param partition the mysql partition to read, or null to read the whole table
+	 * @param range the pk range to read, or null to read all rows of the table or partition
+	 * @param dataLength the estimated data length of the chunk in mysql
+	 */
+	public TableChunk(String partition, NumericColumnRange range, long dataLength) {
+		this(partition, range, dataLength, null);
+	}
+
+	/**
+	 * @param partition the mysql partition to read, or null to read the whole table
+	 * @param range the pk range to read, or null to read all rows of the table or partition
+	 * @param dataLength the estimated data length of the chunk in mysql
+	 * @param shard the shard to read the chunk from, or null if there is a single mysql schema
+	 */
+	public TableChunk(String partition, NumericColumnRange range, long dataLength, Shard shard) {
+		this.partition = partition;
+		this.range = range;
+		this.dataLength = dataLength;
+		this.shard = shard;
+	}
+
+	/**
+	 * @return a chunk of another pk range of the same partition and shard
+	 */
+	TableChunk withRange(NumericColumnRange range, long dataLength) {
+		return new TableChunk(partition, range, dataLength, shard);
+	}
+
+	/**
+	 * @return the mysql partition of the chunk, or null if the table is read as a whole
+	 */
+	public String getPartition() {
+		return partition;
+	}
+
+	/**
+	 * @return the pk range of the chunk, or null if the chunk is all rows of its table or partition
+	 */
+	public NumericColumnRange getRange() {
+		return range;
+	}
+
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * @return the shard the chunk is read from, or null if there is a single mysql schema
+	 */
+	public Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * @return the pgsql table the rows of the chunk go to, the child table of the partition if there is one
+	 */
+	public String getTargetTable(String tableName) {
+		return partition != null ? PartitionScheme.childTableName(tableName, partition) : tableName;
+	}
+
+	@Override
+	public String toString() {
+		String chunk;
+		if (partition == null) {
+			chunk = range != null ? range.toString() : "(all rows)";
+		} else {
+			chunk = "partition " + partition + (range != null ? " " + range : "");
+		}
+		return shard != null ? shard + " " + chunk : chunk;
+	}
+}
@@ -0,0 +1,156 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per table row filters and column selections, read from a properties file:
+ * <pre>
+ * events.where = created_at &gt;= NOW() - INTERVAL 2 YEAR
+ * events.columns = id, created_at, type, payload
+ * users.excludeColumns = legacy_flag, old_password
+ * </pre>
+ * The where clause is mysql SQL and is added to every query reading the table, so rows and columns that are
+ * filtered out are never sent by mysql. Filtered out columns are left out of the pgsql table as well, together with
+ * any key or constraint using them.
+ * @author adam
+ */
+public class TableFilters {
+
+	private final Map<String, String> wheres = new HashMap<>();
+	private final Map<String, Set<String>> includedColumns = new HashMap<>();
+	private final Map<String, Set<String>> excludedColumns = new HashMap<>();
+	private final Map<String, String> selectLists = new ConcurrentHashMap<>();
+
+	/**
+	 * @return filters letting everything through
+	 */
+	public static TableFilters none() {
+		return new TableFilters(new Properties());
+	}
+
+	public static TableFilters load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return new TableFilters(properties);
+	}
+
+	TableFilters(Properties properties) {
+		for (String key : properties.stringPropertyNames()) {
+			int dot = key.lastIndexOf('.');
+			if (dot <= 0) {
+				throw new IllegalArgumentException("Table filter without table name: " + key);
+			}
+			String tableName = key.substring(0, dot).toLowerCase();
+			String value = properties.getProperty(key).trim();
+			switch (key.substring(dot + 1)) {
+				case "where":
+					wheres.put(tableName, value);
+					break;
+				case "columns":
+					includedColumns.put(tableName, parseColumns(value));
+					break;
+				case "excludeColumns":
+					excludedColumns.put(tableName, parseColumns(value));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown table filter " + key + ", expected where, columns or excludeColumns");
+			}
+		}
+	}
+
+	private static Set<String> parseColumns(String value) {
+		Set<String> columns = new LinkedHashSet<>();
+		for (String column : value.split(",")) {
+			if (!column.trim().isEmpty()) {
+				columns.add(column.trim().toLowerCase());
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * @return the mysql where clause for the table, or null if all rows are migrated
+	 */
+	public String getWhere(String tableName) {
+		return wheres.get(tableName.toLowerCase());
+	}
+
+	public boolean isColumnIncluded(String tableName, String columnName) {
+		Set<String> included = includedColumns.get(tableName.toLowerCase());
+		Set<String> excluded = excludedColumns.get(tableName.toLowerCase());
+		String columnNameLc = columnName.toLowerCase();
+		return (included == null || included.contains(columnNameLc)) && (excluded == null || !excluded.contains(columnNameLc));
+	}
+
+	private boolean hasColumnFilter(String tableName) {
+		return includedColumns.containsKey(tableName.toLowerCase()) || excludedColumns.containsKey(tableName.toLowerCase());
+	}
+
+	/**
+	 * @return the select list reading the included columns of a table, in table order
+	 */
+	public String getSelectList(Connection mysqlCon, String mysqlSchema, String tableName) throws SQLException {
+		if (!hasColumnFilter(tableName)) {
+			return "*";
+		}
+		String selectList = selectLists.get(tableName);
+		if (selectList != null) {
+			return selectList;
+		}
+		PreparedStatement ps = null;
+		try {
+			ps = mysqlCon.prepareStatement("SELECT column_name FROM information_schema.columns WHERE table_schema = ? AND table_name = ? ORDER BY ordinal_position");
+			ps.setString(1, mysqlSchema);
+			ps.setString(2, tableName);
+			ResultSet rs = ps.executeQuery();
+			StringBuilder sb = new StringBuilder();
+			while (rs.next()) {
+				String columnName = rs.getString("column_name");
+				if (isColumnIncluded(tableName, columnName)) {
+					sb.append(sb.length() > 0 ? ", " : "").append('`').append(columnName).append('`');
+				}
+			}
+			if (sb.length() == 0) {
+				throw new SQLException("The column filters of " + tableName + " leave no columns to migrate");
+			}
+			selectList = sb.toString();
+			selectLists.put(tableName, selectList);
+			return selectList;
+		} finally {
+			JdbcUtils.cleanup(ps);
+		}
+	}
+
+	/**
+	 * @return a description of the filters of a table, empty if it has none
+	 */
+	public String describe(String tableName) {
+		String tableNameLc = tableName.toLowerCase();
+		StringBuilder sb = new StringBuilder();
+		if (wheres.containsKey(tableNameLc)) {
+			sb.append(" where:").append(wheres.get(tableNameLc));
+		}
+		if (includedColumns.containsKey(tableNameLc)) {
+			sb.append(" columns:").append(includedColumns.get(tableNameLc));
+		}
+		if (excludedColumns.containsKey(tableNameLc)) {
+			sb.append(" excludeColumns:").append(excludedColumns.get(tableNameLc));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,229 @@
+package com.adam.mysql2pgsql;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Fingerprints of the mysql tables, stored in the target pgsql database after each run, so a later run can skip the
+ * tables that haven't changed since. A fingerprint is a hash of the table DDL combined with the last update time of
+ * the table or, where mysql doesn't keep one (e.g. InnoDB after a restart), the row count and CHECKSUM TABLE.
+ * @author adam
+ */
+public class TableFingerprints {
+
+	private static final String CONTROL_SCHEMA = "mysql2pgsql";
+	private final SourceEndpoints sources;
+	private final String mysqlSchema;
+	private final String pgsqlUrl;
+	private final String pgsqlUser;
+	private final String pgsqlPassword;
+	private final String pgsqlSchema;
+	private final String table;
+	private TableFilters filters = TableFilters.none();
+
+	/**
+	 * @param sources the fingerprints are computed on the first endpoint
+	 * @param mysqlSchema
+	 * @param pgsqlUrl
+	 * @param pgsqlUser
+	 * @param pgsqlPassword
+	 * @param pgsqlSchema the schema being migrated to, each schema gets its own fingerprint table
+	 */
+	public TableFingerprints(SourceEndpoints sources, String mysqlSchema, String pgsqlUrl, String pgsqlUser, String pgsqlPassword, String pgsqlSchema) {
+		this.sources = sources;
+		this.mysqlSchema = mysqlSchema;
+		this.pgsqlUrl = pgsqlUrl;
+		this.pgsqlUser = pgsqlUser;
+		this.pgsqlPassword = pgsqlPassword;
+		this.pgsqlSchema = pgsqlSchema;
+		this.table = String.format("\"%s\".\"%s_fingerprints\"", CONTROL_SCHEMA, pgsqlSchema);
+	}
+
+	/**
+	 * @param filters part of the fingerprint, so a table is migrated again when its filters change
+	 */
+	public void setFilters(TableFilters filters) {
+		this.filters = filters;
+	}
+
+	private Connection createPgsqlConnection() throws SQLException {
+		return DriverManager.getConnection(pgsqlUrl, pgsqlUser, pgsqlPassword);
+	}
+
+	/**
+	 * Computes the current fingerprint of each table in mysql
+	 * @param tableNames
+	 * @return the fingerprints by table name
+	 * @throws SQLException
+	 */
+	public Map<String, String> compute(Collection<String> tableNames) throws SQLException {
+		Connection mysqlCon = null;
+		Map<String, String> fingerprints = new TreeMap<>();
+		try {
+			mysqlCon = sources.connect(sources.getPrimary());
+			mysqlCon.setCatalog(mysqlSchema);
+			for (String tableName : tableNames) {
+				fingerprints.put(tableName, compute(mysqlCon, tableName));
+			}
+			return fingerprints;
+		} finally {
+			JdbcUtils.cleanup(mysqlCon);
+		}
+	}
+
+	private String compute(Connection mysqlCon, String tableName) throws SQLException {
+		PreparedStatement ps = null;
+		Statement stmt = null;
+		try {
+			stmt = mysqlCon.createStatement();
+			ResultSet rs = stmt.executeQuery(String.format("SHOW CREATE TABLE `%s`.`%s`", mysqlSchema, tableName));
+			rs.next();
+			//The auto increment counter changes with every insert, which is covered by the rest of the fingerprint
+			String ddl = rs.getString(2).replaceFirst(" AUTO_INCREMENT=[0-9]+", "");
+			String fingerprint = "ddl:" + sha1(ddl + filters.describe(tableName));
+
+			ps = mysqlCon.prepareStatement("SELECT update_time FROM information_schema.tables WHERE table_schema = ? AND table_name = ?");
+			ps.setString(1, mysqlSchema);
+			ps.setString(2, tableName);
+			rs = ps.executeQuery();
+			Timestamp updateTime = rs.next() ? rs.getTimestamp("update_time") : null;
+			if (updateTime != null) {
+				return fingerprint + " updated:" + updateTime;
+			}
+			rs = stmt.executeQuery(String.format("SELECT COUNT(*) FROM `%s`.`%s`", mysqlSchema, tableName));
+			rs.next();
+			fingerprint += " rows:" + rs.getLong(1);
+			rs = stmt.executeQuery(String.format("CHECKSUM TABLE `%s`.`%s`", mysqlSchema, tableName));
+			rs.next();
+			return fingerprint + " checksum:" + rs.getLong("Checksum");
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(stmt);
+		}
+	}
+
+	private static String sha1(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+			return String.format("%040x", new BigInteger(1, digest));
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @param current the current fingerprints by table name
+	 * @return the tables whose stored fingerprint matches the current one, and which still exist in pgsql
+	 * @throws SQLException
+	 */
+	public Set<String> findUnchanged(Map<String, String> current) throws SQLException {
+		Connection pgsqlCon = null;
+		Statement stmt = null;
+		PreparedStatement ps = null;
+		try {
+			pgsqlCon = createPgsqlConnection();
+			stmt = pgsqlCon.createStatement();
+			createTableIfMissing(stmt);
+			Map<String, String> stored = new HashMap<>();
+			ResultSet rs = stmt.executeQuery("SELECT table_name, fingerprint FROM " + table);
+			while (rs.next()) {
+				stored.put(rs.getString("table_name"), rs.getString("fingerprint"));
+			}
+			Set<String> existing = new HashSet<>();
+			ps = pgsqlCon.prepareStatement("SELECT table_name FROM information_schema.tables WHERE table_schema = ?");
+			ps.setString(1, pgsqlSchema);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				existing.add(rs.getString("table_name"));
+			}
+			Set<String> unchanged = new HashSet<>();
+			for (Map.Entry<String, String> entry : current.entrySet()) {
+				if (entry.getValue().equals(stored.get(entry.getKey())) && existing.contains(entry.getKey())) {
+					unchanged.add(entry.getKey());
+				}
+			}
+			return unchanged;
+		} finally {
+			JdbcUtils.cleanup(ps);
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(pgsqlCon);
+		}
+	}
+
+	/**
+	 * Stores the fingerprints of tables that have been migrated
+	 * @param fingerprints by table name
+	 * @throws SQLException
+	 */
+	public void store(Map<String, String> fingerprints) throws SQLException {
+		Connection pgsqlCon = null;
+		Statement stmt = null;
+		PreparedStatement delete = null;
+		PreparedStatement insert = null;
+		try {
+			pgsqlCon = createPgsqlConnection();
+			stmt = pgsqlCon.createStatement();
+			createTableIfMissing(stmt);
+			pgsqlCon.setAutoCommit(false);
+			delete = pgsqlCon.prepareStatement("DELETE FROM " + table + " WHERE table_name = ?");
+			insert = pgsqlCon.prepareStatement("INSERT INTO " + table + " (table_name, fingerprint, migrated_at) VALUES (?, ?, now())");
+			for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+				delete.setString(1, entry.getKey());
+				delete.addBatch();
+				insert.setString(1, entry.getKey());
+				insert.setString(2, entry.getValue());
+				insert.addBatch();
+			}
+			delete.executeBatch();
+			insert.executeBatch();
+			pgsqlCon.commit();
+		} finally {
+			JdbcUtils.cleanup(delete);
+			JdbcUtils.cleanup(insert);
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(pgsqlCon);
+		}
+	}
+
+	/**
+	 * Forgets all stored fingerprints, e.g. when the target schema is recreated
+	 * @throws SQLException
+	 */
+	public void clear() throws SQLException {
+		Connection pgsqlCon = null;
+		Statement stmt = null;
+		try {
+			pgsqlCon = createPgsqlConnection();
+			stmt = pgsqlCon.createStatement();
+			createTableIfMissing(stmt);
+			stmt.execute("DELETE FROM " + table);
+		} finally {
+			JdbcUtils.cleanup(stmt);
+			JdbcUtils.cleanup(pgsqlCon);
+		}
+	}
+
+	private void createTableIfMissing(Statement stmt) throws SQLException {
+		stmt.execute("CREATE SCHEMA IF NOT EXISTS \"" + CONTROL_SCHEMA + "\"");
+		stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (\n"
+				+ "\ttable_name text PRIMARY KEY,\n"
+				+ "\tfingerprint text NOT NULL,\n"
+				+ "\tmigrated_at timestamp with time zone NOT NULL\n"
+				+ ")");
+	}
+}
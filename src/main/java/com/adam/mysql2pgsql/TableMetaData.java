@@ -2,6 +2,7 @@ package com.adam.mysql2pgsql;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class TableMetaData {
 
@@ -12,6 +13,9 @@ public class TableMetaData {
 	final List<String> pks;
 	final List<String> indices;
 	final List<String> postSqls;
+	final List<ForeignKey> foreignKeys;
+	final List<String> serialColumns;
+	private PartitionScheme partitionScheme;
 
 	TableMetaData(String tableName) {
 		this.tableName = tableName;
@@ -21,6 +25,8 @@ public class TableMetaData {
 		this.pks = new ArrayList<>();
 		this.indices = new ArrayList<>();
 		this.postSqls = new ArrayList<>();
+		this.foreignKeys = new ArrayList<>();
+		this.serialColumns = new ArrayList<>();
 	}
 
 	String getTableName() {
@@ -35,6 +41,10 @@ public class TableMetaData {
 		this.comments.add(comment);
 	}
 
+	void addSerialColumn(String columnName) {
+		this.serialColumns.add(columnName);
+	}
+
 	void addPostSQL(String postSql) {
 		this.postSqls.add(postSql);
 	}
@@ -43,6 +53,35 @@ public class TableMetaData {
 		this.constraints.add(constraint);
 	}
 
+	void addForeignKey(ForeignKey foreignKey) {
+		this.foreignKeys.add(foreignKey);
+	}
+
+	List<ForeignKey> getForeignKeys() {
+		return foreignKeys;
+	}
+
+	/**
+	 * @param tableNames lower case table names
+	 * @return the foreign keys of this table referencing any of the given tables
+	 */
+	List<ForeignKey> getForeignKeysReferencing(Set<String> tableNames) {
+		List<ForeignKey> fks = new ArrayList<>();
+		for (ForeignKey fk : foreignKeys) {
+			if (tableNames.contains(fk.getReferencedTable())) {
+				fks.add(fk);
+			}
+		}
+		return fks;
+	}
+
+	/**
+	 * @param partitionScheme how the table is partitioned, or null to create an ordinary table
+	 */
+	void setPartitionScheme(PartitionScheme partitionScheme) {
+		this.partitionScheme = partitionScheme;
+	}
+
 	void addPk(String pk) {
 		this.pks.add(pk);
 	}
@@ -62,7 +101,12 @@ public class TableMetaData {
 				retStr += "\t" + colDefinitions.get(i) + "\n";
 			}
 		}
-		retStr += ");";
+		if (partitionScheme != null) {
+			retStr += ")" + partitionScheme.generatePartitionByClause() + ";\n";
+			retStr += partitionScheme.generateCreatePartitionStatements(schemaName, tableName);
+		} else {
+			retStr += ");";
+		}
 		if (!comments.isEmpty()) {
 			retStr += "\n";
 			for (String comment : comments) {
@@ -72,6 +116,31 @@ public class TableMetaData {
 		return retStr;
 	}
 
+	/**
+	 * @return the statements moving the table loaded into the shadow schema into the place of the dropped one. A table
+	 * moved to another schema takes its indexes, constraints and serial sequences along, its partitions are moved one
+	 * by one
+	 */
+	String generateSwapStatement(String shadowSchemaName, String schemaName) {
+		String retStr = "";
+		retStr += String.format("ALTER TABLE \"%s\".\"%s\" SET SCHEMA \"%s\";\n", shadowSchemaName, tableName, schemaName);
+		if (partitionScheme != null) {
+			for (PartitionScheme.Partition partition : partitionScheme.getPartitions()) {
+				retStr += String.format("ALTER TABLE \"%s\".\"%s\" SET SCHEMA \"%s\";\n", shadowSchemaName,
+						PartitionScheme.childTableName(tableName, partition.getName()), schemaName);
+			}
+		}
+		return retStr;
+	}
+
+	/**
+	 * @return the statement dropping a column, from the partitions as well. Only the catalog is changed, the values
+	 * stay on disk until the rows are rewritten
+	 */
+	String generateDropColumnStatement(String schemaName, String columnName) {
+		return String.format("ALTER TABLE \"%s\".\"%s\" DROP COLUMN \"%s\";\n", schemaName, tableName, columnName);
+	}
+
 	String generateIndicesStatement() {
 		if (indices.isEmpty()) {
 			return null;
@@ -105,11 +174,29 @@ public class TableMetaData {
 		return retStr;
 	}
 
-	String generatePostSqls() {
-		if (postSqls.isEmpty()) {
+	/**
+	 * @param schemaName
+	 * @param profile the statistics of the transferred rows, or null. Sequences of the columns whose max value is
+	 * known from it are set without scanning the table
+	 * @return the statements setting the sequence of each serial column to the current max value, and any other
+	 * post SQLs
+	 */
+	String generatePostSqls(String schemaName, TableProfile profile) {
+		if (postSqls.isEmpty() && serialColumns.isEmpty()) {
 			return null;
 		}
 		String retStr = "";
+		for (String serialColumn : serialColumns) {
+			String sequence = String.format("\"%s\".\"%s_%s_seq\"", schemaName, tableName, serialColumn);
+			ColumnStats stats = profile != null ? profile.getColumn(serialColumn) : null;
+			if (profile != null && profile.getRows() == 0) {
+				retStr += String.format("SELECT setval('%s', 1);\n", sequence);
+			} else if (stats != null && stats.getMaxLong() != null) {
+				retStr += String.format("SELECT setval('%s', %d);\n", sequence, stats.getMaxLong() + 1);
+			} else {
+				retStr += String.format("SELECT setval('%s', (select coalesce(max(\"%s\"), 0)+1 from \"%s\".\"%s\"));\n", sequence, serialColumn, schemaName, tableName);
+			}
+		}
 		for (String postSql : postSqls) {
 			retStr += postSql + ";\n";
 		}
@@ -119,6 +206,6 @@ public class TableMetaData {
 	@Override
 	public String toString() {
 		return "TableMetaData{" + "\n  tableName=" + tableName + "\n, colDefinitions=" + colDefinitions + "\n, comments=" + comments +
-				"\n, constraints=" + constraints + "\n, pks=" + pks + "\n, indices=" + indices + "\n, postSqls=" + postSqls + '}';
+				"\n, constraints=" + constraints + "\n, foreignKeys=" + foreignKeys + "\n, pks=" + pks + "\n, indices=" + indices + "\n, postSqls=" + postSqls + '}';
 	}
 }
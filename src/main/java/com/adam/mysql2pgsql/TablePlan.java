@@ -0,0 +1,107 @@
+package com.adam.mysql2pgsql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How a single table is going to be transferred, and what it is estimated to cost
+ * @author adam
+ */
+public class TablePlan {
+
+	private final TableStats stats;
+	private final List<TableChunk> chunks;
+	private final long estTransferMillis;
+	private final long estIndexMillis;
+	private int worker;
+	private long estStartMillis;
+
+	/**
+	 * @param stats the collected statistics of the table
+	 * @param chunks the chunks to transfer the table in, at least one
+	 * @param estTransferMillis the estimated time for one worker to transfer the table
+	 * @param estIndexMillis the estimated time to build the pk and indices of the table
+	 */
+	TablePlan(TableStats stats, List<TableChunk> chunks, long estTransferMillis, long estIndexMillis) {
+		this.stats = stats;
+		this.chunks = chunks;
+		this.estTransferMillis = estTransferMillis;
+		this.estIndexMillis = estIndexMillis;
+	}
+
+	public String getTableName() {
+		return stats.getTableName();
+	}
+
+	public TableStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the chunks to transfer the table in, in transfer order
+	 */
+	public List<TableChunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return the chunks by partition, in transfer order. Each partition is a stream of chunks of its own, which can be
+	 * transferred concurrently with the other partitions. A table without partitions is one stream, under null
+	 */
+	public Map<String, List<TableChunk>> getStreams() {
+		Map<String, List<TableChunk>> streams = new LinkedHashMap<>();
+		for (TableChunk chunk : chunks) {
+			List<TableChunk> stream = streams.get(chunk.getPartition());
+			if (stream == null) {
+				stream = new ArrayList<>();
+				streams.put(chunk.getPartition(), stream);
+			}
+			stream.add(chunk);
+		}
+		return streams;
+	}
+
+	/**
+	 * @return the estimated time for one worker to transfer some of the chunks of the table
+	 */
+	public long getEstTransferMillis(List<TableChunk> someChunks) {
+		long dataLength = 0;
+		long totDataLength = 0;
+		for (TableChunk chunk : someChunks) {
+			dataLength += chunk.getDataLength();
+		}
+		for (TableChunk chunk : chunks) {
+			totDataLength += chunk.getDataLength();
+		}
+		return totDataLength == 0 ? estTransferMillis * someChunks.size() / chunks.size() : estTransferMillis * dataLength / totDataLength;
+	}
+
+	public long getEstTransferMillis() {
+		return estTransferMillis;
+	}
+
+	public long getEstIndexMillis() {
+		return estIndexMillis;
+	}
+
+	/**
+	 * @return the worker the first stream of the table was assigned to when the schedule was simulated
+	 */
+	public int getWorker() {
+		return worker;
+	}
+
+	/**
+	 * @return the estimated time from the start of the data transfer until the first stream of this table is picked up
+	 */
+	public long getEstStartMillis() {
+		return estStartMillis;
+	}
+
+	void schedule(int worker, long estStartMillis) {
+		this.worker = worker;
+		this.estStartMillis = estStartMillis;
+	}
+}
@@ -0,0 +1,107 @@
+package com.adam.mysql2pgsql;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The column statistics of a transferred table, merged from the statistics of each of its chunks
+ * @author adam
+ */
+public class TableProfile {
+
+	/**
+	 * The number of distinct values pgsql assumes for a column without statistics
+	 */
+	private static final double PGSQL_DEFAULT_DISTINCT = 200;
+	private final String tableName;
+	private final Map<String, ColumnStats> columns = new LinkedHashMap<>();
+	private long rows;
+	private int chunks;
+
+	public TableProfile(String tableName) {
+		this.tableName = tableName;
+	}
+
+	/**
+	 * Merges the statistics of a committed chunk
+	 * @param chunkStats the statistics of each column of the chunk
+	 * @param chunkRows the number of rows in the chunk
+	 */
+	public synchronized void merge(ColumnStats[] chunkStats, long chunkRows) {
+		for (ColumnStats stats : chunkStats) {
+			ColumnStats merged = columns.get(stats.getName());
+			if (merged == null) {
+				columns.put(stats.getName(), stats);
+			} else {
+				merged.merge(stats);
+			}
+		}
+		rows += chunkRows;
+		chunks++;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @param columnName
+	 * @return the statistics of the column, or null if none of its chunks had any rows
+	 */
+	public synchronized ColumnStats getColumn(String columnName) {
+		return columns.get(columnName.toLowerCase());
+	}
+
+	/**
+	 * How badly pgsql is likely to misestimate queries on this table until it has been analyzed: the number of rows
+	 * weighted by how far the distinct count of its worst column is from what pgsql assumes without statistics
+	 * @return a score, higher is more urgent
+	 */
+	public synchronized double getAnalyzeUrgency() {
+		double worst = 1;
+		for (ColumnStats stats : columns.values()) {
+			if (!stats.isProfiled()) {
+				continue;
+			}
+			double distinct = Math.max(1, stats.getDistinct());
+			worst = Math.max(worst, Math.max(distinct / PGSQL_DEFAULT_DISTINCT, PGSQL_DEFAULT_DISTINCT / distinct));
+		}
+		return rows * Math.log(1 + worst) / Math.log(2);
+	}
+
+	/**
+	 * @return the profiles, the table most in need of ANALYZE first
+	 */
+	public static List<TableProfile> byAnalyzeUrgency(Collection<TableProfile> profiles) {
+		List<TableProfile> sorted = new ArrayList<>(profiles);
+		Collections.sort(sorted, new Comparator<TableProfile>() {
+			@Override
+			public int compare(TableProfile o1, TableProfile o2) {
+				return Double.compare(o2.getAnalyzeUrgency(), o1.getAnalyzeUrgency());
+			}
+		});
+		return sorted;
+	}
+
+	public synchronized void print(PrintWriter writer) {
+		writer.println(String.format("%s: %d rows in %d chunks, analyze urgency %.0f", tableName, rows, chunks, getAnalyzeUrgency()));
+		for (ColumnStats stats : columns.values()) {
+			if (!stats.isProfiled()) {
+				writer.println(String.format("\t%-30s not profiled", stats.getName()));
+				continue;
+			}
+			writer.println(String.format("\t%-30s nulls %d, ~%d distinct%s", stats.getName(), stats.getNulls(), stats.getDistinct(),
+					stats.getMin() != null ? ", min " + stats.getMin() + ", max " + stats.getMax() : ""));
+		}
+	}
+}
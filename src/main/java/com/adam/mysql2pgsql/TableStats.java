@@ -0,0 +1,104 @@
+package com.adam.mysql2pgsql;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Size and key statistics for a mysql table, as collected by the {@link MigrationPlanner}
+ * @author adam
+ */
+public class TableStats {
+
+	private final String tableName;
+	private final long rows;
+	private final long avgRowLength;
+	private final long dataLength;
+	private final long indexLength;
+	private final int indexCount;
+	private final NumericColumnRange pkRange;
+	private final String partitionName;
+	private final List<TableStats> partitions;
+
+	public TableStats(String tableName, long rows, long avgRowLength, long dataLength, long indexLength, int indexCount, NumericColumnRange pkRange) {
+		this(tableName, null, rows, avgRowLength, dataLength, indexLength, indexCount, pkRange, Collections.<TableStats>emptyList());
+	}
+
+	/**
+	 * @param partitionName the partition these are the statistics of, or null for a whole table
+	 * @param partitions the statistics of each partition of a table that is transferred partition by partition
+	 */
+	TableStats(String tableName, String partitionName, long rows, long avgRowLength, long dataLength, long indexLength, int indexCount, NumericColumnRange pkRange, List<TableStats> partitions) {
+		this.tableName = tableName;
+		this.partitionName = partitionName;
+		this.partitions = partitions;
+		this.rows = rows;
+		this.avgRowLength = avgRowLength;
+		this.dataLength = dataLength;
+		this.indexLength = indexLength;
+		this.indexCount = indexCount;
+		this.pkRange = pkRange;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return the estimated number of rows (exact for MyISAM, an estimate for InnoDB)
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	public long getAvgRowLength() {
+		return avgRowLength;
+	}
+
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	public long getIndexLength() {
+		return indexLength;
+	}
+
+	/**
+	 * @return the number of indices, including the primary key
+	 */
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	/**
+	 * @return the min and max value of the numeric pk column, or null if the table has none or is too small to chunk
+	 */
+	public NumericColumnRange getPkRange() {
+		return pkRange;
+	}
+
+	/**
+	 * @return the share of the pk range that is actually used by rows, 1.0 for a dense pk. Null if there is no pk range
+	 */
+	public Double getPkDensity() {
+		if (pkRange == null) {
+			return null;
+		}
+		double width = (double) pkRange.getMax() - pkRange.getMin() + 1;
+		return Math.min(1.0, rows / width);
+	}
+
+	/**
+	 * @return the partition these are the statistics of, or null if they are of a whole table
+	 */
+	public String getPartitionName() {
+		return partitionName;
+	}
+
+	/**
+	 * @return the statistics of each partition, in partition order. Empty if the table isn't partitioned, or is
+	 * partitioned in a way that can't be transferred partition by partition
+	 */
+	public List<TableStats> getPartitions() {
+		return partitions;
+	}
+}
@@ -0,0 +1,60 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Transfers DATE, DATETIME/TIMESTAMP and TIME columns as their textual mysql representation, which postgres parses
+ * into the type of the target column. Zero dates are detected directly from the text, so no exception is thrown
+ * (and caught) for them, and no time zone conversion takes place through java.sql.Timestamp.
+ * @author adam
+ */
+class TemporalCodec implements ColumnCodec {
+
+	private final ZeroDatePolicy zeroDatePolicy;
+	private final String epoch;
+
+	/**
+	 * @param sqlType one of {@link Types#DATE}, {@link Types#TIMESTAMP} or {@link Types#TIME}
+	 * @param zeroDatePolicy how to handle zero dates
+	 */
+	TemporalCodec(int sqlType, ZeroDatePolicy zeroDatePolicy) {
+		this.zeroDatePolicy = zeroDatePolicy;
+		this.epoch = sqlType == Types.DATE ? "1970-01-01" : "1970-01-01 00:00:00";
+	}
+
+	@Override
+	public void transfer(RowReader rows, int position, RowWriter row) throws SQLException {
+		String value = rows.getString(position);
+		if (value == null) {
+			row.setNull(position, Types.OTHER);
+			return;
+		}
+		if (isZeroDate(value)) {
+			switch (zeroDatePolicy) {
+				case NULL:
+					row.setNull(position, Types.OTHER);
+					return;
+				case EPOCH:
+					value = epoch;
+					break;
+				default:
+					throw new SQLException("Zero date '" + value + "' in column " + rows.getColumnName(position));
+			}
+		}
+		//Bound as an untyped literal, letting postgres cast it to date, timestamp or time
+		row.setText(position, value, Types.OTHER);
+	}
+
+	/**
+	 * @param value a mysql date or datetime on the form YYYY-MM-DD[ ...]. Times (HH:MM:SS) are never zero dates
+	 * @return true if the month or day part is zero, as in 0000-00-00 or 2012-05-00
+	 */
+	static boolean isZeroDate(String value) {
+		if (value.length() < 10 || value.charAt(4) != '-' || value.charAt(7) != '-') {
+			return false;
+		}
+		return (value.charAt(5) == '0' && value.charAt(6) == '0')
+				|| (value.charAt(8) == '0' && value.charAt(9) == '0');
+	}
+}
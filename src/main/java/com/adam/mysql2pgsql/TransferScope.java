@@ -0,0 +1,230 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of a transfer each on a thread of their own: a virtual thread when the runtime has them (java 21+),
+ * a platform thread otherwise. The tasks mostly wait on sockets, so how many run at the same time is limited by the
+ * permits they take, not by the number of threads. As in a structured task scope, the first task to fail cancels
+ * all others, and {@link #join()} returns once every task has ended, rethrowing that failure. A cancelled task that is
+ * blocked in a JDBC call ends when the call returns, and {@link #join()} and {@link #close()} wait for it, so a
+ * caller retrying the transfer never overlaps with writers of the previous attempt.
+ * @author adam
+ */
+public class TransferScope implements AutoCloseable {
+
+	private static final int NEW = 0;
+	private static final int RUNNING = 1;
+	private static final int ENDED = 2;
+	/**
+	 * How often {@link #acquire(Semaphore)} checks if the scope was cancelled while it waits for a permit
+	 */
+	private static final long PERMIT_POLL_MILLIS = 100;
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final List<Task> tasks = new ArrayList<>();
+	private boolean cancelled;
+	private int unfinished;
+	private Throwable failure;
+
+	public TransferScope() {
+		ExecutorService virtualExecutor;
+		try {
+			virtualExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			//Before java 21
+			virtualExecutor = null;
+		}
+		this.virtual = virtualExecutor != null;
+		this.executor = virtual ? virtualExecutor : Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * @return true if the tasks run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return true once a task has failed or the scope was cancelled, tasks forked from then on don't run
+	 */
+	public boolean isCancelled() {
+		synchronized (tasks) {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Takes a permit for a task before it's forked, so there are never more threads than permits. A task cancelled
+	 * before it started never releases its permit, so this stops waiting once the scope is cancelled
+	 * @return true once a permit is taken, false if the scope was cancelled first, its join rethrows the failure
+	 * @throws SQLException if interrupted while waiting
+	 */
+	public boolean acquire(Semaphore permits) throws SQLException {
+		try {
+			while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (isCancelled()) {
+					return false;
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", ex);
+		}
+		if (isCancelled()) {
+			permits.release();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a task, unless the scope is cancelled
+	 * @param task
+	 */
+	public void fork(final Callable<Void> task) {
+		Task forked = new Task(task);
+		synchronized (tasks) {
+			tasks.add(forked);
+			unfinished++;
+			if (cancelled) {
+				forked.skip();
+			} else {
+				//Under the lock, so a cancel doesn't miss the future of a task that just started
+				forked.future = executor.submit(forked);
+			}
+		}
+	}
+
+	/**
+	 * Waits until all forked tasks have ended. When a task fails, all others are cancelled (interrupted) right away,
+	 * but this still waits for them to end, so nothing of the transfer is left running when it returns
+	 * @throws SQLException the first failure of any task, or if interrupted while waiting
+	 */
+	public void join() throws SQLException {
+		try {
+			awaitTasks();
+		} catch (InterruptedException e) {
+			cancelAll();
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the transfer", e);
+		}
+		synchronized (tasks) {
+			if (failure instanceof SQLException) {
+				throw (SQLException) failure;
+			}
+			if (failure != null) {
+				throw new SQLException(failure.getMessage(), failure);
+			}
+		}
+	}
+
+	private void awaitTasks() throws InterruptedException {
+		synchronized (tasks) {
+			while (unfinished > 0) {
+				tasks.wait();
+			}
+		}
+	}
+
+	/**
+	 * Keeps the first failure, later ones are mostly the cancellations it caused
+	 */
+	private void failed(Throwable cause) {
+		synchronized (tasks) {
+			if (failure == null) {
+				failure = cause;
+			}
+		}
+		cancelAll();
+	}
+
+	private void cancelAll() {
+		synchronized (tasks) {
+			cancelled = true;
+			for (Task task : tasks) {
+				task.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Cancels any task still running, waits for them to end and releases the threads
+	 */
+	@Override
+	public void close() {
+		cancelAll();
+		try {
+			awaitTasks();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * A forked task, which counts as ended when its call returns, or when it's cancelled before it started
+	 */
+	private class Task implements Callable<Void> {
+
+		private final Callable<Void> task;
+		private final AtomicInteger state = new AtomicInteger(NEW);
+		private Future<Void> future;
+
+		Task(Callable<Void> task) {
+			this.task = task;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			if (!state.compareAndSet(NEW, RUNNING)) {
+				return null;
+			}
+			try {
+				return task.call();
+			} catch (Exception | Error e) {
+				failed(e);
+				throw e;
+			} finally {
+				state.set(ENDED);
+				ended();
+			}
+		}
+
+		/**
+		 * Makes a task that hasn't started never run
+		 */
+		void skip() {
+			if (state.compareAndSet(NEW, ENDED)) {
+				ended();
+			}
+		}
+
+		/**
+		 * Called holding the lock of the tasks
+		 */
+		void cancel() {
+			skip();
+			if (future != null && state.get() == RUNNING) {
+				future.cancel(true);
+			}
+		}
+
+		private void ended() {
+			synchronized (tasks) {
+				unfinished--;
+				tasks.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * What to do with mysql zero dates such as 0000-00-00 or 2012-00-00, which postgres can't represent
+ * @author adam
+ */
+public enum ZeroDatePolicy {
+
+	/**
+	 * Insert NULL. Fails on NOT NULL columns
+	 */
+	NULL,
+	/**
+	 * Insert 1970-01-01 00:00:00
+	 */
+	EPOCH,
+	/**
+	 * Fail the transfer of the table
+	 */
+	REJECT
+}
@@ -0,0 +1,167 @@
+package com.adam.mysql2pgsql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import org.junit.Assert;
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+/**
+ *
+ * @author adam
+ */
+public class ColumnBatchSpec {
+
+	@Test
+	public void itShouldEncodeRowsAsTheRowWriterDoes() throws SQLException {
+		for (int segmentSize : new int[]{64, 1024, 64 * 1024}) {
+			Assert.assertEquals("segment of " + segmentSize, encodeRowByRow(segmentSize), encodeInBatches(segmentSize));
+		}
+	}
+
+	@Test
+	public void itShouldKeepRowsOfOtherColumnsWhenAColumnHasOnlyNulls() throws SQLException {
+		TextCopyIn copyIn = new TextCopyIn();
+		ColumnBatch batch = new ColumnBatch(4);
+		batch.reset(new CopyRowWriter(copyIn, 2, new byte[64]), 2);
+		for (int i = 0; i < 6; i++) {
+			batch.setNull(1, Types.VARCHAR);
+			if (i < 3) {
+				batch.setNull(2, Types.VARCHAR);
+			} else {
+				batch.setString(2, "v" + i);
+			}
+			batch.addRow();
+		}
+		batch.flush();
+		Assert.assertEquals("\\N\t\\N\n\\N\t\\N\n\\N\t\\N\n\\N\tv3\n\\N\tv4\n\\N\tv5\n", copyIn.getText());
+	}
+
+	@Test(expected = SQLException.class)
+	public void itShouldRejectIncompleteRows() throws SQLException {
+		ColumnBatch batch = new ColumnBatch(4);
+		batch.reset(new CopyRowWriter(new TextCopyIn(), 2, new byte[64]), 2);
+		batch.setLong(1, 1);
+		batch.addRow();
+	}
+
+	private static String encodeRowByRow(int segmentSize) throws SQLException {
+		TextCopyIn copyIn = new TextCopyIn();
+		CopyRowWriter writer = new CopyRowWriter(copyIn, 7, new byte[segmentSize]);
+		writeRows(writer);
+		writer.end();
+		return copyIn.getText();
+	}
+
+	private static String encodeInBatches(int segmentSize) throws SQLException {
+		TextCopyIn copyIn = new TextCopyIn();
+		CopyRowWriter writer = new CopyRowWriter(copyIn, 7, new byte[segmentSize]);
+		ColumnBatch batch = new ColumnBatch(16);
+		batch.reset(writer, 7);
+		writeRows(batch);
+		batch.flush();
+		writer.end();
+		return copyIn.getText();
+	}
+
+	/**
+	 * Rows of every kind of value, with NULLs, escapes, multi-byte characters, streams and a value larger than a
+	 * segment
+	 */
+	private static void writeRows(RowWriter writer) throws SQLException {
+		String large = new String(new char[ColumnBatch.LARGE_VALUE]).replace('\0', 'x');
+		for (int i = 0; i < 50; i++) {
+			if (i % 7 == 3) {
+				writer.setNull(1, Types.BIGINT);
+			} else {
+				writer.setLong(1, i % 5 == 0 ? Long.MIN_VALUE + i : (long) i * i * i * (i % 2 == 0 ? -1 : 1));
+			}
+			if (i % 6 == 1) {
+				writer.setNull(2, Types.DECIMAL);
+			} else {
+				writer.setDouble(2, i / 7.0);
+			}
+			writer.setBoolean(3, i % 2 == 0);
+			if (i % 5 == 2) {
+				writer.setNull(4, Types.VARCHAR);
+			} else if (i == 20) {
+				writer.setString(4, large);
+			} else {
+				writer.setString(4, "row " + i + "\ttab\\ new\nline\r åäö € 😀");
+			}
+			if (i % 4 == 1) {
+				writer.setNull(5, Types.BINARY);
+			} else if (i == 30) {
+				writer.setBinaryStream(5, new ByteArrayInputStream(new byte[]{1, 2, 3}), 3);
+			} else {
+				writer.setBytes(5, new byte[]{(byte) i, (byte) 0xff, 0});
+			}
+			writer.setText(6, i + ".50", Types.NUMERIC);
+			if (i == 40) {
+				writer.setCharacterStream(7, new StringReader("streamed " + i), 9);
+			} else {
+				writer.setNull(7, Types.VARCHAR);
+			}
+			writer.addRow();
+		}
+	}
+
+	private static class TextCopyIn implements CopyIn {
+
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private boolean active = true;
+
+		String getText() {
+			return new String(data.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void writeToCopy(byte[] buf, int off, int siz) {
+			data.write(buf, off, siz);
+		}
+
+		@Override
+		public void flushCopy() {
+		}
+
+		@Override
+		public long endCopy() {
+			active = false;
+			return 0;
+		}
+
+		@Override
+		public int getFieldCount() {
+			return 0;
+		}
+
+		@Override
+		public int getFormat() {
+			return 0;
+		}
+
+		@Override
+		public int getFieldFormat(int field) {
+			return 0;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void cancelCopy() {
+			active = false;
+		}
+
+		@Override
+		public long getHandledRowCount() {
+			return 0;
+		}
+	}
+}
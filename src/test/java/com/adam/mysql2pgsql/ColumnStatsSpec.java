@@ -0,0 +1,50 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.Types;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class ColumnStatsSpec {
+
+	@Test
+	public void itShouldParseDecimalsLikeDouble() {
+		for (String text : new String[]{"0", "-0.5", "123.45", "+7", "99999999.99", "-1234567890.123456", "1e3", "12345678901234567890.5"}) {
+			Assert.assertEquals(text, Double.parseDouble(text), ColumnStats.parseDecimal(text), Math.abs(Double.parseDouble(text)) * 1e-15);
+		}
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void itShouldRejectDecimalsWithoutDigits() {
+		ColumnStats.parseDecimal("-.");
+	}
+
+	@Test
+	public void itShouldProfileTheValuesAsWritten() {
+		ColumnStats decimal = new ColumnStats("Price", Types.DECIMAL);
+		decimal.addText("10.50");
+		decimal.addText("-3.25");
+		decimal.addNull();
+		decimal.addText("10.50");
+		Assert.assertEquals("price", decimal.getName());
+		Assert.assertEquals(-3.25, decimal.getMin());
+		Assert.assertEquals(10.5, decimal.getMax());
+		Assert.assertEquals(1, decimal.getNulls());
+		Assert.assertEquals(2, decimal.getDistinct());
+
+		ColumnStats created = new ColumnStats("created", Types.TIMESTAMP);
+		created.addText("2021-03-01 10:00:00");
+		created.addText("2019-12-31 23:59:59");
+		Assert.assertEquals("2019-12-31 23:59:59", created.getMin());
+		Assert.assertEquals("2021-03-01 10:00:00", created.getMax());
+
+		ColumnStats body = new ColumnStats("body", Types.LONGVARCHAR);
+		body.addText("not profiled");
+		body.addNull();
+		Assert.assertFalse(body.isProfiled());
+		Assert.assertEquals(0, body.getNulls());
+	}
+}
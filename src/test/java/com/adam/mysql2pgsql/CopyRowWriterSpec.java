@@ -0,0 +1,117 @@
+package com.adam.mysql2pgsql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import org.junit.Assert;
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+/**
+ *
+ * @author adam
+ */
+public class CopyRowWriterSpec {
+
+	@Test
+	public void itShouldEncodeRowsInCopyTextFormat() throws SQLException {
+		RecordingCopyIn copyIn = new RecordingCopyIn();
+		CopyRowWriter writer = new CopyRowWriter(copyIn, 5, new byte[64]);
+		writer.setLong(1, -1234567890123L);
+		writer.setString(2, "tab\there\\ new\nline");
+		writer.setNull(3, Types.VARCHAR);
+		writer.setBoolean(4, true);
+		writer.setBytes(5, new byte[]{0x00, (byte) 0xff, 0x1a});
+		writer.addRow();
+		writer.setInt(1, 0);
+		writer.setText(2, "12.50", Types.NUMERIC);
+		writer.setNull(3, Types.INTEGER);
+		writer.setBoolean(4, false);
+		writer.setBinaryStream(5, new java.io.ByteArrayInputStream(new byte[]{0x01}), 1);
+		writer.addRow();
+		Assert.assertEquals(2, writer.end());
+		Assert.assertEquals("-1234567890123\ttab\\there\\\\ new\\nline\t\\N\tt\t\\\\x00ff1a\n"
+				+ "0\t12.50\t\\N\tf\t\\\\x01\n", copyIn.getText());
+	}
+
+	@Test
+	public void itShouldEncodeMultiByteCharactersAcrossSegments() throws SQLException {
+		RecordingCopyIn copyIn = new RecordingCopyIn();
+		CopyRowWriter writer = new CopyRowWriter(copyIn, 2, new byte[8]);
+		String text = "åäö €uro 😀 done";
+		writer.setString(1, text);
+		writer.setCharacterStream(2, new StringReader(text), text.length());
+		writer.addRow();
+		writer.end();
+		Assert.assertEquals(text + "\t" + text + "\n", copyIn.getText());
+	}
+
+	@Test(expected = SQLException.class)
+	public void itShouldRejectValuesOutOfColumnOrder() throws SQLException {
+		CopyRowWriter writer = new CopyRowWriter(new RecordingCopyIn(), 2, new byte[64]);
+		writer.setLong(2, 1);
+	}
+
+	private static class RecordingCopyIn implements CopyIn {
+
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private boolean active = true;
+		private long rows;
+
+		String getText() {
+			return new String(data.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void writeToCopy(byte[] buf, int off, int siz) {
+			data.write(buf, off, siz);
+			for (int i = off; i < off + siz; i++) {
+				if (buf[i] == '\n') {
+					rows++;
+				}
+			}
+		}
+
+		@Override
+		public void flushCopy() {
+		}
+
+		@Override
+		public long endCopy() {
+			active = false;
+			return rows;
+		}
+
+		@Override
+		public int getFieldCount() {
+			return 0;
+		}
+
+		@Override
+		public int getFormat() {
+			return 0;
+		}
+
+		@Override
+		public int getFieldFormat(int field) {
+			return 0;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void cancelCopy() {
+			active = false;
+		}
+
+		@Override
+		public long getHandledRowCount() {
+			return rows;
+		}
+	}
+}
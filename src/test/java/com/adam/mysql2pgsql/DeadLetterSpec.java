@@ -0,0 +1,227 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class DeadLetterSpec {
+
+	private static final Set<Long> BAD_IDS = new HashSet<>(Arrays.asList(17L, 500L, 501L, 1000L));
+
+	@Test
+	public void itShouldLoadAllRowsButTheFailingOnes() throws IOException, SQLException {
+		File dir = Files.createTempDirectory("mysql2pgsql_deadletters").toFile();
+		RejectingRowSink sink = new RejectingRowSink();
+		SyntheticTable table = table();
+		DataMigrator dataMigrator = createDataMigrator(table, sink);
+		dataMigrator.setDeadLetters(new DeadLetterFiles(dir));
+		dataMigrator.transferTables(new MigrationPlan(Collections.singletonList(table.plan(4)), 2, 0, 0, false));
+
+		Assert.assertEquals(1000 - BAD_IDS.size(), sink.loaded.size());
+		for (Long id : BAD_IDS) {
+			Assert.assertFalse(sink.loaded.contains(id));
+		}
+		Assert.assertEquals(BAD_IDS.size(), dataMigrator.getDeadLetterRows());
+		Assert.assertEquals(Collections.singleton("t"), dataMigrator.getDeadLetterTables());
+		//The rows were refused before the commit, so there was nothing to delete
+		Assert.assertEquals(0, sink.deletes.get());
+		List<String> lines = Files.readAllLines(new File(dir, "t.tsv").toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals("id\tc2\terror", lines.get(0));
+		Set<Long> deadIds = new TreeSet<>();
+		for (String line : lines.subList(1, lines.size())) {
+			Assert.assertTrue(line, line.endsWith("\tinvalid byte sequence"));
+			deadIds.add(Long.parseLong(line.substring(0, line.indexOf('\t'))));
+		}
+		Assert.assertEquals(new TreeSet<>(BAD_IDS), deadIds);
+	}
+
+	@Test(expected = SQLException.class)
+	public void itShouldFailTheChunkWithoutDeadLetterFiles() throws IOException, SQLException {
+		SyntheticTable table = table();
+		DataMigrator dataMigrator = createDataMigrator(table, new RejectingRowSink());
+		dataMigrator.setChunkRetries(0);
+		dataMigrator.transferTables(new MigrationPlan(Collections.singletonList(table.plan(4)), 2, 0, 0, false));
+	}
+
+	@Test
+	public void itShouldFailTheChunkOfACompositePk() throws IOException, SQLException {
+		File dir = Files.createTempDirectory("mysql2pgsql_deadletters").toFile();
+		RejectingRowSink sink = new RejectingRowSink();
+		SyntheticTable table = table();
+		DataMigrator dataMigrator = createDataMigrator(table, sink);
+		dataMigrator.setDeadLetters(new DeadLetterFiles(dir));
+		dataMigrator.setChunkRetries(0);
+		try {
+			dataMigrator.transferTables(new MigrationPlan(Collections.singletonList(table.plan(4, false)), 2, 0, 0, false));
+			Assert.fail("A single value of the first pk column can be any number of rows, the chunk should fail");
+		} catch (SQLException e) {
+			Assert.assertEquals("22021", e.getSQLState());
+		}
+		Assert.assertEquals(0, dataMigrator.getDeadLetterRows());
+		Assert.assertFalse(new File(dir, "t.tsv").exists());
+	}
+
+	/**
+	 * Ids 1 to 1000
+	 */
+	private static SyntheticTable table() {
+		return new SyntheticTable("t", 1000, 1).addColumn(Types.VARCHAR, 16, 0.1);
+	}
+
+	private static DataMigrator createDataMigrator(SyntheticTable table, RowSink sink) throws IOException {
+		File metricsFile = File.createTempFile("mysql2pgsql_metrics", ".properties");
+		metricsFile.deleteOnExit();
+		DataMigrator dataMigrator = new DataMigrator(new SyntheticRowSource(table), sink, ZeroDatePolicy.EPOCH, new RunMetrics(metricsFile), new SourceGovernor(0, 0, 2));
+		dataMigrator.setListener(new SilentListener());
+		return dataMigrator;
+	}
+
+	/**
+	 * Keeps the ids of the committed rows, and fails any chunk with one of the bad ids when it's finished, as pgsql
+	 * would fail the end of a COPY on invalid text
+	 */
+	private static class RejectingRowSink implements RowSink {
+
+		final Set<Long> loaded = Collections.synchronizedSet(new HashSet<Long>());
+		final AtomicInteger deletes = new AtomicInteger();
+
+		@Override
+		public RowSink.Session open() {
+			return new RowSink.Session() {
+
+				private final List<Long> pending = new ArrayList<>();
+
+				@Override
+				public RowWriter write(String tableName, TableChunk chunk, List<String> columnNames) {
+					pending.clear();
+					return new IdRowWriter(pending);
+				}
+
+				@Override
+				public void setFence(CommitFence fence) throws SQLException {
+					if (fence != null) {
+						throw new SQLException("Nothing to check a fence in");
+					}
+				}
+
+				@Override
+				public void finish() throws SQLException {
+					for (Long id : pending) {
+						if (BAD_IDS.contains(id)) {
+							throw new SQLException("invalid byte sequence", "22021");
+						}
+					}
+				}
+
+				@Override
+				public void commit() {
+					loaded.addAll(pending);
+					pending.clear();
+				}
+
+				@Override
+				public void rollback() {
+					pending.clear();
+				}
+
+				@Override
+				public void delete(String tableName, TableChunk chunk) {
+					deletes.incrementAndGet();
+					for (long id = chunk.getRange().getMin(); id <= chunk.getRange().getMax(); id++) {
+						loaded.remove(id);
+					}
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * Keeps the id, the first column, of each row
+	 */
+	private static class IdRowWriter implements RowWriter {
+
+		private final List<Long> ids;
+
+		IdRowWriter(List<Long> ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public void setNull(int position, int sqlType) {
+		}
+
+		@Override
+		public void setString(int position, String value) {
+		}
+
+		@Override
+		public void setText(int position, String value, int sqlType) {
+		}
+
+		@Override
+		public void setLong(int position, long value) {
+			if (position == 1) {
+				ids.add(value);
+			}
+		}
+
+		@Override
+		public void setInt(int position, int value) {
+		}
+
+		@Override
+		public void setDouble(int position, double value) {
+		}
+
+		@Override
+		public void setBoolean(int position, boolean value) {
+		}
+
+		@Override
+		public void setBytes(int position, byte[] value) {
+		}
+
+		@Override
+		public void setBinaryStream(int position, InputStream value, int length) {
+		}
+
+		@Override
+		public void setCharacterStream(int position, Reader value, int length) {
+		}
+
+		@Override
+		public void addRow() {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
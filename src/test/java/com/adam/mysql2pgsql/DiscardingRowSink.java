@@ -0,0 +1,170 @@
+package com.adam.mysql2pgsql;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Encodes the rows like {@link PgsqlRowSink} does with COPY, then throws them away instead of sending them, counting
+ * the rows and bytes. It also measures the bytes allocated by the workers while they transfer a chunk, from the
+ * start of its load to its commit.
+ * @author adam
+ */
+class DiscardingRowSink implements RowSink {
+
+	private final SegmentPool segments = new SegmentPool(64 * 1024);
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private volatile boolean allocationMeasured = true;
+
+	long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * @return the number of bytes the rows were encoded into
+	 */
+	long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the bytes allocated by the workers while transferring chunks, or -1 if the JVM can't measure it
+	 */
+	long getAllocatedBytes() {
+		return allocationMeasured ? allocatedBytes.get() : -1;
+	}
+
+	private long currentThreadAllocatedBytes() {
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			//-1 on virtual threads and where measuring allocations is unsupported
+			long allocated = ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+			if (allocated >= 0) {
+				return allocated;
+			}
+		}
+		allocationMeasured = false;
+		return 0;
+	}
+
+	@Override
+	public RowSink.Session open() {
+		return new Session();
+	}
+
+	private class Session implements RowSink.Session {
+
+		private final byte[] segment = segments.acquire();
+		private final DiscardingCopyIn copyIn = new DiscardingCopyIn();
+		private final ColumnBatch batch = new ColumnBatch(ColumnBatch.DEFAULT_CAPACITY);
+		private CopyRowWriter writer;
+		private long startAllocated;
+
+		@Override
+		public RowWriter write(String tableName, TableChunk chunk, List<String> columnNames) {
+			startAllocated = currentThreadAllocatedBytes();
+			copyIn.reset();
+			writer = new CopyRowWriter(copyIn, columnNames.size(), segment);
+			batch.reset(writer, columnNames.size());
+			return batch;
+		}
+
+		@Override
+		public void setFence(CommitFence fence) throws SQLException {
+			if (fence != null) {
+				throw new SQLException("Nothing to check a fence in");
+			}
+		}
+
+		@Override
+		public void finish() throws SQLException {
+			batch.flush();
+			rows.addAndGet(writer.end());
+		}
+
+		@Override
+		public void commit() {
+			bytes.addAndGet(copyIn.bytes);
+			allocatedBytes.addAndGet(currentThreadAllocatedBytes() - startAllocated);
+		}
+
+		@Override
+		public void rollback() {
+		}
+
+		@Override
+		public void delete(String tableName, TableChunk chunk) {
+		}
+
+		@Override
+		public void close() {
+			segments.release(segment);
+		}
+	}
+
+	private static class DiscardingCopyIn implements CopyIn {
+
+		private boolean active;
+		private long rows;
+		private long bytes;
+
+		void reset() {
+			active = true;
+			rows = 0;
+			bytes = 0;
+		}
+
+		@Override
+		public void writeToCopy(byte[] buf, int off, int siz) {
+			bytes += siz;
+			for (int i = off; i < off + siz; i++) {
+				if (buf[i] == '\n') {
+					rows++;
+				}
+			}
+		}
+
+		@Override
+		public void flushCopy() {
+		}
+
+		@Override
+		public long endCopy() {
+			active = false;
+			return rows;
+		}
+
+		@Override
+		public int getFieldCount() {
+			return 0;
+		}
+
+		@Override
+		public int getFormat() {
+			return 0;
+		}
+
+		@Override
+		public int getFieldFormat(int field) {
+			return 0;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public void cancelCopy() {
+			active = false;
+		}
+
+		@Override
+		public long getHandledRowCount() {
+			return rows;
+		}
+	}
+}
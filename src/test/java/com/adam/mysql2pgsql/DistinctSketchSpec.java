@@ -0,0 +1,42 @@
+package com.adam.mysql2pgsql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class DistinctSketchSpec {
+
+	@Test
+	public void itShouldEstimateDistinctValues() {
+		DistinctSketch sketch = new DistinctSketch();
+		for (long i = 0; i < 100000; i++) {
+			sketch.add(DistinctSketch.hash(i % 50000));
+		}
+		Assert.assertEquals(50000, sketch.estimate(), 50000 * 0.06);
+	}
+
+	@Test
+	public void itShouldCountSmallSetsAlmostExactly() {
+		DistinctSketch sketch = new DistinctSketch();
+		for (long i = 0; i < 100; i++) {
+			sketch.add(DistinctSketch.hash(i));
+		}
+		Assert.assertEquals(100, sketch.estimate(), 3);
+	}
+
+	@Test
+	public void itShouldMergeLikeOneSketch() {
+		DistinctSketch a = new DistinctSketch();
+		DistinctSketch b = new DistinctSketch();
+		DistinctSketch all = new DistinctSketch();
+		for (long i = 0; i < 20000; i++) {
+			(i < 12000 ? a : b).add(DistinctSketch.hash(i));
+			all.add(DistinctSketch.hash(i));
+		}
+		a.merge(b);
+		Assert.assertEquals(all.estimate(), a.estimate());
+	}
+}
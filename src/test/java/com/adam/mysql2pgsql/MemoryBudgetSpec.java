@@ -0,0 +1,69 @@
+package com.adam.mysql2pgsql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class MemoryBudgetSpec {
+
+	@Test
+	public void itShouldNotReserveBeyondTheBudget() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(1000);
+		budget.reserve(600);
+		Assert.assertFalse(budget.tryReserve(500));
+		Assert.assertTrue(budget.tryReserve(400));
+		budget.release(1000);
+		Assert.assertEquals(0, budget.getInUse());
+		Assert.assertEquals(1000, budget.getPeak());
+	}
+
+	@Test
+	public void itShouldGrantAnOversizedReservationWhenNothingElseIsReserved() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(1000);
+		Assert.assertTrue(budget.tryReserve(10));
+		Assert.assertFalse(budget.tryReserve(5000));
+		budget.release(10);
+		budget.reserve(5000);
+		Assert.assertEquals(5000, budget.getInUse());
+	}
+
+	@Test
+	public void itShouldBlockUntilMemoryIsReleased() throws InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(1000);
+		budget.reserve(800);
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					budget.reserve(500);
+				} catch (InterruptedException ex) {
+				}
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		Assert.assertTrue(waiter.isAlive());
+		budget.release(800);
+		waiter.join(5000);
+		Assert.assertFalse(waiter.isAlive());
+		Assert.assertEquals(500, budget.getInUse());
+		Assert.assertEquals(1, budget.getWaits());
+	}
+
+	@Test
+	public void itShouldGoOverTheBudgetAfterTheLongestWait() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(1000);
+		budget.reserve(800);
+		long startTime = System.nanoTime();
+		Assert.assertFalse(budget.reserve(500, 100));
+		Assert.assertTrue(System.nanoTime() - startTime >= 100_000_000);
+		Assert.assertEquals(1300, budget.getInUse());
+		Assert.assertEquals(1, budget.getOverruns());
+		budget.release(1300);
+		Assert.assertTrue(budget.reserve(500, 100));
+		Assert.assertEquals(1, budget.getOverruns());
+	}
+}
@@ -0,0 +1,28 @@
+package com.adam.mysql2pgsql;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class NumericColumnRangeSpec {
+
+	@Test
+	public void itShouldSplitIntoCoveringChunks() {
+		List<NumericColumnRange> chunks = new NumericColumnRange("id", 1, 100).split(4);
+		Assert.assertEquals(4, chunks.size());
+		Assert.assertEquals(1, chunks.get(0).getMin());
+		Assert.assertEquals(26, chunks.get(0).getMax());
+		Assert.assertEquals(27, chunks.get(1).getMin());
+		Assert.assertEquals(100, chunks.get(3).getMax());
+	}
+
+	@Test
+	public void itShouldNotOverflowAtTheEndOfTheRange() {
+		List<NumericColumnRange> chunks = new NumericColumnRange("id", Long.MAX_VALUE - 10, Long.MAX_VALUE).split(3);
+		Assert.assertEquals(Long.MAX_VALUE, chunks.get(chunks.size() - 1).getMax());
+	}
+}
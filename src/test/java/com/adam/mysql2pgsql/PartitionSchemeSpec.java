@@ -0,0 +1,46 @@
+package com.adam.mysql2pgsql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class PartitionSchemeSpec {
+
+	@Test
+	public void itShouldMapMonthlyToDaysPartitionsToDateRanges() {
+		PartitionScheme scheme = PartitionScheme.parse(" /*!50100 PARTITION BY RANGE (to_days(`created`))"
+				+ " (PARTITION p202401 VALUES LESS THAN (739282) ENGINE = InnoDB"
+				+ " PARTITION p202402 VALUES LESS THAN (739313) ENGINE = InnoDB"
+				+ " PARTITION pmax VALUES LESS THAN MAXVALUE ENGINE = InnoDB) */;");
+		Assert.assertEquals(" PARTITION BY RANGE (\"created\")", scheme.generatePartitionByClause());
+		Assert.assertEquals(""
+				+ "CREATE TABLE \"s\".\"events_p202401\" PARTITION OF \"s\".\"events\" FOR VALUES FROM (MINVALUE) TO ('2024-02-01');\n"
+				+ "CREATE TABLE \"s\".\"events_p202402\" PARTITION OF \"s\".\"events\" FOR VALUES FROM ('2024-02-01') TO ('2024-03-03');\n"
+				+ "CREATE TABLE \"s\".\"events_pmax\" PARTITION OF \"s\".\"events\" FOR VALUES FROM ('2024-03-03') TO (MAXVALUE);\n",
+				scheme.generateCreatePartitionStatements("s", "events"));
+	}
+
+	@Test
+	public void itShouldMapListColumnsPartitions() {
+		PartitionScheme scheme = PartitionScheme.parse(" /*!50500 PARTITION BY LIST  COLUMNS(region)"
+				+ " (PARTITION p_eu VALUES IN ('se','de') ENGINE = InnoDB"
+				+ " PARTITION p_us VALUES IN ('us') ENGINE = InnoDB) */;");
+		Assert.assertEquals(" PARTITION BY LIST (\"region\")", scheme.generatePartitionByClause());
+		Assert.assertEquals(""
+				+ "CREATE TABLE \"s\".\"t_p_eu\" PARTITION OF \"s\".\"t\" FOR VALUES IN ('se','de');\n"
+				+ "CREATE TABLE \"s\".\"t_p_us\" PARTITION OF \"s\".\"t\" FOR VALUES IN ('us');\n",
+				scheme.generateCreatePartitionStatements("s", "t"));
+	}
+
+	@Test
+	public void itShouldNotMapHashPartitions() {
+		Assert.assertNull(PartitionScheme.parse(" /*!50100 PARTITION BY HASH (`id`) PARTITIONS 8 */;"));
+		Assert.assertFalse(PartitionScheme.isSupported("HASH", "`id`"));
+		Assert.assertFalse(PartitionScheme.isSupported("RANGE", "`id` DIV 1000"));
+		Assert.assertTrue(PartitionScheme.isSupported("RANGE", "to_days(`created`)"));
+		Assert.assertTrue(PartitionScheme.isSupported("RANGE COLUMNS", "`created`"));
+	}
+}
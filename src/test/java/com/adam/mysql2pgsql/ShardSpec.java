@@ -0,0 +1,82 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class ShardSpec {
+
+	@Test
+	public void itShouldParseShardsInListOrder() {
+		List<Shard> shards = Shard.parse("db1/shop_01, db2:3307/shop_02");
+		Assert.assertEquals(2, shards.size());
+		Assert.assertEquals(1, shards.get(0).getId());
+		Assert.assertEquals("jdbc:mysql://db1:3306/", shards.get(0).getMysqlUrl(3306));
+		Assert.assertEquals(2, shards.get(1).getId());
+		Assert.assertEquals("jdbc:mysql://db2:3307/", shards.get(1).getMysqlUrl(3306));
+		Assert.assertEquals("shop_02", shards.get(1).getSchema());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectShardsWithoutSchema() {
+		Shard.parse("db1/shop_01,db2");
+	}
+
+	@Test
+	public void itShouldTakeTheTablesOfTheShardsInTurns() {
+		Shard shard1 = new Shard(1, "db1", 0, "shop_01");
+		Shard shard2 = new Shard(2, "db2", 0, "shop_02");
+		MigrationPlan plan1 = new MigrationPlan(Arrays.asList(table("a", 300, shard1), table("b", 200, shard1), table("c", 100, shard1)), 2, 0, 10, true);
+		MigrationPlan plan2 = new MigrationPlan(Arrays.asList(table("a", 50, shard2), table("b", 400, shard2)), 2, 0, 20, true);
+
+		MigrationPlan plan = MigrationPlanner.combine(Arrays.asList(plan1, plan2), 2);
+
+		List<String> order = new ArrayList<>();
+		for (TablePlan table : plan.getTables()) {
+			order.add(table.getTableName() + table.getChunks().get(0).getShard().getId());
+		}
+		Assert.assertEquals(Arrays.asList("a1", "a2", "b2", "b1", "c1"), order);
+		Assert.assertEquals(30, plan.getEstIndexMillis());
+		Assert.assertTrue(plan.getEstTransferMillis() > 0);
+	}
+
+	@Test
+	public void itShouldAddTheShardIdToEveryRow() throws SQLException {
+		SyntheticTable table = new SyntheticTable("t", 10, 1).addColumn(Types.VARCHAR, 16, 1.0);
+		Shard shard1 = new Shard(1, "db1", 0, "shop_01");
+		Shard shard2 = new Shard(2, "db2", 0, "shop_02");
+		ShardedRowSource source = new ShardedRowSource("shard_id");
+		source.addShard(shard1, new SyntheticRowSource(table));
+		source.addShard(shard2, new SyntheticRowSource(table));
+		try (RowSource.Session session = source.open();
+				RowReader rows = session.read("t", new TableChunk(null, null, 0, shard2))) {
+			Assert.assertEquals(3, rows.getColumnCount());
+			Assert.assertEquals("shard_id", rows.getColumnName(3));
+			Assert.assertEquals(Types.INTEGER, rows.getColumnType(3));
+			int count = 0;
+			while (rows.next()) {
+				Assert.assertNull(rows.getString(2));
+				Assert.assertTrue(rows.wasNull());
+				Assert.assertEquals(2, rows.getInt(3));
+				Assert.assertFalse(rows.wasNull());
+				count++;
+			}
+			Assert.assertEquals(10, count);
+			session.endRead(0, null);
+		}
+	}
+
+	private static TablePlan table(String name, long transferMillis, Shard shard) {
+		TableStats stats = new TableStats(name, 1000, 100, 100_000, 0, 1, null);
+		return new TablePlan(stats, Collections.singletonList(new TableChunk(null, null, stats.getDataLength(), shard)), transferMillis, 0);
+	}
+}
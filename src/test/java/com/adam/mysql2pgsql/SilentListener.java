@@ -0,0 +1,20 @@
+package com.adam.mysql2pgsql;
+
+/**
+ * Ignores the progress of a migration, for specs that only look at the outcome
+ * @author adam
+ */
+class SilentListener implements MigrationListener {
+
+	@Override
+	public void message(String message) {
+	}
+
+	@Override
+	public void chunkTransferred(String tableName, TableChunk chunk, long rows, long millis) {
+	}
+
+	@Override
+	public void tableTransferred(String tableName, int tablesDone, int tables) {
+	}
+}
@@ -0,0 +1,42 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the rows of synthetic tables, in place of mysql
+ * @author adam
+ */
+class SyntheticRowSource implements RowSource {
+
+	private final Map<String, SyntheticTable> tables = new HashMap<>();
+
+	SyntheticRowSource(SyntheticTable... tables) {
+		for (SyntheticTable table : tables) {
+			this.tables.put(table.getName(), table);
+		}
+	}
+
+	@Override
+	public RowSource.Session open() {
+		return new RowSource.Session() {
+			@Override
+			public RowReader read(String tableName, TableChunk chunk) throws SQLException {
+				SyntheticTable table = tables.get(tableName);
+				if (table == null) {
+					throw new SQLException("No synthetic table " + tableName);
+				}
+				return table.read(chunk);
+			}
+
+			@Override
+			public void endRead(long bytes, SQLException failure) {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,284 @@
+package com.adam.mysql2pgsql;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A generated table, its rows computed from the row number and a seed, so nothing is held in memory and every run
+ * sees the same data. The first column is a BIGINT pk, 1 * pkGap, 2 * pkGap and so on, which are added columns of
+ * the given types, widths and NULL ratios. Text and binary values are picked from a small pool generated up front, so
+ * reading a row allocates next to nothing and what's measured is the engine.
+ * @author adam
+ */
+class SyntheticTable {
+
+	private static final int POOL_SIZE = 256;
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 åäöüé€";
+
+	private final String name;
+	private final long rows;
+	private final long seed;
+	private final List<Column> columns = new ArrayList<>();
+	private long pkGap = 1;
+
+	/**
+	 * @param name
+	 * @param rows the number of rows
+	 * @param seed
+	 */
+	SyntheticTable(String name, long rows, long seed) {
+		this.name = name;
+		this.rows = rows;
+		this.seed = seed;
+		columns.add(new Column("id", Types.BIGINT, 8, 0, seed));
+	}
+
+	/**
+	 * @param type one of {@link Types}: BIGINT, INTEGER, DOUBLE, DECIMAL, BIT, TIMESTAMP, VARCHAR, LONGVARCHAR or
+	 * LONGVARBINARY
+	 * @param width the max length of text values, or the length of large values
+	 * @param nullRatio the share of rows where the value is NULL
+	 */
+	SyntheticTable addColumn(int type, int width, double nullRatio) {
+		columns.add(new Column("c" + (columns.size() + 1), type, width, nullRatio, seed + columns.size()));
+		return this;
+	}
+
+	/**
+	 * @param pkGap the distance between consecutive pk values, a sparse pk makes chunks of a pk range uneven
+	 */
+	SyntheticTable setPkGap(long pkGap) {
+		this.pkGap = pkGap;
+		return this;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the average length of a row, as mysql would report it
+	 */
+	long getAvgRowLength() {
+		long length = 0;
+		for (Column column : columns) {
+			length += (long) (column.width * (1 - column.nullRatio));
+		}
+		return length;
+	}
+
+	/**
+	 * @param chunks the number of pk ranges to split the table into
+	 */
+	TablePlan plan(int chunks) {
+		return plan(chunks, true);
+	}
+
+	/**
+	 * @param chunks the number of pk ranges to split the table into
+	 * @param uniquePk false to plan the ids as the first column of a composite pk
+	 */
+	TablePlan plan(int chunks, boolean uniquePk) {
+		NumericColumnRange pkRange = new NumericColumnRange("id", pkGap, rows * pkGap, uniquePk);
+		TableStats stats = new TableStats(name, rows, getAvgRowLength(), rows * getAvgRowLength(), 0, 0, pkRange);
+		List<TableChunk> tableChunks = new ArrayList<>();
+		for (NumericColumnRange range : pkRange.split(chunks)) {
+			tableChunks.add(new TableChunk(null, range, stats.getDataLength() / chunks));
+		}
+		return new TablePlan(stats, tableChunks, 0, 0);
+	}
+
+	/**
+	 * @param chunk the pk range to read, or all rows
+	 */
+	RowReader read(TableChunk chunk) {
+		long first = 0;
+		long last = rows - 1;
+		NumericColumnRange range = chunk.getRange();
+		if (range != null) {
+			first = Math.max(first, (range.getMin() + pkGap - 1) / pkGap - 1);
+			last = Math.min(last, range.getMax() / pkGap - 1);
+		}
+		return new Rows(first, last);
+	}
+
+	/**
+	 * A cheap, well mixed hash of a row and column (splitmix64)
+	 */
+	private static long mix(long row, long columnSeed) {
+		long z = row * 0x9E3779B97F4A7C15L + columnSeed;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static class Column {
+
+		final String name;
+		final int type;
+		final int width;
+		final double nullRatio;
+		final long seed;
+		final long nullBelow;
+		final String[] texts;
+		final byte[][] binaries;
+
+		Column(String name, int type, int width, double nullRatio, long seed) {
+			this.name = name;
+			this.type = type;
+			this.width = width;
+			this.nullRatio = nullRatio;
+			this.seed = seed;
+			this.nullBelow = (long) (nullRatio * (1L << 20));
+			this.texts = new String[POOL_SIZE];
+			this.binaries = new byte[POOL_SIZE][];
+			for (int i = 0; i < POOL_SIZE; i++) {
+				long h = mix(i, seed);
+				switch (type) {
+					case Types.DECIMAL:
+						texts[i] = (h % 1_000_000_000L) / 100 + "." + String.format("%02d", Math.abs(h % 100));
+						break;
+					case Types.TIMESTAMP:
+						texts[i] = String.format("20%02d-%02d-%02d %02d:%02d:%02d", Math.abs(h % 30), 1 + Math.abs(h % 12), 1 + Math.abs(h % 28),
+								Math.abs(h % 24), Math.abs(h % 60), Math.abs(h % 59));
+						break;
+					case Types.VARCHAR:
+						texts[i] = text(h, 1 + (int) Math.abs(h % width));
+						break;
+					case Types.LONGVARCHAR:
+						texts[i] = text(h, width);
+						break;
+					case Types.LONGVARBINARY:
+						binaries[i] = new byte[width];
+						for (int b = 0; b < width; b++) {
+							binaries[i][b] = (byte) mix(b, h);
+						}
+						break;
+					default:
+				}
+			}
+		}
+
+		private static String text(long h, int length) {
+			StringBuilder sb = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				sb.append(ALPHABET.charAt((int) Math.abs(mix(i, h) % ALPHABET.length())));
+			}
+			return sb.toString();
+		}
+	}
+
+	private class Rows implements RowReader {
+
+		private final long last;
+		private long row;
+		private boolean wasNull;
+
+		Rows(long first, long last) {
+			this.row = first - 1;
+			this.last = last;
+		}
+
+		@Override
+		public int getColumnCount() {
+			return columns.size();
+		}
+
+		@Override
+		public String getColumnName(int position) {
+			return columns.get(position - 1).name;
+		}
+
+		@Override
+		public int getColumnType(int position) {
+			return columns.get(position - 1).type;
+		}
+
+		@Override
+		public String getColumnTypeName(int position) {
+			return Integer.toString(getColumnType(position));
+		}
+
+		@Override
+		public boolean next() {
+			return ++row <= last;
+		}
+
+		@Override
+		public boolean wasNull() {
+			return wasNull;
+		}
+
+		/**
+		 * @return the hash of the value of the current row, or 0 with wasNull set if the value is NULL
+		 */
+		private long value(int position) {
+			Column column = columns.get(position - 1);
+			long h = mix(row, column.seed);
+			wasNull = (h & ((1L << 20) - 1)) < column.nullBelow;
+			return wasNull ? 0 : h;
+		}
+
+		@Override
+		public String getString(int position) {
+			long h = value(position);
+			return wasNull ? null : columns.get(position - 1).texts[(int) ((h >>> 20) % POOL_SIZE)];
+		}
+
+		@Override
+		public long getLong(int position) {
+			if (position == 1) {
+				wasNull = false;
+				return (row + 1) * pkGap;
+			}
+			return value(position) >> 20;
+		}
+
+		@Override
+		public int getInt(int position) {
+			return (int) (value(position) >> 32);
+		}
+
+		@Override
+		public double getDouble(int position) {
+			return (value(position) >> 20) / 1000.0;
+		}
+
+		@Override
+		public boolean getBoolean(int position) {
+			return (value(position) & (1L << 40)) != 0;
+		}
+
+		@Override
+		public byte[] getBytes(int position) {
+			long h = value(position);
+			return wasNull ? null : columns.get(position - 1).binaries[(int) ((h >>> 20) % POOL_SIZE)];
+		}
+
+		@Override
+		public InputStream getBinaryStream(int position) {
+			byte[] value = getBytes(position);
+			return value != null ? new ByteArrayInputStream(value) : null;
+		}
+
+		@Override
+		public Reader getCharacterStream(int position) {
+			String value = getString(position);
+			return value != null ? new StringReader(value) : null;
+		}
+
+		@Override
+		public void close() throws SQLException {
+		}
+	}
+}
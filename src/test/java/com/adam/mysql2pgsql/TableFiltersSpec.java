@@ -0,0 +1,41 @@
+package com.adam.mysql2pgsql;
+
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class TableFiltersSpec {
+
+	@Test
+	public void itShouldIncludeOnlyListedColumns() {
+		Properties properties = new Properties();
+		properties.setProperty("Events.columns", "id, Created_At");
+		properties.setProperty("users.excludeColumns", "old_password");
+		TableFilters filters = new TableFilters(properties);
+		Assert.assertTrue(filters.isColumnIncluded("events", "created_at"));
+		Assert.assertFalse(filters.isColumnIncluded("events", "payload"));
+		Assert.assertFalse(filters.isColumnIncluded("users", "OLD_PASSWORD"));
+		Assert.assertTrue(filters.isColumnIncluded("users", "name"));
+		Assert.assertTrue(filters.isColumnIncluded("other", "anything"));
+	}
+
+	@Test
+	public void itShouldKeepWhereClausesPerTable() {
+		Properties properties = new Properties();
+		properties.setProperty("events.where", " created_at >= '2024-01-01' ");
+		TableFilters filters = new TableFilters(properties);
+		Assert.assertEquals("created_at >= '2024-01-01'", filters.getWhere("EVENTS"));
+		Assert.assertNull(filters.getWhere("users"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itShouldRejectUnknownFilters() {
+		Properties properties = new Properties();
+		properties.setProperty("events.limit", "10");
+		new TableFilters(properties);
+	}
+}
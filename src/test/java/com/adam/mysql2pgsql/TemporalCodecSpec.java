@@ -0,0 +1,22 @@
+package com.adam.mysql2pgsql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class TemporalCodecSpec {
+
+	@Test
+	public void itShouldDetectZeroDates() {
+		Assert.assertTrue(TemporalCodec.isZeroDate("0000-00-00"));
+		Assert.assertTrue(TemporalCodec.isZeroDate("0000-00-00 00:00:00"));
+		Assert.assertTrue(TemporalCodec.isZeroDate("2012-05-00 10:11:12"));
+		Assert.assertTrue(TemporalCodec.isZeroDate("2012-00-14"));
+		Assert.assertFalse(TemporalCodec.isZeroDate("2012-05-14 00:00:00"));
+		Assert.assertFalse(TemporalCodec.isZeroDate("0000-01-01"));
+		Assert.assertFalse(TemporalCodec.isZeroDate("00:00:00"));
+	}
+}
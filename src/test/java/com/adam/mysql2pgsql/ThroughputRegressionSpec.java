@@ -0,0 +1,258 @@
+package com.adam.mysql2pgsql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the transfer engine end to end over synthetic tables, from a generated source through the column codecs,
+ * statistics, memory budget and COPY encoding into a sink that discards the rows. Fails if the rate drops, or bytes
+ * allocated per row grow, past a tolerance against the baseline in src/test/resources/throughput-baseline.properties.
+ * <p>
+ * Rows/s depend on the machine, so the rate is taken relative to just reading the same rows from the source with the
+ * same parallelism, measured in the same run. A slower or busier machine slows both down, a slower engine only the
+ * transfer. Record a new baseline after an intended change with -Dmysql2pgsql.updateBaseline=true, e.g.
+ * mvn test -Dtest=ThroughputRegressionSpec -Dmysql2pgsql.updateBaseline=true
+ * <p>
+ * The rate of large objects is dominated by spooling them to temp files, which depends on the disk and the page cache
+ * far more than on the engine, so only their allocations are checked.
+ * @author adam
+ */
+public class ThroughputRegressionSpec {
+
+	private static final File BASELINE_FILE = new File("src/test/resources/throughput-baseline.properties");
+	private static final int PARALLELISM = 4;
+	private static final int MEASURED_RUNS = 3;
+	/**
+	 * The share the relative rate may drop below the baseline
+	 */
+	private static final double RATE_TOLERANCE = Double.parseDouble(System.getProperty("mysql2pgsql.rateTolerance", "0.3"));
+	/**
+	 * The share allocated bytes per row may grow above the baseline, allocations vary much less than rates
+	 */
+	private static final double ALLOCATION_TOLERANCE = 0.2;
+	/**
+	 * The least time the rows are read for, reading them once can take too little time to measure
+	 */
+	private static final long MIN_READ_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	@Test
+	public void itShouldKeepTheRateOfNarrowNumericTables() throws Exception {
+		SyntheticTable table = new SyntheticTable("narrow", 1_000_000, 1)
+				.addColumn(Types.INTEGER, 4, 0)
+				.addColumn(Types.BIGINT, 8, 0.1)
+				.addColumn(Types.DOUBLE, 8, 0)
+				.addColumn(Types.BIT, 1, 0)
+				.addColumn(Types.TIMESTAMP, 8, 0.05);
+		assertThroughput("narrow", 16, true, table);
+	}
+
+	@Test
+	public void itShouldKeepTheRateOfWideMixedTables() throws Exception {
+		SyntheticTable table = new SyntheticTable("wide", 200_000, 2);
+		for (int i = 0; i < 4; i++) {
+			table.addColumn(Types.VARCHAR, 40, 0.2)
+					.addColumn(Types.VARCHAR, 255, 0.5)
+					.addColumn(Types.DECIMAL, 8, 0.1)
+					.addColumn(Types.INTEGER, 4, 0.3)
+					.addColumn(Types.TIMESTAMP, 8, 0.2);
+		}
+		assertThroughput("wide", 16, true, table);
+	}
+
+	@Test
+	public void itShouldKeepTheAllocationsOfLargeObjects() throws Exception {
+		SyntheticTable table = new SyntheticTable("lobs", 20_000, 3)
+				.addColumn(Types.VARCHAR, 64, 0)
+				.addColumn(Types.LONGVARBINARY, 16 * 1024, 0.3)
+				.addColumn(Types.LONGVARCHAR, 4 * 1024, 0.3);
+		assertThroughput("lobs", 8, false, table);
+	}
+
+	@Test
+	public void itShouldKeepTheRateOfSparseUnevenChunks() throws Exception {
+		SyntheticTable sparse = new SyntheticTable("sparse", 500_000, 4)
+				.setPkGap(97)
+				.addColumn(Types.VARCHAR, 32, 0.1)
+				.addColumn(Types.BIGINT, 8, 0);
+		SyntheticTable small = new SyntheticTable("small", 50_000, 5)
+				.addColumn(Types.VARCHAR, 16, 0);
+		assertThroughput("sparse", 32, true, sparse, small);
+	}
+
+	/**
+	 * @param rated false to check only the bytes allocated per row, for a scenario whose rate varies too much to check
+	 */
+	private void assertThroughput(String scenario, int chunks, boolean rated, SyntheticTable... tables) throws IOException, SQLException {
+		long expectedRows = 0;
+		for (SyntheticTable table : tables) {
+			expectedRows += table.getRows();
+		}
+		//The first run warms up the JIT, the best of the others is compared, as a run can only be slowed down by noise
+		read(chunks, tables);
+		transfer(chunks, tables, new DiscardingRowSink());
+		double readRowsPerSecond = 0;
+		double rowsPerSecond = 0;
+		double bytesPerRow = -1;
+		for (int run = 0; run < MEASURED_RUNS; run++) {
+			long startTime = System.nanoTime();
+			long readRows = 0;
+			long readNanos;
+			do {
+				read(chunks, tables);
+				readRows += expectedRows;
+				readNanos = System.nanoTime() - startTime;
+			} while (readNanos < MIN_READ_NANOS);
+			readRowsPerSecond = Math.max(readRowsPerSecond, readRows * 1e9 / readNanos);
+
+			DiscardingRowSink sink = new DiscardingRowSink();
+			startTime = System.nanoTime();
+			transfer(chunks, tables, sink);
+			long nanos = System.nanoTime() - startTime;
+			Assert.assertEquals(expectedRows, sink.getRows());
+			rowsPerSecond = Math.max(rowsPerSecond, sink.getRows() * 1e9 / nanos);
+			if (sink.getAllocatedBytes() >= 0) {
+				double runBytesPerRow = (double) sink.getAllocatedBytes() / sink.getRows();
+				bytesPerRow = bytesPerRow < 0 ? runBytesPerRow : Math.min(bytesPerRow, runBytesPerRow);
+			}
+		}
+		double relativeRate = rowsPerSecond / readRowsPerSecond;
+
+		Properties baseline = loadBaseline();
+		if (Boolean.getBoolean("mysql2pgsql.updateBaseline")) {
+			if (rated) {
+				baseline.setProperty(scenario + ".relativeRate", String.format("%.4g", relativeRate));
+			} else {
+				baseline.remove(scenario + ".relativeRate");
+			}
+			baseline.setProperty(scenario + ".bytesPerRow", String.format("%.1f", bytesPerRow));
+			storeBaseline(baseline);
+			return;
+		}
+		String baselineRate = baseline.getProperty(scenario + ".relativeRate");
+		if (rated && baselineRate != null) {
+			double minRate = Double.parseDouble(baselineRate) * (1 - RATE_TOLERANCE);
+			Assert.assertTrue(String.format("%s: %.0f rows/s, %.4g of the %.0f rows/s read, below the %.4g allowed by the baseline",
+					scenario, rowsPerSecond, relativeRate, readRowsPerSecond, minRate), relativeRate >= minRate);
+		}
+		String baselineBytes = baseline.getProperty(scenario + ".bytesPerRow");
+		if (baselineBytes != null && bytesPerRow >= 0) {
+			//A few bytes of slack, as a near zero baseline can't grow by a share
+			double maxBytes = Double.parseDouble(baselineBytes) * (1 + ALLOCATION_TOLERANCE) + 16;
+			Assert.assertTrue(String.format("%s: %.1f bytes allocated per row, above the %.1f allowed by the baseline", scenario, bytesPerRow, maxBytes),
+					bytesPerRow <= maxBytes);
+		}
+	}
+
+	/**
+	 * Reads every value of the rows from the source, chunk by chunk and with the parallelism of the transfer, without
+	 * transferring them
+	 */
+	private void read(int chunks, SyntheticTable[] tables) throws SQLException {
+		final SyntheticRowSource source = new SyntheticRowSource(tables);
+		List<Callable<Long>> reads = new ArrayList<>();
+		for (final SyntheticTable table : tables) {
+			for (final TableChunk chunk : table.plan(chunks).getChunks()) {
+				reads.add(new Callable<Long>() {
+					@Override
+					public Long call() throws SQLException {
+						return readChunk(source, table.getName(), chunk);
+					}
+				});
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM);
+		try {
+			long sum = 0;
+			for (Future<Long> read : executor.invokeAll(reads)) {
+				sum += read.get();
+			}
+			//Used, so the reads can't be optimized away
+			Assert.assertNotEquals(Long.MIN_VALUE, sum);
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new SQLException(ex);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long readChunk(SyntheticRowSource source, String tableName, TableChunk chunk) throws SQLException {
+		long sum = 0;
+		try (RowSource.Session session = source.open();
+				RowReader rows = session.read(tableName, chunk)) {
+			int columnCount = rows.getColumnCount();
+			while (rows.next()) {
+				for (int position = 1; position <= columnCount; position++) {
+					switch (rows.getColumnType(position)) {
+						case Types.BIGINT:
+						case Types.INTEGER:
+							sum += rows.getLong(position);
+							break;
+						case Types.DOUBLE:
+							sum += (long) rows.getDouble(position);
+							break;
+						case Types.BIT:
+							sum += rows.getBoolean(position) ? 1 : 0;
+							break;
+						case Types.LONGVARBINARY:
+							byte[] bytes = rows.getBytes(position);
+							sum += bytes != null ? bytes.length : 0;
+							break;
+						default:
+							String text = rows.getString(position);
+							sum += text != null ? text.length() : 0;
+					}
+					sum += rows.wasNull() ? 1 : 0;
+				}
+			}
+		}
+		return sum;
+	}
+
+	private void transfer(int chunks, SyntheticTable[] tables, DiscardingRowSink sink) throws IOException, SQLException {
+		List<TablePlan> tablePlans = new ArrayList<>();
+		for (SyntheticTable table : tables) {
+			tablePlans.add(table.plan(chunks));
+		}
+		File metricsFile = File.createTempFile("mysql2pgsql_metrics", ".properties");
+		metricsFile.deleteOnExit();
+		DataMigrator dataMigrator = new DataMigrator(new SyntheticRowSource(tables), sink, ZeroDatePolicy.EPOCH,
+				new RunMetrics(metricsFile), new SourceGovernor(0, 0, PARALLELISM));
+		dataMigrator.setMemoryBudget(new MemoryBudget(Runtime.getRuntime().maxMemory() / 2));
+		dataMigrator.setListener(new SilentListener());
+		dataMigrator.transferTables(new MigrationPlan(tablePlans, PARALLELISM, 0, 0, false));
+	}
+
+	private static Properties loadBaseline() throws IOException {
+		Properties baseline = new Properties();
+		if (BASELINE_FILE.exists()) {
+			try (InputStream in = new FileInputStream(BASELINE_FILE)) {
+				baseline.load(in);
+			}
+		}
+		return baseline;
+	}
+
+	private static void storeBaseline(Properties baseline) throws IOException {
+		BASELINE_FILE.getParentFile().mkdirs();
+		try (OutputStream out = new FileOutputStream(BASELINE_FILE)) {
+			baseline.store(out, "Baseline of ThroughputRegressionSpec, rate relative to reading the rows and bytes allocated per row per scenario");
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.adam.mysql2pgsql;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author adam
+ */
+public class TransferScopeSpec {
+
+	@Test
+	public void itShouldWaitForCancelledTasksToEnd() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicBoolean ended = new AtomicBoolean();
+		try (TransferScope scope = new TransferScope()) {
+			scope.fork(new Callable<Void>() {
+				@Override
+				public Void call() {
+					started.countDown();
+					//Like a JDBC read, which doesn't respond to the interrupt
+					long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+					while (System.nanoTime() < until) {
+						Thread.onSpinWait();
+					}
+					ended.set(true);
+					return null;
+				}
+			});
+			started.await();
+			scope.fork(new Callable<Void>() {
+				@Override
+				public Void call() throws SQLException {
+					throw new SQLException("failed");
+				}
+			});
+			scope.join();
+			Assert.fail("The failure should be rethrown");
+		} catch (SQLException e) {
+			Assert.assertEquals("failed", e.getMessage());
+			Assert.assertTrue(ended.get());
+		}
+	}
+
+	@Test
+	public void itShouldNotRunTasksForkedAfterAFailure() throws InterruptedException {
+		final AtomicBoolean ran = new AtomicBoolean();
+		try (TransferScope scope = new TransferScope()) {
+			scope.fork(new Callable<Void>() {
+				@Override
+				public Void call() throws SQLException {
+					throw new SQLException("failed");
+				}
+			});
+			while (!scope.isCancelled()) {
+				Thread.sleep(1);
+			}
+			scope.fork(new Callable<Void>() {
+				@Override
+				public Void call() {
+					ran.set(true);
+					return null;
+				}
+			});
+			scope.join();
+			Assert.fail("The failure should be rethrown");
+		} catch (SQLException e) {
+			Assert.assertFalse(ran.get());
+		}
+	}
+
+	@Test
+	public void itShouldStopWaitingForAPermitOnceCancelled() throws InterruptedException, SQLException {
+		Semaphore permits = new Semaphore(1);
+		try (TransferScope scope = new TransferScope()) {
+			Assert.assertTrue(scope.acquire(permits));
+			//The failing task never releases its permit
+			scope.fork(new Callable<Void>() {
+				@Override
+				public Void call() throws SQLException {
+					throw new SQLException("failed");
+				}
+			});
+			Assert.assertFalse(scope.acquire(permits));
+			Assert.assertTrue(scope.isCancelled());
+		}
+	}
+}